@@ -0,0 +1,221 @@
+package gelf4j;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends messages in the background so that logging threads only pay the cost of publishing into a ring buffer.
+ * Messages are sent either from a dedicated thread or, if an executor is supplied, from tasks submitted to the
+ * executor whenever messages are published. At most one task runs at a time so messages are sent in order.
+ */
+final class GelfAsyncSender
+  implements Runnable
+{
+  static final int MAX_BATCH_SIZE = 64;
+
+  private final GelfConnection _connection;
+  private final GelfRingBuffer _buffer;
+  private final GelfMessage[] _batch;
+  private final long _lingerNanos;
+  private final Executor _executor;
+  private final Thread _thread;
+  // Set while a task owns the batch and is draining the buffer
+  private final AtomicBoolean _draining = new AtomicBoolean();
+  private final Runnable _drainTask = new Runnable()
+  {
+    public void run()
+    {
+      drainAvailable();
+    }
+  };
+
+  /**
+   * @param connection   the connection that sends the messages.
+   * @param capacity     the number of messages that can be queued.
+   * @param policy       the overload policy applied when the queue is full.
+   * @param blockMillis  the time to wait for space when the overload policy blocks.
+   * @param batchSize    the maximum number of messages sent together.
+   * @param lingerMillis the time to wait for a batch to fill before sending it. Ignored when using an executor.
+   * @param executor     the executor that runs the sends, or null to send from a dedicated thread.
+   */
+  GelfAsyncSender( final GelfConnection connection,
+                   final int capacity,
+                   final int policy,
+                   final long blockMillis,
+                   final int batchSize,
+                   final long lingerMillis,
+                   final Executor executor )
+  {
+    _connection = connection;
+    _buffer = new GelfRingBuffer( capacity, policy, TimeUnit.MILLISECONDS.toNanos( blockMillis ) );
+    _batch = new GelfMessage[ Math.min( batchSize, capacity ) ];
+    _lingerNanos = TimeUnit.MILLISECONDS.toNanos( lingerMillis );
+    _executor = executor;
+    if ( null == executor )
+    {
+      _thread = new Thread( this, "gelf4j-sender" );
+      _thread.setDaemon( true );
+    }
+    else
+    {
+      _thread = null;
+    }
+  }
+
+  void start()
+  {
+    if ( null != _thread )
+    {
+      _thread.start();
+    }
+  }
+
+  /**
+   * @return the number of messages rejected or evicted by the overload policy.
+   */
+  long getDroppedCount()
+  {
+    return _buffer.getDroppedCount();
+  }
+
+  /**
+   * @return false if the message could not be queued as the buffer is full or the sender is closed.
+   */
+  boolean offer( final GelfMessage message )
+  {
+    if ( !_buffer.offer( message ) )
+    {
+      return false;
+    }
+    if ( null != _executor )
+    {
+      schedule();
+    }
+    return true;
+  }
+
+  /**
+   * Stop accepting messages and wait until every queued message has been sent.
+   */
+  void close()
+    throws InterruptedException
+  {
+    _buffer.close();
+    if ( null != _thread )
+    {
+      if ( Thread.currentThread() != _thread )
+      {
+        _thread.join();
+      }
+    }
+    else
+    {
+      // Wait for any running task to finish and then send whatever remains on the calling thread
+      while ( !_draining.compareAndSet( false, true ) )
+      {
+        LockSupport.parkNanos( TimeUnit.MILLISECONDS.toNanos( 1 ) );
+        if ( Thread.interrupted() )
+        {
+          throw new InterruptedException();
+        }
+      }
+      try
+      {
+        drainBatches();
+      }
+      finally
+      {
+        _draining.set( false );
+      }
+    }
+  }
+
+  public void run()
+  {
+    try
+    {
+      int count;
+      while ( 0 != ( count = _buffer.drainTo( _batch, _lingerNanos ) ) )
+      {
+        sendBatch( count );
+      }
+    }
+    catch ( final InterruptedException ie )
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Submit a task to drain the buffer unless one is already running.
+   */
+  private void schedule()
+  {
+    if ( _draining.compareAndSet( false, true ) )
+    {
+      try
+      {
+        _executor.execute( _drainTask );
+      }
+      catch ( final RejectedExecutionException ree )
+      {
+        // The messages stay queued until the next offer or close
+        _draining.set( false );
+      }
+    }
+  }
+
+  private void drainAvailable()
+  {
+    try
+    {
+      drainBatches();
+    }
+    finally
+    {
+      _draining.set( false );
+    }
+    // A message published after the buffer was found empty, but before the flag was cleared, would
+    // otherwise wait for the next offer
+    if ( 0 != _buffer.size() )
+    {
+      schedule();
+    }
+  }
+
+  private void drainBatches()
+  {
+    int count;
+    while ( 0 != ( count = _buffer.poll( _batch ) ) )
+    {
+      sendBatch( count );
+    }
+  }
+
+  private void sendBatch( final int count )
+  {
+    if ( _connection.isTerminated() )
+    {
+      // The connection finished closing without waiting for the sender, as the close was interrupted, so the
+      // messages are dropped rather than reopening the transport
+      _connection.dropClosed( count );
+    }
+    else
+    {
+      try
+      {
+        _connection.sendNow( _batch, count );
+      }
+      catch ( final RuntimeException re )
+      {
+        //Ignored. A bad message must not stop the sender. The target group has already recorded the failure
+        //against the circuit breaker of the target, so a probe that throws does not leave it half open.
+      }
+    }
+    Arrays.fill( _batch, 0, count, null );
+  }
+}
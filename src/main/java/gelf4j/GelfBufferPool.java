@@ -0,0 +1,72 @@
+package gelf4j;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free pool of direct buffers used to assemble packets. Direct buffers can be handed to a channel
+ * without the JDK first copying them into a temporary direct buffer.
+ *
+ * <p>The direct buffers are allocated once when the pool is created. When the pool is exhausted a heap buffer
+ * is handed out instead, as allocating direct memory on the send path is slow and its release is left to the
+ * garbage collector. Heap buffers are never returned to the pool.</p>
+ */
+final class GelfBufferPool
+{
+  private final AtomicReferenceArray<ByteBuffer> _buffers;
+  private final int _bufferSize;
+
+  GelfBufferPool( final int poolSize, final int bufferSize )
+  {
+    _buffers = new AtomicReferenceArray<ByteBuffer>( poolSize );
+    _bufferSize = bufferSize;
+    for ( int i = 0; i < poolSize; i++ )
+    {
+      _buffers.set( i, ByteBuffer.allocateDirect( bufferSize ) );
+    }
+  }
+
+  int getBufferSize()
+  {
+    return _bufferSize;
+  }
+
+  /**
+   * Take a cleared buffer from the pool, allocating a heap buffer if the pool is empty.
+   *
+   * @param hint the slot at which to start searching. Callers pass a stable per-thread value to reduce contention.
+   */
+  ByteBuffer acquire( final int hint )
+  {
+    final int length = _buffers.length();
+    for ( int i = 0; i < length; i++ )
+    {
+      final ByteBuffer buffer = _buffers.getAndSet( ( hint + i ) % length, null );
+      if ( null != buffer )
+      {
+        buffer.clear();
+        return buffer;
+      }
+    }
+    return ByteBuffer.allocate( _bufferSize );
+  }
+
+  /**
+   * Return a buffer to the pool. Heap buffers, and any buffer released when the pool is full, are discarded.
+   */
+  void release( final int hint, final ByteBuffer buffer )
+  {
+    if ( !buffer.isDirect() )
+    {
+      return;
+    }
+    final int length = _buffers.length();
+    for ( int i = 0; i < length; i++ )
+    {
+      if ( _buffers.compareAndSet( ( hint + i ) % length, null, buffer ) )
+      {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package gelf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops sends to a target that keeps failing so that a down server does not cause a connection attempt on
+ * every log call. After a number of consecutive failures the breaker opens and sends are rejected until the
+ * backoff period expires. A single probe is then allowed through. If the probe succeeds the breaker closes,
+ * otherwise it opens again with the backoff doubled, up to a maximum.
+ */
+final class GelfCircuitBreaker
+{
+  static final int CLOSED = 0;
+  static final int OPEN = 1;
+  static final int HALF_OPEN = 2;
+
+  private final int _failureThreshold;
+  private final long _initialBackoffNanos;
+  private final long _maxBackoffNanos;
+  private final AtomicInteger _state = new AtomicInteger( CLOSED );
+  private final AtomicInteger _consecutiveFailures = new AtomicInteger();
+  private final AtomicLong _failureCount = new AtomicLong();
+  private final AtomicLong _rejectedCount = new AtomicLong();
+  private final AtomicLong _openCount = new AtomicLong();
+  private volatile long _backoffNanos;
+  private volatile long _retryAt;
+
+  GelfCircuitBreaker( final int failureThreshold, final long initialBackoffMillis, final long maxBackoffMillis )
+  {
+    if ( failureThreshold <= 0 )
+    {
+      throw new IllegalArgumentException( "circuitBreakerFailureThreshold must be greater than 0" );
+    }
+    if ( initialBackoffMillis <= 0 || maxBackoffMillis < initialBackoffMillis )
+    {
+      throw new IllegalArgumentException( "circuitBreakerMaxBackoff must not be less than circuitBreakerInitialBackoff" );
+    }
+    _failureThreshold = failureThreshold;
+    _initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos( initialBackoffMillis );
+    _maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos( maxBackoffMillis );
+    _backoffNanos = _initialBackoffNanos;
+  }
+
+  int getState()
+  {
+    return _state.get();
+  }
+
+  /**
+   * @return the number of sends that failed.
+   */
+  long getFailureCount()
+  {
+    return _failureCount.get();
+  }
+
+  /**
+   * @return the number of sends rejected while the breaker was open.
+   */
+  long getRejectedCount()
+  {
+    return _rejectedCount.get();
+  }
+
+  /**
+   * @return the number of times the breaker has opened.
+   */
+  long getOpenCount()
+  {
+    return _openCount.get();
+  }
+
+  /**
+   * @param now the current value of {@link System#nanoTime()}.
+   * @return true if a send may be attempted. The caller must report the outcome of the send.
+   */
+  boolean allowRequest( final long now )
+  {
+    final int state = _state.get();
+    if ( CLOSED == state )
+    {
+      return true;
+    }
+    else if ( OPEN == state && now - _retryAt >= 0 && _state.compareAndSet( OPEN, HALF_OPEN ) )
+    {
+      return true;
+    }
+    else
+    {
+      _rejectedCount.incrementAndGet();
+      return false;
+    }
+  }
+
+  void recordSuccess()
+  {
+    if ( 0 != _consecutiveFailures.get() )
+    {
+      _consecutiveFailures.set( 0 );
+    }
+    if ( CLOSED != _state.get() )
+    {
+      _backoffNanos = _initialBackoffNanos;
+      _state.set( CLOSED );
+    }
+  }
+
+  /**
+   * @param now the current value of {@link System#nanoTime()}.
+   */
+  void recordFailure( final long now )
+  {
+    _failureCount.incrementAndGet();
+    final int state = _state.get();
+    if ( HALF_OPEN == state )
+    {
+      // The probe failed so wait longer before the next one
+      _backoffNanos = Math.min( _backoffNanos * 2, _maxBackoffNanos );
+      _retryAt = now + _backoffNanos;
+      _openCount.incrementAndGet();
+      _state.set( OPEN );
+    }
+    else if ( CLOSED == state && _consecutiveFailures.incrementAndGet() >= _failureThreshold )
+    {
+      // The deadline is set before opening so no thread sees the breaker open with a stale deadline
+      _retryAt = now + _backoffNanos;
+      if ( _state.compareAndSet( CLOSED, OPEN ) )
+      {
+        _consecutiveFailures.set( 0 );
+        _openCount.incrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,325 @@
+package gelf4j;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses payloads as gzip or zlib using deflaters that are pooled rather than created for every payload, as
+ * setting up a deflater costs more than compressing a typical message. Closing the compressor ends the pooled
+ * deflaters, releasing their native memory, and later payloads are compressed with a deflater that is ended after use.
+ *
+ * <p>Very large payloads can be compressed as gzip in parallel. The payload is split into blocks that are compressed
+ * independently on the common fork-join pool and concatenated as separate gzip members, which gzip decoders such as
+ * GZIPInputStream read as a single stream.</p>
+ */
+final class GelfCompressor
+{
+  static final int NONE = 0;
+  static final int GZIP = 1;
+  static final int ZLIB = 2;
+
+  private static final byte[] GZIP_HEADER = new byte[]{ 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+  private static final int GZIP_TRAILER_SIZE = 8;
+  // Buffers that grow beyond this size are discarded after use rather than retained by the pool
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+  // The size of the blocks compressed in parallel. Large enough that each block compresses almost as well as the
+  // whole payload would and that the cost of the task is dominated by compression.
+  static final int PARALLEL_BLOCK_SIZE = 256 * 1024;
+  // The size of the blocks of compressed data handed to a sink
+  private static final int STREAM_BLOCK_SIZE = 8 * 1024;
+
+  private final int _type;
+  private final int _level;
+  private final int _threshold;
+  private final int _parallelThreshold;
+  private final GelfObjectPool<State> _states = new GelfObjectPool<State>( GelfObjectPool.DEFAULT_SIZE )
+  {
+    @Override
+    protected State create()
+    {
+      // Gzip has its own header and trailer so the deflater writes raw deflate data
+      return new State( new Deflater( _level, GZIP == _type ) );
+    }
+
+    @Override
+    protected boolean recycle( final State state )
+    {
+      state.deflater.reset();
+      if ( state.buffer.length > MAX_RETAINED_BUFFER_SIZE )
+      {
+        state.buffer = new byte[ 0 ];
+      }
+      return true;
+    }
+
+    @Override
+    protected void dispose( final State state )
+    {
+      state.deflater.end();
+    }
+  };
+
+  /**
+   * @param type      the compression type.
+   * @param level     the deflate level, from 0 to 9, or -1 for the default level.
+   * @param threshold the size in bytes below which payloads are not compressed.
+   */
+  GelfCompressor( final int type, final int level, final int threshold )
+  {
+    this( type, level, threshold, 0 );
+  }
+
+  /**
+   * @param type              the compression type.
+   * @param level             the deflate level, from 0 to 9, or -1 for the default level.
+   * @param threshold         the size in bytes below which payloads are not compressed.
+   * @param parallelThreshold the size in bytes from which gzip payloads are compressed in parallel, or 0 to always
+   *                          compress on the calling thread.
+   */
+  GelfCompressor( final int type, final int level, final int threshold, final int parallelThreshold )
+  {
+    if ( type < NONE || type > ZLIB )
+    {
+      throw new IllegalArgumentException( "Unknown compression type " + type );
+    }
+    if ( level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION )
+    {
+      throw new IllegalArgumentException( "compressionLevel must be between -1 and 9" );
+    }
+    _type = type;
+    _level = level;
+    _threshold = threshold;
+    _parallelThreshold = parallelThreshold;
+  }
+
+  /**
+   * @return the compressed data, or a copy of the data if it is smaller than the threshold or compression is disabled.
+   */
+  byte[] compress( final byte[] data, final int offset, final int length )
+  {
+    if ( NONE == _type || length < _threshold )
+    {
+      return Arrays.copyOfRange( data, offset, offset + length );
+    }
+    else if ( GZIP == _type && 0 != _parallelThreshold && length >= _parallelThreshold && length > PARALLEL_BLOCK_SIZE )
+    {
+      return compressInParallel( data, offset, length );
+    }
+    else
+    {
+      return compressOnCurrentThread( data, offset, length );
+    }
+  }
+
+  /**
+   * Compress the data into the sink as the deflater produces its output, a block at a time, rather than into a
+   * buffer holding the whole compressed payload.
+   *
+   * @return false if the sink stopped the compression.
+   */
+  boolean compressTo( final byte[] data, final int offset, final int length, final Sink sink )
+  {
+    if ( NONE == _type || length < _threshold )
+    {
+      return sink.write( data, offset, length );
+    }
+    else if ( GZIP == _type && 0 != _parallelThreshold && length >= _parallelThreshold && length > PARALLEL_BLOCK_SIZE )
+    {
+      final byte[] compressed = compressInParallel( data, offset, length );
+      return sink.write( compressed, 0, compressed.length );
+    }
+    final State state = _states.acquire();
+    final Deflater deflater = state.deflater;
+    try
+    {
+      if ( GZIP == _type && !sink.write( GZIP_HEADER, 0, GZIP_HEADER.length ) )
+      {
+        return false;
+      }
+      state.ensureCapacity( STREAM_BLOCK_SIZE );
+      final byte[] block = state.buffer;
+      deflater.setInput( data, offset, length );
+      deflater.finish();
+      while ( !deflater.finished() )
+      {
+        final int count = deflater.deflate( block, 0, STREAM_BLOCK_SIZE );
+        if ( 0 != count && !sink.write( block, 0, count ) )
+        {
+          return false;
+        }
+      }
+      if ( GZIP == _type )
+      {
+        final CRC32 crc = state.crc;
+        crc.reset();
+        crc.update( data, offset, length );
+        writeIntLE( block, writeIntLE( block, 0, (int) crc.getValue() ), length );
+        return sink.write( block, 0, GZIP_TRAILER_SIZE );
+      }
+      return true;
+    }
+    finally
+    {
+      _states.release( state );
+    }
+  }
+
+  /**
+   * Compress each block of the payload as a gzip member in parallel and concatenate the members.
+   */
+  private byte[] compressInParallel( final byte[] data, final int offset, final int length )
+  {
+    final byte[][] members = new byte[ ( length + PARALLEL_BLOCK_SIZE - 1 ) / PARALLEL_BLOCK_SIZE ][];
+    ForkJoinPool.commonPool().invoke( new CompressTask( data, offset, length, members, 0, members.length ) );
+    int size = 0;
+    for ( final byte[] member : members )
+    {
+      size += member.length;
+    }
+    final byte[] result = new byte[ size ];
+    int position = 0;
+    for ( final byte[] member : members )
+    {
+      System.arraycopy( member, 0, result, position, member.length );
+      position += member.length;
+    }
+    return result;
+  }
+
+  private byte[] compressOnCurrentThread( final byte[] data, final int offset, final int length )
+  {
+    final State state = _states.acquire();
+    final Deflater deflater = state.deflater;
+    try
+    {
+      int position = 0;
+      if ( GZIP == _type )
+      {
+        state.ensureCapacity( GZIP_HEADER.length );
+        System.arraycopy( GZIP_HEADER, 0, state.buffer, 0, GZIP_HEADER.length );
+        position = GZIP_HEADER.length;
+      }
+      deflater.setInput( data, offset, length );
+      deflater.finish();
+      while ( !deflater.finished() )
+      {
+        // Deflate output is at most slightly larger than its input so this rarely loops
+        state.ensureCapacity( position + Math.max( 64, length - ( (int) deflater.getBytesRead() ) + 64 ) );
+        position += deflater.deflate( state.buffer, position, state.buffer.length - position );
+      }
+      if ( GZIP == _type )
+      {
+        final CRC32 crc = state.crc;
+        crc.reset();
+        crc.update( data, offset, length );
+        state.ensureCapacity( position + GZIP_TRAILER_SIZE );
+        position = writeIntLE( state.buffer, position, (int) crc.getValue() );
+        position = writeIntLE( state.buffer, position, length );
+      }
+      return Arrays.copyOf( state.buffer, position );
+    }
+    finally
+    {
+      _states.release( state );
+    }
+  }
+
+  /**
+   * End the pooled deflaters.
+   */
+  void close()
+  {
+    _states.close();
+  }
+
+  private static int writeIntLE( final byte[] buffer, final int position, final int value )
+  {
+    buffer[ position ] = (byte) value;
+    buffer[ position + 1 ] = (byte) ( value >> 8 );
+    buffer[ position + 2 ] = (byte) ( value >> 16 );
+    buffer[ position + 3 ] = (byte) ( value >> 24 );
+    return position + 4;
+  }
+
+  /**
+   * Compress a range of blocks, splitting the range in two until it is a single block.
+   */
+  private final class CompressTask
+    extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] _data;
+    private final int _offset;
+    private final int _length;
+    private final byte[][] _members;
+    private final int _start;
+    private final int _end;
+
+    CompressTask( final byte[] data,
+                  final int offset,
+                  final int length,
+                  final byte[][] members,
+                  final int start,
+                  final int end )
+    {
+      _data = data;
+      _offset = offset;
+      _length = length;
+      _members = members;
+      _start = start;
+      _end = end;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if ( 1 == _end - _start )
+      {
+        final int blockOffset = _start * PARALLEL_BLOCK_SIZE;
+        _members[ _start ] =
+          compressOnCurrentThread( _data, _offset + blockOffset, Math.min( PARALLEL_BLOCK_SIZE, _length - blockOffset ) );
+      }
+      else
+      {
+        final int middle = ( _start + _end ) >>> 1;
+        invokeAll( new CompressTask( _data, _offset, _length, _members, _start, middle ),
+                   new CompressTask( _data, _offset, _length, _members, middle, _end ) );
+      }
+    }
+  }
+
+  /**
+   * Receives compressed data as it is produced.
+   */
+  interface Sink
+  {
+    /**
+     * @return false to stop the compression, such as when the compressed data has grown too large.
+     */
+    boolean write( byte[] data, int offset, int length );
+  }
+
+  private static final class State
+  {
+    final Deflater deflater;
+    final CRC32 crc = new CRC32();
+    byte[] buffer = new byte[ 0 ];
+
+    State( final Deflater deflater )
+    {
+      this.deflater = deflater;
+    }
+
+    void ensureCapacity( final int capacity )
+    {
+      if ( capacity > buffer.length )
+      {
+        buffer = Arrays.copyOf( buffer, Math.max( capacity, buffer.length * 2 ) );
+      }
+    }
+  }
+}
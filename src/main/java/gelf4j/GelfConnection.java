@@ -1,44 +1,462 @@
 package gelf4j;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Responsible for communicating with a GELF compliant server.
  */
 public class GelfConnection
 {
+  // The maximum number of spilled payloads replayed by a single send
+  private static final int MAX_REPLAY_COUNT = 256;
+  // The field in a summary message that holds the number of messages suppressed by the rate limit
+  static final String SUPPRESSED_COUNT_FIELD = "suppressed_count";
+
   private final GelfTargetConfig _config;
+  private final Map<String, String> _additionalFields;
   private final GelfEncoder _encoder;
-  private DatagramChannel _channel;
+  private final GelfCompressor _httpCompressor;
+  private final boolean _async;
+  private final int _overloadPolicy;
+  private final boolean _compressPayload;
+  private final GelfTargetGroup _transport;
+  private final String _loadBalancingKey;
+  private final GelfSpillStore _spillStore;
+  private final GelfDnsRefresher _dnsRefresher;
+  private final GelfRateLimiter _rateLimiter;
+  private final GelfSummaryFlusher _summaryFlusher;
+  private final GelfSpillReplayer _spillReplayer;
+  private final GelfSampler _sampler;
+  private final GelfDeduplicator _deduplicator;
+  private final String _facility;
+  private final AtomicBoolean _replaying = new AtomicBoolean();
+  private volatile GelfMessageTemplate _template;
+  private final AtomicReference<GelfAsyncSender> _sender = new AtomicReference<GelfAsyncSender>();
+  // Messages dropped by the overload policy of senders that have been closed
+  private final AtomicLong _closedSenderDropCount = new AtomicLong();
+  private final AtomicLong _closedDropCount = new AtomicLong();
+  // Set once an asynchronous connection stops accepting messages so that a sender is not created again after it is
+  // closed
+  private volatile boolean _closed;
+  // Set once the transport has been closed by close(). A sender whose close was interrupted may still be draining
+  // and drops its messages rather than reopening the transport.
+  private volatile boolean _terminated;
 
   protected GelfConnection( final GelfTargetConfig config )
     throws Exception
   {
     _config = config;
-    _encoder = new GelfEncoder( GelfMessageUtil.getLocalHost(), _config.isCompressedChunking(), _config.getCodec() );
+    // Copied once, parsing any pending json, so that logging threads never read or modify the configuration
+    _additionalFields = Collections.unmodifiableMap( new HashMap<String, String>( _config.getAdditionalFields() ) );
+    _async = _config.isAsync();
+    if ( _config.getChannelPoolSize() <= 0 )
+    {
+      throw new IllegalArgumentException( "channelPoolSize must be greater than 0" );
+    }
+    final String protocol = _config.getProtocol();
+    final boolean udp = GelfTargetConfig.PROTOCOL_UDP.equals( protocol );
+    final boolean http = GelfTargetConfig.PROTOCOL_HTTP.equals( protocol );
+    if ( !udp && !http && !GelfTargetConfig.PROTOCOL_TCP.equals( protocol ) )
+    {
+      throw new IllegalArgumentException( "Unknown protocol " + protocol );
+    }
+    // GELF TCP does not support compression as the frames are delimited by a null byte and
+    // HTTP compresses the whole request body
+    _compressPayload = udp;
+    final String loadBalancing = _config.getLoadBalancing();
+    final boolean hashed = GelfTargetConfig.LOAD_BALANCING_HASH.equals( loadBalancing );
+    if ( !hashed && !GelfTargetConfig.LOAD_BALANCING_ROUND_ROBIN.equals( loadBalancing ) )
+    {
+      throw new IllegalArgumentException( "Unknown loadBalancing " + loadBalancing );
+    }
+    _loadBalancingKey = hashed ? _config.getLoadBalancingKey() : null;
+    // The targets are resolved by the refresher thread so that neither the connection nor logging blocks on DNS
+    final List<GelfTarget> targets = GelfTarget.parseTargets( _config );
+    _encoder = new GelfEncoder( null,
+                                _config.isCompressedChunking(),
+                                _config.isEncodeWithCodec() ? _config.getCodec() : null,
+                                new GelfCompressor( parseCompression( _config.getCompression() ),
+                                                    _config.getCompressionLevel(),
+                                                    _config.getCompressionThreshold(),
+                                                    _config.getParallelCompressionThreshold() ),
+                                udp ? getMaxPacketSize( targets ) : GelfEncoder.MAX_PACKET_SIZE,
+                                _config.getMaxChunkCount() );
+    _httpCompressor =
+      http && _config.isHttpCompression() ?
+      new GelfCompressor( GelfCompressor.GZIP,
+                          _config.getCompressionLevel(),
+                          0,
+                          _config.getParallelCompressionThreshold() ) :
+      null;
+    final GelfTransport[] transports = new GelfTransport[ targets.size() ];
+    for ( int i = 0; i < transports.length; i++ )
+    {
+      final GelfTarget target = targets.get( i );
+      if ( udp )
+      {
+        transports[ i ] = new GelfUdpTransport( _config, target, _encoder );
+      }
+      else if ( http )
+      {
+        transports[ i ] = new GelfHttpTransport( target, _config.getHttpPath(), _config.getHttpBatchSize(), _httpCompressor );
+      }
+      else
+      {
+        transports[ i ] = new GelfTcpTransport( target );
+      }
+    }
+    _transport = new GelfTargetGroup( targets.toArray( new GelfTarget[ transports.length ] ), transports, hashed );
+    if ( _async && _config.getAsyncQueueCapacity() <= 0 )
+    {
+      throw new IllegalArgumentException( "asyncQueueCapacity must be greater than 0" );
+    }
+    _overloadPolicy = parseOverloadPolicy( _config.getOverloadPolicy() );
+    final String spillDirectory = _config.getSpillDirectory();
+    _spillStore =
+      null != spillDirectory ?
+      new GelfSpillStore( new File( spillDirectory ), _config.getSpillSegmentSize(), _config.getSpillMaxSize() ) :
+      null;
+    if ( null != _spillStore )
+    {
+      _spillReplayer = new GelfSpillReplayer( this, GelfSpillReplayer.REPLAY_INTERVAL );
+      _spillReplayer.start();
+    }
+    else
+    {
+      _spillReplayer = null;
+    }
+    final Object facility = _config.getDefaultFields().get( GelfTargetConfig.FIELD_FACILITY );
+    _facility = null != facility ? facility.toString() : GelfEncoder.DEFAULT_FACILITY;
+    _rateLimiter =
+      0 != _config.getRateLimit() || null != _config.getRateLimits() ?
+      new GelfRateLimiter( _config.getRateLimit(), _config.getRateLimitBurst(), _config.getRateLimits() ) :
+      null;
+    if ( null != _rateLimiter )
+    {
+      _summaryFlusher = new GelfSummaryFlusher( this, GelfSummaryFlusher.FLUSH_INTERVAL );
+      _summaryFlusher.start();
+    }
+    else
+    {
+      _summaryFlusher = null;
+    }
+    _sampler = null != _config.getSamplingRates() ? new GelfSampler( _config.getSamplingRates() ) : null;
+    if ( _config.getDedupWindow() > 0 )
+    {
+      _deduplicator = new GelfDeduplicator( this,
+                                            findAdditionalField( GelfTargetConfig.FIELD_LOGGER_NAME ),
+                                            findAdditionalField( GelfTargetConfig.FIELD_EXCEPTION ),
+                                            _config.getDedupWindow(),
+                                            _config.getDedupTableSize() );
+      _deduplicator.start();
+    }
+    else
+    {
+      _deduplicator = null;
+    }
+    // Targets are first resolved in the background, and retried until resolved, even when the periodic refresh is
+    // disabled
+    if ( _config.getDnsRefreshInterval() > 0 || GelfDnsRefresher.hasUnresolvedTargets( _transport.getTargets() ) )
+    {
+      _dnsRefresher = new GelfDnsRefresher( _transport.getTargets(), _config.getDnsRefreshInterval() );
+      _dnsRefresher.start();
+    }
+    else
+    {
+      _dnsRefresher = null;
+    }
   }
 
-  public synchronized void close()
+  /**
+   * Close the connection. If the connection is asynchronous then any queued messages are sent before returning
+   * and messages sent once the connection is closed are dropped and counted by {@link #getClosedDropCount()}, rather
+   * than starting another sender thread. A synchronous connection reopens its transport if it is used again.
+   */
+  public void close()
     throws IOException
   {
-    if ( null != _channel )
+    if ( null != _deduplicator )
     {
       try
       {
-        _channel.close();
+        _deduplicator.close();
       }
-      finally
+      catch ( final InterruptedException ie )
       {
-        _channel = null;
+        Thread.currentThread().interrupt();
+      }
+    }
+    if ( null != _summaryFlusher )
+    {
+      try
+      {
+        _summaryFlusher.close();
+      }
+      catch ( final InterruptedException ie )
+      {
+        Thread.currentThread().interrupt();
+      }
+      sendSuppressedSummaries();
+    }
+    _closed = true;
+    final GelfAsyncSender sender = _sender.getAndSet( null );
+    try
+    {
+      if ( null != sender )
+      {
+        sender.close();
+        _closedSenderDropCount.addAndGet( sender.getDroppedCount() );
+      }
+      if ( null != _dnsRefresher )
+      {
+        _dnsRefresher.close();
+      }
+    }
+    catch ( final InterruptedException ie )
+    {
+      Thread.currentThread().interrupt();
+    }
+    if ( null != _spillReplayer )
+    {
+      try
+      {
+        _spillReplayer.close();
+      }
+      catch ( final InterruptedException ie )
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+    _terminated = true;
+    try
+    {
+      _transport.close();
+    }
+    finally
+    {
+      _encoder.close();
+      if ( null != _httpCompressor )
+      {
+        _httpCompressor.close();
+      }
+      if ( null != _spillStore )
+      {
+        _spillStore.close();
       }
     }
   }
 
+  /**
+   * Check whether a message at the level is kept by sampling. Appenders call this before creating the message
+   * so that discarded messages cost as little as possible.
+   *
+   * @param level       the level of the message.
+   * @param samplingKey the value of the sampling key for the message, such as a trace id, or null.
+   * @return false if the message should be discarded.
+   */
+  public boolean isSampled( final SyslogLevel level, final String samplingKey )
+  {
+    return null == _sampler || _sampler.isSampled( level, samplingKey );
+  }
+
+  /**
+   * Check whether a message from the logger is permitted by the rate limit. Appenders call this before creating
+   * the message so that suppressed messages cost as little as possible. When a logger is permitted to send again
+   * after messages were suppressed, a summary of the number of suppressed messages is sent first. Summaries are
+   * also sent periodically in the background, so loggers that stay over the limit or stop logging are reported.
+   *
+   * @param loggerName the name of the logger, or null to use the facility.
+   * @return false if the message should be discarded.
+   */
+  public boolean isPermitted( final String loggerName )
+  {
+    if ( null == _rateLimiter )
+    {
+      return true;
+    }
+    final GelfRateLimiter.Bucket bucket = _rateLimiter.getBucket( null != loggerName ? loggerName : _facility );
+    if ( null == bucket )
+    {
+      return true;
+    }
+    else if ( bucket.tryAcquire( System.nanoTime() ) )
+    {
+      sendSuppressedSummary( bucket );
+      return true;
+    }
+    else
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Send a summary for every logger that has suppressed messages since its last summary, and evict the buckets of
+   * loggers that are idle.
+   */
+  void sendSuppressedSummaries()
+  {
+    final long now = System.nanoTime();
+    for ( final GelfRateLimiter.Bucket bucket : _rateLimiter.getBuckets() )
+    {
+      sendSuppressedSummary( bucket );
+      if ( _rateLimiter.evictIfIdle( bucket, now ) )
+      {
+        // A message may have been suppressed by the bucket as it was evicted
+        sendSuppressedSummary( bucket );
+      }
+    }
+  }
+
+  private void sendSuppressedSummary( final GelfRateLimiter.Bucket bucket )
+  {
+    final long count = bucket.takeSuppressedCount();
+    if ( 0 != count )
+    {
+      final String key = bucket.getKey();
+      final GelfMessage message =
+        newMessage( SyslogLevel.WARNING, count + " messages suppressed from " + key, System.currentTimeMillis() );
+      final String loggerField = findAdditionalField( GelfTargetConfig.FIELD_LOGGER_NAME );
+      if ( null != loggerField )
+      {
+        GelfMessageUtil.setValue( message, loggerField, key );
+      }
+      GelfMessageUtil.setValue( message, SUPPRESSED_COUNT_FIELD, count );
+      send( message );
+    }
+  }
+
+  /**
+   * @return the name of the additional field that is populated from the symbolic key, or null.
+   */
+  private String findAdditionalField( final String symbolicKey )
+  {
+    for ( final Map.Entry<String, String> entry : _additionalFields.entrySet() )
+    {
+      if ( symbolicKey.equals( entry.getValue() ) )
+      {
+        return entry.getKey();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return true once every target has been resolved. Targets are first resolved in the background after the
+   * connection is created and messages are not sent to a target until then.
+   */
+  boolean isResolved()
+  {
+    return !GelfDnsRefresher.hasUnresolvedTargets( _transport.getTargets() );
+  }
+
+  /**
+   * @return the additional fields of the configuration as they were when the connection was created, mapping the
+   * key in the GELF message to the symbol recognized by the logging framework.
+   */
+  public Map<String, String> getAdditionalFields()
+  {
+    return _additionalFields;
+  }
+
+  /**
+   * @return the number of sends to any target that failed.
+   */
+  public long getFailedSendCount()
+  {
+    long count = 0;
+    for ( final GelfTarget target : _transport.getTargets() )
+    {
+      count += target.getCircuitBreaker().getFailureCount();
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of sends that were not attempted because the circuit breaker of the target was open.
+   */
+  public long getRejectedSendCount()
+  {
+    long count = 0;
+    for ( final GelfTarget target : _transport.getTargets() )
+    {
+      count += target.getCircuitBreaker().getRejectedCount();
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of messages that a server permanently rejected, such as with a client error response from
+   * an HTTP input. These messages are discarded rather than retried or spilled.
+   */
+  public long getDiscardedSendCount()
+  {
+    long count = 0;
+    for ( final GelfTarget target : _transport.getTargets() )
+    {
+      count += target.getDiscardedCount();
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of times the circuit breaker of any target has opened.
+   */
+  public long getCircuitBreakerOpenCount()
+  {
+    long count = 0;
+    for ( final GelfTarget target : _transport.getTargets() )
+    {
+      count += target.getCircuitBreaker().getOpenCount();
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of targets whose circuit breaker is currently open, and so are not being sent to.
+   */
+  public int getOpenCircuitCount()
+  {
+    int count = 0;
+    for ( final GelfTarget target : _transport.getTargets() )
+    {
+      if ( GelfCircuitBreaker.CLOSED != target.getCircuitBreaker().getState() )
+      {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of messages that were rejected or evicted by the overload policy as the queue was full.
+   * Rejected messages are still spilled if a spill directory is configured.
+   */
+  public long getOverloadDropCount()
+  {
+    final GelfAsyncSender sender = _sender.get();
+    return _closedSenderDropCount.get() + ( null != sender ? sender.getDroppedCount() : 0 );
+  }
+
+  /**
+   * @return the number of messages that were dropped as they were sent after the asynchronous connection was closed.
+   */
+  public long getClosedDropCount()
+  {
+    return _closedDropCount.get();
+  }
+
   public GelfMessage newMessage( final SyslogLevel level,
                                  final String message,
                                  final long timestamp )
@@ -51,85 +469,467 @@ public class GelfConnection
     return gelfMessage;
   }
 
+  /**
+   * Create a message with the default fields of the configuration. The default additional fields are not copied
+   * into the message but are added when it is encoded.
+   */
   public GelfMessage newMessage()
   {
     final GelfMessage gelfMessage = new GelfMessage();
-    for ( final Map.Entry<String, Object> entry : _config.getDefaultFields().entrySet() )
+    getTemplate().apply( gelfMessage );
+    return gelfMessage;
+  }
+
+  /**
+   * Return the template compiled from the default fields, recompiling it if the default fields or the default host
+   * have changed since it was compiled.
+   */
+  private GelfMessageTemplate getTemplate()
+  {
+    final long version = _config.getDefaultFieldsVersion();
+    // The default host changes once the name of the local host has been looked up in the background
+    final String defaultHost = _encoder.getDefaultHost();
+    GelfMessageTemplate template = _template;
+    if ( null == template || !template.isCompiledFrom( version, defaultHost ) )
     {
-      GelfMessageUtil.setValue( gelfMessage, entry.getKey(), entry.getValue() );
+      template = _encoder.compileTemplate( _config.getDefaultFields(), version );
+      _template = template;
     }
-    return gelfMessage;
+    return template;
   }
 
   /**
-   * Sends a single GELF message to the server.
+   * Sends a single GELF message to the server. If the connection is asynchronous the message is
+   * queued and sent on the sender thread. If deduplication is enabled and the message repeats a
+   * recent message then it is counted rather than sent.
    *
    * @param message the GELF Message
-   * @return false if sending failed
+   * @return false if sending failed or the message could not be queued
    */
   public boolean send( final GelfMessage message )
   {
-    final List<byte[]> packets = _encoder.encode( message );
+    return ( null != _deduplicator && _deduplicator.isDuplicate( message ) ) || dispatch( message );
+  }
+
+  /**
+   * Send or queue the message without deduplication.
+   */
+  boolean dispatch( final GelfMessage message )
+  {
+    if ( _async )
+    {
+      final GelfAsyncSender sender = getSender();
+      return null != sender ? sender.offer( message ) || spill( message ) : dropClosed( 1 );
+    }
+    else
+    {
+      return sendNow( message );
+    }
+  }
+
+  /**
+   * Encode and send the message on the current thread.
+   */
+  boolean sendNow( final GelfMessage message )
+  {
+    final String key = getLoadBalancingKey( message );
+    if ( canStream() && _transport.stream( key, message ) )
+    {
+      return true;
+    }
+    final byte[] payload = encode( message );
     // Note: Returning false when encoding fails for whatever reason
-    return null != packets && send( packets );
+    return null != payload && sendPayload( key, payload );
+  }
+
+  /**
+   * UDP messages are streamed into packets unless earlier payloads are waiting to be replayed. A contiguous
+   * payload is only encoded when the message has to be truncated, retried against another target or spilled.
+   */
+  private boolean canStream()
+  {
+    return _compressPayload && ( null == _spillStore || _spillStore.isEmpty() );
   }
 
   /**
-   * Sends a bunch of GELF Chunks to the server
+   * Sends a batch of GELF messages to the server. Large batches are encoded in parallel on the
+   * common fork-join pool and the encoded messages are handed to the transport together so that
+   * it can write them with a single lock acquisition. If the connection is asynchronous the
+   * messages are queued and sent on the sender thread.
    *
-   * @param packets The packets to send over the wire
-   * @return false if sending failed
+   * @param messages the GELF Messages
+   * @return false if sending any of the messages failed or could not be queued
    */
-  private boolean send( final List<byte[]> packets )
+  public boolean send( final Collection<GelfMessage> messages )
   {
-    for ( final byte[] packet : packets )
+    if ( _async )
+    {
+      final GelfAsyncSender sender = getSender();
+      if ( null == sender )
+      {
+        return messages.isEmpty() || dropClosed( messages.size() );
+      }
+      boolean success = true;
+      for ( final GelfMessage message : messages )
+      {
+        if ( null == _deduplicator || !_deduplicator.isDuplicate( message ) )
+        {
+          success &= sender.offer( message ) || spill( message );
+        }
+      }
+      return success;
+    }
+    else
     {
-      if ( !sendPacket( packet ) )
+      final GelfMessage[] batch = new GelfMessage[ messages.size() ];
+      int count = 0;
+      for ( final GelfMessage message : messages )
       {
-        return false;
+        if ( null == _deduplicator || !_deduplicator.isDuplicate( message ) )
+        {
+          batch[ count++ ] = message;
+        }
       }
+      return sendNow( batch, count );
     }
-    return true;
   }
 
-  private boolean sendPacket( final byte[] packet )
+  /**
+   * Sends a batch of GELF messages to the server.
+   *
+   * @param messages the GELF Messages
+   * @return false if sending any of the messages failed or could not be queued
+   * @see #send(Collection)
+   */
+  public boolean sendAll( final Iterable<GelfMessage> messages )
   {
-    final ByteBuffer buffer = ByteBuffer.allocate( packet.length );
-    buffer.put( packet );
-    buffer.flip();
-    return doSend( buffer );
+    if ( messages instanceof Collection )
+    {
+      return send( (Collection<GelfMessage>) messages );
+    }
+    else
+    {
+      final List<GelfMessage> batch = new ArrayList<GelfMessage>();
+      for ( final GelfMessage message : messages )
+      {
+        batch.add( message );
+      }
+      return send( batch );
+    }
   }
 
-  private synchronized boolean doSend( final ByteBuffer buffer )
+  /**
+   * Encode and send a batch of messages, allowing the transport to coalesce the writes.
+   */
+  boolean sendNow( final GelfMessage[] messages, final int count )
   {
-    try
+    if ( count <= GelfEncodeTask.SEQUENTIAL_THRESHOLD && canStream() )
     {
-      getChannel().write( buffer );
-      return true;
+      // Each datagram is written separately anyway so there is nothing to gain from encoding the batch first
+      boolean success = true;
+      for ( int i = 0; i < count; i++ )
+      {
+        success &= sendNow( messages[ i ] );
+      }
+      return success;
     }
-    catch ( final IOException ioe )
+    final byte[][] encoded = new byte[ count ][];
+    final GelfEncodeTask task = new GelfEncodeTask( this, messages, encoded, 0, count );
+    if ( count > GelfEncodeTask.SEQUENTIAL_THRESHOLD )
     {
-      try
+      ForkJoinPool.commonPool().invoke( task );
+    }
+    else
+    {
+      task.compute();
+    }
+
+    final List<byte[]> payloads = new ArrayList<byte[]>( count );
+    boolean success = true;
+    for ( int i = 0; i < count; i++ )
+    {
+      final byte[] payload = encoded[ i ];
+      if ( null == payload )
       {
-        close();
+        // Note: Returning false when encoding fails for whatever reason
+        success = false;
       }
-      catch ( final IOException ignored )
+      else if ( null != _loadBalancingKey )
       {
+        // Each message may be destined for a different target so they can not be written together
+        success &= sendPayload( getLoadBalancingKey( messages[ i ] ), payload );
       }
+      else
+      {
+        payloads.add( payload );
+      }
+    }
+    return ( payloads.isEmpty() || sendPayloads( payloads ) ) && success;
+  }
+
+  /**
+   * @return the value of the field used to select a target, or null if targets are not selected by hashing.
+   */
+  private String getLoadBalancingKey( final GelfMessage message )
+  {
+    if ( null == _loadBalancingKey )
+    {
+      return null;
+    }
+    final Object value;
+    if ( GelfTargetConfig.FIELD_FACILITY.equals( _loadBalancingKey ) )
+    {
+      value = message.getFacility();
+    }
+    else if ( GelfTargetConfig.FIELD_HOST.equals( _loadBalancingKey ) )
+    {
+      value = message.getHost();
+    }
+    else if ( GelfTargetConfig.FIELD_FILE.equals( _loadBalancingKey ) )
+    {
+      value = message.getFile();
+    }
+    else
+    {
+      value = message.getAdditionalFields().get( _loadBalancingKey );
+    }
+    return null != value ? value.toString() : null;
+  }
+
+  /**
+   * Encode the message into a payload that the transport is able to send. UDP payloads are truncated to fit
+   * into the maximum number of chunks.
+   *
+   * @return the payload or null if the message could not be encoded.
+   */
+  byte[] encode( final GelfMessage message )
+  {
+    final byte[] payload =
+      _encoder.encodePayload( message, _compressPayload, _compressPayload ? _encoder.getMaxPayloadSize() : 0 );
+    return null != payload && _transport.accepts( payload ) ? payload : null;
+  }
+
+  private boolean sendPayload( final String key, final byte[] payload )
+  {
+    if ( null == _spillStore )
+    {
+      return _transport.send( key, payload );
+    }
+    else if ( _spillStore.isEmpty() )
+    {
+      return _transport.send( key, payload ) || _spillStore.append( payload );
+    }
+    else
+    {
+      // Earlier payloads are waiting to be replayed so queue behind them to preserve the order
+      final boolean spilled = _spillStore.append( payload );
+      replaySpilled();
+      return spilled;
+    }
+  }
+
+  private boolean sendPayloads( final List<byte[]> payloads )
+  {
+    if ( null == _spillStore )
+    {
+      return _transport.send( payloads ) == payloads.size();
+    }
+    final boolean replay = !_spillStore.isEmpty();
+    final int sent = replay ? 0 : _transport.send( payloads );
+    boolean success = true;
+    for ( int i = sent; i < payloads.size(); i++ )
+    {
+      success &= _spillStore.append( payloads.get( i ) );
+    }
+    if ( replay )
+    {
+      replaySpilled();
+    }
+    return success;
+  }
+
+  /**
+   * Encode the message and add it to the spill store, if one is configured.
+   */
+  private boolean spill( final GelfMessage message )
+  {
+    if ( null == _spillStore )
+    {
       return false;
     }
+    final byte[] payload = encode( message );
+    return null != payload && _spillStore.append( payload );
   }
 
-  private synchronized DatagramChannel getChannel()
-    throws IOException
+  /**
+   * Replay spilled payloads in order until the store is empty, a send fails or the replay limit is reached.
+   * Only one thread replays at a time. Called when a message is sent and periodically by the spill replayer, so
+   * that payloads are replayed once the server recovers even if nothing more is logged.
+   *
+   * @return true if the replay limit was reached, so more payloads may be waiting to be replayed.
+   */
+  boolean replaySpilled()
+  {
+    if ( _replaying.compareAndSet( false, true ) )
+    {
+      try
+      {
+        for ( int i = 0; i < MAX_REPLAY_COUNT; i++ )
+        {
+          final byte[] payload = _spillStore.peek();
+          if ( null == payload || !_transport.send( payload ) )
+          {
+            return false;
+          }
+          _spillStore.remove();
+        }
+        return true;
+      }
+      finally
+      {
+        _replaying.set( false );
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the configured chunk size or, if the chunk size is 0, the smallest packet size that fits the MTU of
+   * the route to every target, falling back to the default size if it can not be determined for a target.
+   */
+  private int getMaxPacketSize( final List<GelfTarget> targets )
+  {
+    final int chunkSize = _config.getChunkSize();
+    if ( 0 != chunkSize )
+    {
+      return chunkSize;
+    }
+    int maxPacketSize = GelfEncoder.MAX_DATAGRAM_SIZE;
+    for ( final GelfTarget target : targets )
+    {
+      // The packet size is fixed when the connection is created, so deriving it from the MTU is the one case that
+      // resolves the targets up front
+      target.resolve();
+      int size;
+      try
+      {
+        size = GelfUdpTransport.discoverMaxPacketSize( target.getAddress() );
+      }
+      catch ( final IOException ioe )
+      {
+        size = 0;
+      }
+      maxPacketSize = Math.min( maxPacketSize, size > GelfEncoder.HEADER_SIZE ? size : GelfEncoder.MAX_PACKET_SIZE );
+    }
+    return maxPacketSize;
+  }
+
+  private static int parseCompression( final String compression )
   {
-    if ( null == _channel )
+    if ( GelfTargetConfig.COMPRESSION_GZIP.equals( compression ) )
+    {
+      return GelfCompressor.GZIP;
+    }
+    else if ( GelfTargetConfig.COMPRESSION_ZLIB.equals( compression ) )
+    {
+      return GelfCompressor.ZLIB;
+    }
+    else if ( GelfTargetConfig.COMPRESSION_NONE.equals( compression ) )
+    {
+      return GelfCompressor.NONE;
+    }
+    else
+    {
+      throw new IllegalArgumentException( "Unknown compression " + compression );
+    }
+  }
+
+  private static int parseOverloadPolicy( final String policy )
+  {
+    if ( GelfTargetConfig.OVERLOAD_POLICY_BLOCK.equals( policy ) )
+    {
+      return GelfRingBuffer.BLOCK;
+    }
+    else if ( GelfTargetConfig.OVERLOAD_POLICY_DROP_NEWEST.equals( policy ) )
+    {
+      return GelfRingBuffer.DROP_NEWEST;
+    }
+    else if ( GelfTargetConfig.OVERLOAD_POLICY_DROP_OLDEST.equals( policy ) )
+    {
+      return GelfRingBuffer.DROP_OLDEST;
+    }
+    else if ( GelfTargetConfig.OVERLOAD_POLICY_SHED_BY_SEVERITY.equals( policy ) )
+    {
+      return GelfRingBuffer.SHED_BY_SEVERITY;
+    }
+    else
+    {
+      throw new IllegalArgumentException( "Unknown overloadPolicy " + policy );
+    }
+  }
+
+  /**
+   * @return true once the connection has been closed and its transport released.
+   */
+  boolean isTerminated()
+  {
+    return _terminated;
+  }
+
+  /**
+   * Count messages dropped as the connection is closed.
+   *
+   * @return false as the messages were not sent.
+   */
+  boolean dropClosed( final int count )
+  {
+    _closedDropCount.addAndGet( count );
+    return false;
+  }
+
+  /**
+   * Return the sender, creating it if necessary. If several threads race to create the sender then one wins
+   * and the others discard their sender before it is started.
+   *
+   * @return the sender or null if the connection has been closed.
+   */
+  private GelfAsyncSender getSender()
+  {
+    final GelfAsyncSender existing = _sender.get();
+    if ( null != existing || _closed )
+    {
+      return existing;
+    }
+    final GelfAsyncSender sender = new GelfAsyncSender( this,
+                                                        _config.getAsyncQueueCapacity(),
+                                                        _overloadPolicy,
+                                                        _config.getOverloadBlockTimeout(),
+                                                        Math.max( GelfAsyncSender.MAX_BATCH_SIZE,
+                                                                  _config.getHttpBatchSize() ),
+                                                        _config.getMaxLinger(),
+                                                        _config.getExecutor() );
+    if ( _sender.compareAndSet( null, sender ) )
+    {
+      sender.start();
+      // The connection may have been closed after it was checked, in which case close() has already closed
+      // any earlier sender and the sender is closed here unless close() found it first
+      if ( _closed && _sender.compareAndSet( sender, null ) )
+      {
+        try
+        {
+          sender.close();
+        }
+        catch ( final InterruptedException ie )
+        {
+          Thread.currentThread().interrupt();
+        }
+        return null;
+      }
+      return sender;
+    }
+    else
     {
-      _channel = DatagramChannel.open();
-      _channel.socket().bind( new InetSocketAddress( 0 ) );
-      _channel.connect( new InetSocketAddress( _config.getHostAddress(), _config.getPort() ) );
-      _channel.configureBlocking( false );
+      return getSender();
     }
-    return _channel;
   }
 }
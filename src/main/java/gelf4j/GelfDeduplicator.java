@@ -0,0 +1,307 @@
+package gelf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collapses bursts of identical messages. The first occurrence of a message is sent immediately and repeats
+ * within the window are counted rather than sent. When the window ends a single summary carrying the repeat
+ * count and the timestamps of the first and last occurrence is sent in their place.
+ *
+ * <p>Messages are identified by their level, logger, short message and exception type. Recent messages are held
+ * in a fixed size table indexed by the hash of the identity, so a colliding message evicts the entry and causes
+ * its summary to be sent early.</p>
+ */
+final class GelfDeduplicator
+  implements Runnable
+{
+  static final String REPEAT_COUNT_FIELD = "repeat_count";
+  static final String FIRST_TIMESTAMP_FIELD = "first_timestamp";
+  static final String LAST_TIMESTAMP_FIELD = "last_timestamp";
+
+  private final GelfConnection _connection;
+  private final String _loggerField;
+  private final String _exceptionField;
+  private final long _windowNanos;
+  private final AtomicReferenceArray<Entry> _entries;
+  private final Thread _thread;
+  private final ReentrantLock _lock = new ReentrantLock();
+  private final Condition _closed = _lock.newCondition();
+  private boolean _closing;
+
+  /**
+   * @param connection     the connection used to send summaries.
+   * @param loggerField    the additional field holding the logger name, or null.
+   * @param exceptionField the additional field holding the exception, or null.
+   * @param windowMillis   the period in which repeats are collapsed.
+   * @param tableSize      the number of distinct messages tracked, rounded up to a power of 2.
+   */
+  GelfDeduplicator( final GelfConnection connection,
+                    final String loggerField,
+                    final String exceptionField,
+                    final long windowMillis,
+                    final int tableSize )
+  {
+    if ( tableSize <= 0 )
+    {
+      throw new IllegalArgumentException( "dedupTableSize must be greater than 0" );
+    }
+    _connection = connection;
+    _loggerField = loggerField;
+    _exceptionField = exceptionField;
+    _windowNanos = TimeUnit.MILLISECONDS.toNanos( windowMillis );
+    _entries = new AtomicReferenceArray<Entry>( Integer.highestOneBit( Math.max( 1, tableSize * 2 - 1 ) ) );
+    _thread = new Thread( this, "gelf4j-dedup" );
+    _thread.setDaemon( true );
+  }
+
+  void start()
+  {
+    _thread.start();
+  }
+
+  /**
+   * Stop the sweeper and send the summaries of every pending entry.
+   */
+  void close()
+    throws InterruptedException
+  {
+    _lock.lock();
+    try
+    {
+      _closing = true;
+      _closed.signalAll();
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+    _thread.join();
+    sweep( Long.MAX_VALUE, true );
+  }
+
+  /**
+   * @return true if the message repeats a message sent within the window and has been counted instead.
+   */
+  boolean isDuplicate( final GelfMessage message )
+  {
+    final SyslogLevel level = message.getLevel();
+    final String logger = getField( message, _loggerField );
+    final String shortMessage = message.getShortMessage();
+    final String exception = getField( message, _exceptionField );
+    final int exceptionTypeLength = null != exception ? getExceptionTypeLength( exception ) : 0;
+    final int hash = hash( level, logger, shortMessage, exception, exceptionTypeLength );
+    final int index = hash & ( _entries.length() - 1 );
+    final long now = System.nanoTime();
+    final long timestamp = message.hasJavaTimestamp() ? message.getJavaTimestampMillis() : System.currentTimeMillis();
+
+    final Entry existing = _entries.get( index );
+    if ( null != existing &&
+         now - existing.windowStart < _windowNanos &&
+         existing.matches( hash, level, logger, shortMessage, exception, exceptionTypeLength ) &&
+         existing.recordRepeat( timestamp ) )
+    {
+      return true;
+    }
+    final Entry entry = new Entry( message, hash, exceptionTypeLength, now, timestamp );
+    if ( _entries.compareAndSet( index, existing, entry ) && null != existing )
+    {
+      sendSummary( existing );
+    }
+    return false;
+  }
+
+  public void run()
+  {
+    final long interval = Math.max( 1, _windowNanos / 2 );
+    while ( awaitInterval( interval ) )
+    {
+      sweep( System.nanoTime(), false );
+    }
+  }
+
+  /**
+   * Remove the entries whose window has ended and send their summaries.
+   */
+  private void sweep( final long now, final boolean all )
+  {
+    for ( int i = 0; i < _entries.length(); i++ )
+    {
+      final Entry entry = _entries.get( i );
+      if ( null != entry && ( all || now - entry.windowStart >= _windowNanos ) && _entries.compareAndSet( i, entry, null ) )
+      {
+        sendSummary( entry );
+      }
+    }
+  }
+
+  private void sendSummary( final Entry entry )
+  {
+    final long count = entry.close();
+    if ( count > 0 )
+    {
+      final GelfMessage message = entry.message;
+      final GelfMessage summary = new GelfMessage();
+      summary.setHost( message.getHost() );
+      summary.setFacility( message.getFacility() );
+      summary.setLevel( message.getLevel() );
+      summary.setShortMessage( message.getShortMessage() );
+      summary.setFullMessage( message.getFullMessage() );
+      summary.setFile( message.getFile() );
+      if ( message.hasLine() )
+      {
+        summary.setLine( message.getLineNumber() );
+      }
+      summary.setJavaTimestamp( entry.lastTimestamp );
+      summary.setTemplate( message.getTemplate() );
+      summary.copyFieldsFrom( message );
+      summary.addField( REPEAT_COUNT_FIELD, count );
+      summary.addField( FIRST_TIMESTAMP_FIELD, entry.firstTimestamp );
+      summary.addField( LAST_TIMESTAMP_FIELD, entry.lastTimestamp );
+      _connection.dispatch( summary );
+    }
+  }
+
+  private boolean awaitInterval( final long intervalNanos )
+  {
+    _lock.lock();
+    try
+    {
+      long remaining = intervalNanos;
+      while ( !_closing && remaining > 0 )
+      {
+        remaining = _closed.awaitNanos( remaining );
+      }
+      return !_closing;
+    }
+    catch ( final InterruptedException ie )
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+
+  private static String getField( final GelfMessage message, final String field )
+  {
+    final Object value = null != field ? message.getAdditionalFields().get( field ) : null;
+    return value instanceof String ? (String) value : null;
+  }
+
+  /**
+   * @return the length of the exception class name at the start of the stack trace.
+   */
+  static int getExceptionTypeLength( final String exception )
+  {
+    final int length = exception.length();
+    for ( int i = 0; i < length; i++ )
+    {
+      final char ch = exception.charAt( i );
+      if ( ':' == ch || Character.isWhitespace( ch ) )
+      {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  private static int hash( final SyslogLevel level,
+                           final String logger,
+                           final String shortMessage,
+                           final String exception,
+                           final int exceptionTypeLength )
+  {
+    int hash = null != level ? level.ordinal() : -1;
+    hash = hash * 31 + ( null != logger ? logger.hashCode() : 0 );
+    hash = hash * 31 + ( null != shortMessage ? shortMessage.hashCode() : 0 );
+    for ( int i = 0; i < exceptionTypeLength; i++ )
+    {
+      hash = hash * 31 + exception.charAt( i );
+    }
+    return hash ^ ( hash >>> 16 );
+  }
+
+  private final class Entry
+  {
+    final GelfMessage message;
+    final int hash;
+    final SyslogLevel level;
+    final String logger;
+    final String shortMessage;
+    final String exception;
+    final int exceptionTypeLength;
+    final long windowStart;
+    final long firstTimestamp;
+    // Set to a negative value once the summary has been taken so late repeats start a new entry
+    final AtomicLong repeatCount = new AtomicLong();
+    volatile long lastTimestamp;
+
+    Entry( final GelfMessage message,
+           final int hash,
+           final int exceptionTypeLength,
+           final long windowStart,
+           final long timestamp )
+    {
+      this.message = message;
+      this.hash = hash;
+      this.level = message.getLevel();
+      this.logger = getField( message, _loggerField );
+      this.shortMessage = message.getShortMessage();
+      this.exception = getField( message, _exceptionField );
+      this.exceptionTypeLength = exceptionTypeLength;
+      this.windowStart = windowStart;
+      this.firstTimestamp = timestamp;
+      this.lastTimestamp = timestamp;
+    }
+
+    boolean matches( final int hash,
+                     final SyslogLevel level,
+                     final String logger,
+                     final String shortMessage,
+                     final String exception,
+                     final int exceptionTypeLength )
+    {
+      return this.hash == hash &&
+             this.level == level &&
+             equal( this.logger, logger ) &&
+             equal( this.shortMessage, shortMessage ) &&
+             this.exceptionTypeLength == exceptionTypeLength &&
+             ( 0 == exceptionTypeLength || this.exception.regionMatches( 0, exception, 0, exceptionTypeLength ) );
+    }
+
+    /**
+     * @return false if the summary has already been taken.
+     */
+    boolean recordRepeat( final long timestamp )
+    {
+      if ( repeatCount.incrementAndGet() > 0 )
+      {
+        lastTimestamp = timestamp;
+        return true;
+      }
+      else
+      {
+        return false;
+      }
+    }
+
+    /**
+     * @return the number of repeats, after which further repeats are refused.
+     */
+    long close()
+    {
+      return repeatCount.getAndSet( Long.MIN_VALUE / 2 );
+    }
+
+    private boolean equal( final String a, final String b )
+    {
+      return null == a ? null == b : a.equals( b );
+    }
+  }
+}
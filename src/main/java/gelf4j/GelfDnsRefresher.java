@@ -0,0 +1,145 @@
+package gelf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Periodically re-resolves the addresses of the targets on a dedicated thread. Transports reconnect when they
+ * notice that the address of their target has changed, so DNS based failover takes effect without a restart.
+ *
+ * <p>The first lookup of every target is made on this thread as soon as it starts, so creating a connection never
+ * blocks on DNS, and messages are not sent to a target until it has been resolved. Targets that have never been
+ * resolved are retried with an exponentially increasing delay, even when the periodic refresh is disabled. When
+ * the periodic refresh is disabled the thread exits once every target has been resolved.</p>
+ */
+final class GelfDnsRefresher
+  implements Runnable
+{
+  static final long INITIAL_RETRY_DELAY = 1000L;
+  static final long MAX_RETRY_DELAY = 60000L;
+
+  private final GelfTarget[] _targets;
+  private final long _intervalNanos;
+  private final Thread _thread;
+  private final ReentrantLock _lock = new ReentrantLock();
+  private final Condition _closed = _lock.newCondition();
+  private boolean _closing;
+
+  /**
+   * @param targets        the targets to resolve.
+   * @param intervalMillis the milliseconds between lookups of every target, or 0 to only retry targets that have
+   *                       not yet been resolved.
+   */
+  GelfDnsRefresher( final GelfTarget[] targets, final long intervalMillis )
+  {
+    _targets = targets;
+    _intervalNanos = TimeUnit.MILLISECONDS.toNanos( Math.max( 0, intervalMillis ) );
+    _thread = new Thread( this, "gelf4j-dns" );
+    _thread.setDaemon( true );
+  }
+
+  void start()
+  {
+    _thread.start();
+  }
+
+  void close()
+    throws InterruptedException
+  {
+    _lock.lock();
+    try
+    {
+      _closing = true;
+      _closed.signalAll();
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+    _thread.join();
+  }
+
+  public void run()
+  {
+    resolveTargets();
+    long retryNanos = TimeUnit.MILLISECONDS.toNanos( INITIAL_RETRY_DELAY );
+    while ( true )
+    {
+      final long delayNanos;
+      if ( hasUnresolvedTargets() )
+      {
+        delayNanos = 0 == _intervalNanos ? retryNanos : Math.min( retryNanos, _intervalNanos );
+        retryNanos = Math.min( retryNanos * 2, TimeUnit.MILLISECONDS.toNanos( MAX_RETRY_DELAY ) );
+      }
+      else if ( 0 != _intervalNanos )
+      {
+        delayNanos = _intervalNanos;
+        retryNanos = TimeUnit.MILLISECONDS.toNanos( INITIAL_RETRY_DELAY );
+      }
+      else
+      {
+        return;
+      }
+      if ( !awaitNanos( delayNanos ) )
+      {
+        return;
+      }
+      resolveTargets();
+    }
+  }
+
+  private void resolveTargets()
+  {
+    for ( final GelfTarget target : _targets )
+    {
+      target.resolve();
+    }
+  }
+
+  /**
+   * @return true if any of the targets could not be resolved.
+   */
+  static boolean hasUnresolvedTargets( final GelfTarget[] targets )
+  {
+    for ( final GelfTarget target : targets )
+    {
+      if ( !target.isResolved() )
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean hasUnresolvedTargets()
+  {
+    return hasUnresolvedTargets( _targets );
+  }
+
+  /**
+   * @return false if the refresher was closed while waiting.
+   */
+  private boolean awaitNanos( final long nanos )
+  {
+    _lock.lock();
+    try
+    {
+      long remaining = nanos;
+      while ( !_closing && remaining > 0 )
+      {
+        remaining = _closed.awaitNanos( remaining );
+      }
+      return !_closing;
+    }
+    catch ( final InterruptedException ie )
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package gelf4j;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encodes a range of messages into payloads, splitting the range across the fork-join pool when it is large.
+ */
+final class GelfEncodeTask
+  extends RecursiveAction
+{
+  private static final long serialVersionUID = 1L;
+
+  // The number of messages below which it is cheaper to encode on the current thread than to fork
+  static final int SEQUENTIAL_THRESHOLD = 32;
+
+  private final GelfConnection _connection;
+  private final GelfMessage[] _messages;
+  private final byte[][] _payloads;
+  private final int _start;
+  private final int _end;
+
+  GelfEncodeTask( final GelfConnection connection,
+                  final GelfMessage[] messages,
+                  final byte[][] payloads,
+                  final int start,
+                  final int end )
+  {
+    _connection = connection;
+    _messages = messages;
+    _payloads = payloads;
+    _start = start;
+    _end = end;
+  }
+
+  @Override
+  protected void compute()
+  {
+    if ( _end - _start <= SEQUENTIAL_THRESHOLD )
+    {
+      for ( int i = _start; i < _end; i++ )
+      {
+        _payloads[ i ] = _connection.encode( _messages[ i ] );
+      }
+    }
+    else
+    {
+      final int middle = ( _start + _end ) >>> 1;
+      invokeAll( new GelfEncodeTask( _connection, _messages, _payloads, _start, middle ),
+                 new GelfEncodeTask( _connection, _messages, _payloads, middle, _end ) );
+    }
+  }
+}
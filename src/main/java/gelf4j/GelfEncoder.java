@@ -1,26 +1,28 @@
 package gelf4j;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.lang.management.ManagementFactory;
+import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 /**
  * Responsible for converting a GelfMessage into packets.
- * The GelfMessage is converted to json, gzipped and then converted into 1 or more packets (a.k.a. chunks).
+ * The GelfMessage is converted to json, compressed and then converted into 1 or more packets (a.k.a. chunks).
+ * The json is written directly as UTF-8 by a streaming writer unless a codec is supplied.
  */
 final class GelfEncoder
 {
   static final String ID_NAME = "id";
+  // The additional field set on messages that were truncated to fit the maximum payload size
+  static final String TRUNCATED_NAME = "truncated";
   static final String GELF_VERSION = "1.0";
   static final byte[] CHUNKED_GELF_ID = new byte[]{ 0x1e, 0x0f };
 
@@ -35,47 +37,441 @@ final class GelfEncoder
   static final int HEADER_SIZE =
     CHUNKED_GELF_ID.length + MESSAGE_ID_LENGTH + SEQUENCE_LENGTH + SEQUENCE_LENGTH;
 
-  // Arbitrary size to avoid too much fragmentation
-  static final int MAX_PACKET_SIZE = 2 * 1024;
+  // Default size chosen to avoid too much fragmentation
+  static final int MAX_PACKET_SIZE = GelfTargetConfig.DEFAULT_CHUNK_SIZE;
 
   // Payload threshold (Maximum packet size minus the size of uncompressed header)
-  static final int PAYLOAD_THRESHOLD = MAX_PACKET_SIZE - 38;
+  static final int PAYLOAD_THRESHOLD = MAX_PACKET_SIZE - HEADER_SIZE;
   static final int MAX_SEQ_NUMBER = 255;
+  // The largest payload of an IPv4 UDP datagram
+  static final int MAX_DATAGRAM_SIZE = 65507;
 
   private static final BigDecimal TIME_DIVISOR = new BigDecimal( 1000 );
-  private static final String DEFAULT_FACILITY = "GELF";
-  private static final String RUNTIME_ID = ManagementFactory.getRuntimeMXBean().getName();
+  private static final BigDecimal MICROS_DIVISOR = new BigDecimal( 1000000 );
+  static final String DEFAULT_FACILITY = "GELF";
+  // The legacy 32 byte message id is the 8 byte message id followed by zeros
+  private static final byte[] ZERO_PADDING = new byte[ MESSAGE_ID_LENGTH - COMPRESSED_MESSAGE_ID_LENGTH ];
+  // A random seed per JVM keeps message ids from different processes on the same host apart
+  private static final long c_messageIdSeed = new SecureRandom().nextLong();
+  private static final AtomicLong c_sequence = new AtomicLong();
 
-  private static final AtomicLong c_sequence = new AtomicLong( System.nanoTime() );
+  // Writers that grow beyond this size are discarded after use rather than retained by the pool
+  private static final int MAX_RETAINED_WRITER_SIZE = 64 * 1024;
+  private static final int NO_FIELD_LIMIT = Integer.MAX_VALUE;
+  // The number of attempts made to fit a message after the attempt that derives the truncation from a ratio
+  private static final int MAX_CORRECTIVE_ATTEMPTS = 1;
+  // The weight of the most recent oversized message in the running compression ratio
+  private static final int RATIO_SMOOTHING = 8;
 
-  private final MessageDigest _messageDigest;
   private final String _hostname;
   private final boolean _compressed;
   private final JsonCodec _codec;
+  private final GelfCompressor _compressor;
+  private final int _maxPacketSize;
+  private final int _chunkPayloadSize;
+  private final int _maxChunkCount;
+  // The running ratio of compressed to json size of oversized messages, or 0 until one has been compressed. Races
+  // between threads updating the ratio only lose a sample.
+  private volatile double _compressionRatio;
+  private final GelfObjectPool<GelfJsonWriter> _writers = new GelfObjectPool<GelfJsonWriter>( GelfObjectPool.DEFAULT_SIZE )
+  {
+    @Override
+    protected GelfJsonWriter create()
+    {
+      return new GelfJsonWriter( MAX_PACKET_SIZE );
+    }
+
+    @Override
+    protected boolean recycle( final GelfJsonWriter writer )
+    {
+      return writer.capacity() <= MAX_RETAINED_WRITER_SIZE;
+    }
+  };
 
   GelfEncoder( final String hostname, final boolean compressed, final JsonCodec codec )
-    throws Exception
   {
-    this( MessageDigest.getInstance( "MD5" ), hostname, compressed, codec );
+    this( hostname, compressed, codec, new GelfCompressor( GelfCompressor.GZIP, Deflater.DEFAULT_COMPRESSION, 0 ) );
   }
 
-  GelfEncoder( final MessageDigest messageDigest, final String hostname, final boolean compressed, final JsonCodec codec )
+  /**
+   * @param hostname   the host of messages that do not specify a host, or null to use the local host.
+   * @param codec      the codec used to serialize messages, or null to use the built-in streaming writer.
+   * @param compressor the compressor applied to payloads that are compressed.
+   */
+  GelfEncoder( final String hostname, final boolean compressed, final JsonCodec codec, final GelfCompressor compressor )
   {
-    _messageDigest = messageDigest;
+    this( hostname, compressed, codec, compressor, MAX_PACKET_SIZE, GelfTargetConfig.DEFAULT_MAX_CHUNK_COUNT );
+  }
+
+  /**
+   * @param maxPacketSize the maximum size of a packet, including the chunk header.
+   * @param maxChunkCount the maximum number of chunks a payload may be split into.
+   */
+  GelfEncoder( final String hostname,
+               final boolean compressed,
+               final JsonCodec codec,
+               final GelfCompressor compressor,
+               final int maxPacketSize,
+               final int maxChunkCount )
+  {
+    if ( maxPacketSize <= HEADER_SIZE || maxPacketSize > MAX_DATAGRAM_SIZE )
+    {
+      throw new IllegalArgumentException( "chunkSize must be greater than " + HEADER_SIZE +
+                                          " and no greater than " + MAX_DATAGRAM_SIZE );
+    }
+    if ( maxChunkCount < 1 || maxChunkCount > MAX_SEQ_NUMBER )
+    {
+      throw new IllegalArgumentException( "maxChunkCount must be between 1 and " + MAX_SEQ_NUMBER );
+    }
     _hostname = hostname;
     _compressed = compressed;
     _codec = codec;
+    _compressor = compressor;
+    _maxPacketSize = maxPacketSize;
+    // The payload of a chunk leaves room for the larger uncompressed header whichever format is used
+    _chunkPayloadSize = maxPacketSize - HEADER_SIZE;
+    _maxChunkCount = maxChunkCount;
+  }
+
+  /**
+   * Release the pooled writers and the deflaters of the compressor.
+   */
+  void close()
+  {
+    _writers.close();
+    _compressor.close();
+  }
+
+  /**
+   * @return the maximum size of a packet, including the chunk header.
+   */
+  int getMaxPacketSize()
+  {
+    return _maxPacketSize;
+  }
+
+  /**
+   * @return the size of the payload of a chunk.
+   */
+  int getChunkPayloadSize()
+  {
+    return _chunkPayloadSize;
+  }
+
+  /**
+   * @return the maximum number of chunks a payload may be split into.
+   */
+  int getMaxChunkCount()
+  {
+    return _maxChunkCount;
   }
 
+  /**
+   * Encode the message into packets, truncating a message that needs too many chunks.
+   *
+   * @return the packets or null if the message could not be encoded.
+   */
   List<byte[]> encode( final GelfMessage message )
   {
-    final String json = toJson( message );
-    final byte[] encodedPayload = null != json ? gzip( json ) : null;
+    final byte[] encodedPayload = encodePayload( message, true, getMaxPayloadSize() );
     return null == encodedPayload ? null : createPackets( encodedPayload );
   }
 
+  /**
+   * Encode the message and stream the compressed json into the sink as it is produced, so the compressed payload is
+   * never held as a whole. The message is not truncated and the sink is expected to stop the compression of a
+   * message that grows too large.
+   *
+   * @return false if the message could not be encoded or the sink stopped the compression.
+   */
+  boolean encodeTo( final GelfMessage message, final GelfCompressor.Sink sink )
+  {
+    final GelfJsonWriter writer = _writers.acquire();
+    try
+    {
+      return writeJson( writer, message, NO_FIELD_LIMIT ) && writer.compressTo( _compressor, sink );
+    }
+    finally
+    {
+      _writers.release( writer );
+    }
+  }
+
+  /**
+   * @return the size of the largest payload that can be sent in the maximum number of chunks.
+   */
+  int getMaxPayloadSize()
+  {
+    return Math.max( _maxPacketSize, _chunkPayloadSize * _maxChunkCount );
+  }
+
+  /**
+   * Convert the message into json and optionally compress it.
+   *
+   * @param message  the message.
+   * @param compress true to compress the json with the compressor.
+   * @return the payload or null if the message could not be encoded.
+   */
+  byte[] encodePayload( final GelfMessage message, final boolean compress )
+  {
+    return encodePayload( message, compress, 0 );
+  }
+
+  /**
+   * Convert the message into json and optionally compress it, truncating the full message and the longest
+   * additional fields of a message that would be larger than the maximum size. Truncated messages have the
+   * "_truncated" field set.
+   *
+   * <p>The length that fields are truncated to is derived from the size of the json and the running compression
+   * ratio of earlier oversized messages, so an oversized message is normally compressed once. Should the truncated
+   * message still be too large, a single corrective attempt is made with the ratio measured on the message. A
+   * message that still does not fit is sent with only its short message, which is truncated if need be, so that it
+   * is not dropped.</p>
+   *
+   * @param message  the message.
+   * @param compress true to compress the json with the compressor.
+   * @param maxSize  the maximum size of the payload, or 0 if the size is not limited.
+   * @return the payload or null if the message could not be encoded or could not be truncated to fit.
+   */
+  byte[] encodePayload( final GelfMessage message, final boolean compress, final int maxSize )
+  {
+    final GelfJsonWriter writer = _writers.acquire();
+    try
+    {
+      int fieldLimit = NO_FIELD_LIMIT;
+      for ( int attempt = 0; ; attempt++ )
+      {
+        if ( !writeJson( writer, message, fieldLimit ) )
+        {
+          return null;
+        }
+        // The size of uncompressed json is known before compressing it so json that fits is copied straight out
+        final int jsonSize = writer.size();
+        if ( !compress && ( 0 == maxSize || jsonSize <= maxSize ) )
+        {
+          return writer.toByteArray();
+        }
+        final int size;
+        byte[] compressed = null;
+        final double ratio = _compressionRatio;
+        if ( compress && 0 == attempt && 0 != maxSize && jsonSize > maxSize && 0 != ratio &&
+             jsonSize * ratio > maxSize )
+        {
+          // Truncate by the estimated size rather than compressing json that is expected to be too large
+          size = (int) Math.min( Integer.MAX_VALUE, (long) Math.ceil( jsonSize * ratio ) );
+        }
+        else
+        {
+          compressed = compress ? writer.compress( _compressor ) : null;
+          size = compress ? compressed.length : jsonSize;
+          // Only oversized messages, and what is left of them once truncated, are representative of the messages
+          // that the ratio is used to truncate
+          if ( compress && 0 != maxSize && ( jsonSize > maxSize || NO_FIELD_LIMIT != fieldLimit ) )
+          {
+            recordCompressionRatio( (double) size / jsonSize );
+          }
+          if ( 0 == maxSize || size <= maxSize )
+          {
+            return compressed;
+          }
+        }
+        if ( attempt > MAX_CORRECTIVE_ATTEMPTS )
+        {
+          return encodeShortPayload( writer, message, compress, maxSize );
+        }
+        fieldLimit = reduceFieldLimit( message, fieldLimit, getExcess( jsonSize, size, maxSize, attempt ) );
+        if ( fieldLimit < 0 )
+        {
+          return encodeShortPayload( writer, message, compress, maxSize );
+        }
+      }
+    }
+    finally
+    {
+      _writers.release( writer );
+    }
+  }
+
+  /**
+   * @return the running ratio of compressed to json size of oversized messages, or 0 if it is not yet known.
+   */
+  double getCompressionRatio()
+  {
+    return _compressionRatio;
+  }
+
+  private void recordCompressionRatio( final double sample )
+  {
+    final double ratio = _compressionRatio;
+    _compressionRatio = 0 == ratio ? sample : ratio + ( sample - ratio ) / RATIO_SMOOTHING;
+  }
+
+  /**
+   * Encode the message with only the standard fields and the short message, truncated to the usual length of a
+   * short message, as the last resort for a message that can not be truncated to fit.
+   *
+   * @return the payload or null if even the short message does not fit.
+   */
+  private byte[] encodeShortPayload( final GelfJsonWriter writer,
+                                     final GelfMessage message,
+                                     final boolean compress,
+                                     final int maxSize )
+  {
+    writer.reset();
+    writer.beginObject();
+    writer.name( "version" );
+    writer.string( GELF_VERSION );
+    final String hostname = message.getHost();
+    writer.name( "host" );
+    writer.string( null == hostname ? getDefaultHost() : hostname );
+    final String facility = message.getFacility();
+    writer.name( "facility" );
+    writer.string( null != facility ? facility : DEFAULT_FACILITY );
+    writer.name( "short_message" );
+    writer.string( truncate( message.getShortMessage(), GelfMessageUtil.MAX_SHORT_MESSAGE_LENGTH ) );
+    writer.name( "timestamp" );
+    if ( message.hasJavaTimestamp() )
+    {
+      writer.timestamp( message.getJavaTimestampMillis(), message.getMicrosOfMilli() );
+    }
+    else
+    {
+      writer.timestamp( System.currentTimeMillis(), -1 );
+    }
+    final SyslogLevel level = message.getLevel();
+    if ( null != level )
+    {
+      writer.name( "level" );
+      writer.number( level.ordinal() );
+    }
+    writer.additionalName( TRUNCATED_NAME );
+    writer.value( Boolean.TRUE );
+    writer.endObject();
+    final byte[] payload = compress ? writer.compress( _compressor ) : writer.toByteArray();
+    return payload.length <= maxSize ? payload : null;
+  }
+
+  /**
+   * @param jsonSize the size of the json of the last attempt.
+   * @param size     the size of the payload of the last attempt, which is the compressed size if it was compressed.
+   * @param maxSize  the maximum size of the payload.
+   * @param attempt  the number of the last attempt.
+   * @return the number of json bytes to remove from the message so that its payload fits, including a margin for
+   * the compression ratio changing as the fields are truncated. The margin is larger for the corrective attempt.
+   */
+  private static long getExcess( final int jsonSize, final int size, final int maxSize, final int attempt )
+  {
+    // Scale the excess of a compressed payload to the equivalent number of json bytes
+    final long excess = (long) ( size - maxSize ) * jsonSize / size;
+    return excess + excess / ( 0 == attempt ? 32 : 8 ) + 1;
+  }
+
+  /**
+   * Choose the length that the truncatable fields are cut to so that the json of the message shrinks by at least
+   * the excess. The fields are cut to a common length so the longest fields lose the most and shorter fields are
+   * left intact. The bytes that a field is encoded as are taken to be spread evenly across its characters.
+   *
+   * @param excess the number of json bytes to remove.
+   * @return the new limit or -1 if the fields can not be truncated any further.
+   */
+  private static int reduceFieldLimit( final GelfMessage message, final int fieldLimit, final long excess )
+  {
+    final String fullMessage = message.getFullMessage();
+    final int fieldCount = message.getFieldCount();
+    final int[] lengths = new int[ fieldCount + 1 ];
+    final long[] sizes = new long[ fieldCount + 1 ];
+    int count = 0;
+    int maxLength = 0;
+    for ( int i = -1; i < fieldCount; i++ )
+    {
+      final Object value = -1 == i ? fullMessage : message.getObjectField( i );
+      if ( value instanceof String )
+      {
+        final String string = (String) value;
+        final int length = Math.min( string.length(), fieldLimit );
+        lengths[ count ] = length;
+        sizes[ count ] = GelfJsonWriter.getEscapedLength( string, length );
+        maxLength = Math.max( maxLength, length );
+        count++;
+      }
+    }
+    if ( 0 == maxLength )
+    {
+      return -1;
+    }
+    else if ( getReduction( lengths, sizes, count, 0 ) < excess )
+    {
+      return 0;
+    }
+    // The largest limit that removes the excess
+    int low = 0;
+    int high = maxLength - 1;
+    while ( low < high )
+    {
+      final int middle = ( low + high + 1 ) >>> 1;
+      if ( getReduction( lengths, sizes, count, middle ) >= excess )
+      {
+        low = middle;
+      }
+      else
+      {
+        high = middle - 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return the estimated number of json bytes removed by cutting the fields to the limit.
+   */
+  private static double getReduction( final int[] lengths, final long[] sizes, final int count, final int limit )
+  {
+    double reduction = 0;
+    for ( int i = 0; i < count; i++ )
+    {
+      if ( lengths[ i ] > limit )
+      {
+        reduction += (double) sizes[ i ] * ( lengths[ i ] - limit ) / lengths[ i ];
+      }
+    }
+    return reduction;
+  }
+
+  /**
+   * @return the value cut to the limit, without splitting a surrogate pair, or the value if it is within the limit.
+   */
+  private static String truncate( final String value, final int limit )
+  {
+    if ( value.length() <= limit )
+    {
+      return value;
+    }
+    final int length = limit > 0 && Character.isHighSurrogate( value.charAt( limit - 1 ) ) ? limit - 1 : limit;
+    return value.substring( 0, length );
+  }
+
   String toJson( final GelfMessage message )
   {
+    return toJson( message, NO_FIELD_LIMIT );
+  }
+
+  /**
+   * @param fieldLimit the length that the full message and string additional fields are truncated to.
+   */
+  private String toJson( final GelfMessage message, final int fieldLimit )
+  {
+    if ( null == _codec )
+    {
+      final byte[] json = encodePayload( message, false );
+      try
+      {
+        return null != json ? new String( json, "UTF-8" ) : null;
+      }
+      catch ( final UnsupportedEncodingException uee )
+      {
+        return null;
+      }
+    }
     final Map<String, Object> map = new HashMap<String, Object>();
 
     map.put( "version", GELF_VERSION );
@@ -86,14 +482,19 @@ final class GelfEncoder
       return null;
     }
     map.put( "short_message", shortMessage );
+    boolean truncated = false;
     final String fullMessage = message.getFullMessage();
     if( null != fullMessage )
     {
-      map.put( "full_message", fullMessage );
+      final String value = truncate( fullMessage, fieldLimit );
+      truncated = value != fullMessage;
+      map.put( "full_message", value );
     }
 
-    final Long timestamp = message.getJavaTimestamp();
-    map.put( "timestamp", encodeTimestamp( null != timestamp ? timestamp : System.currentTimeMillis() ) );
+    map.put( "timestamp",
+             message.hasJavaTimestamp() ?
+             encodeTimestamp( message.getJavaTimestampMillis(), message.getMicrosOfMilli() ) :
+             encodeTimestamp( System.currentTimeMillis(), -1 ) );
     final String facility = message.getFacility();
     map.put( "facility", null != facility ? facility : DEFAULT_FACILITY );
 
@@ -108,30 +509,223 @@ final class GelfEncoder
     {
       map.put( "file", file );
     }
-    final Long line = message.getLine();
-    if( null != line )
+    if( message.hasLine() )
     {
-      map.put( "line", line );
+      map.put( "line", message.getLineNumber() );
     }
 
     final String hostname = message.getHost();
-    map.put( "host", null == hostname ? _hostname : hostname );
+    map.put( "host", null == hostname ? getDefaultHost() : hostname );
 
-    final Map<String, Object> fields = message.getAdditionalFields();
-    for( final Map.Entry<String, Object> entry : fields.entrySet() )
+    final GelfMessageTemplate template = message.getTemplate();
+    if( null != template )
     {
-      final String key = entry.getKey();
+      for( final Map.Entry<String, Object> entry : template.getAdditionalFields().entrySet() )
+      {
+        map.put( "_" + entry.getKey(), entry.getValue() );
+      }
+    }
+    final int fieldCount = message.getFieldCount();
+    for( int i = 0; i < fieldCount; i++ )
+    {
+      final String key = message.getFieldName( i );
       if( !key.equals( ID_NAME ) )
       {
-        map.put( "_" + key, entry.getValue() );
+        final Object value = message.getFieldValue( i );
+        if( value instanceof String && ( (String) value ).length() > fieldLimit )
+        {
+          truncated = true;
+          map.put( "_" + key, truncate( (String) value, fieldLimit ) );
+        }
+        else
+        {
+          map.put( "_" + key, value );
+        }
       }
     }
+    if( truncated && -1 == message.indexOfField( TRUNCATED_NAME ) )
+    {
+      map.put( "_" + TRUNCATED_NAME, Boolean.TRUE );
+    }
 
     return _codec.toJson( map );
   }
 
-  private String encodeTimestamp( final long time )
+  /**
+   * Write the message into the writer with the same fields as {@link #toJson(GelfMessage)}, using the codec
+   * if there is one.
+   *
+   * @param fieldLimit the length that the full message and string additional fields are truncated to.
+   * @return false if the message could not be encoded.
+   */
+  private boolean writeJson( final GelfJsonWriter writer, final GelfMessage message, final int fieldLimit )
   {
+    if ( null != _codec )
+    {
+      final String json = toJson( message, fieldLimit );
+      if ( null == json )
+      {
+        return false;
+      }
+      try
+      {
+        writer.reset();
+        writer.raw( json.getBytes( "UTF-8" ) );
+        return true;
+      }
+      catch ( final UnsupportedEncodingException uee )
+      {
+        return false;
+      }
+    }
+    final String shortMessage = message.getShortMessage();
+    if ( null == shortMessage )
+    {
+      //A message with no short message can not be validly encoded
+      return false;
+    }
+    writer.reset();
+    final GelfMessageTemplate template = message.getTemplate();
+    if ( null != template && template.hasPrefixFor( message ) )
+    {
+      writer.raw( template.getPrefix() );
+    }
+    else
+    {
+      writer.beginObject();
+      writer.name( "version" );
+      writer.string( GELF_VERSION );
+      final String hostname = message.getHost();
+      writer.name( "host" );
+      writer.string( null == hostname ? getDefaultHost() : hostname );
+      final String facility = message.getFacility();
+      writer.name( "facility" );
+      writer.string( null != facility ? facility : DEFAULT_FACILITY );
+    }
+    writer.name( "short_message" );
+    writer.string( shortMessage );
+    boolean truncated = false;
+    final String fullMessage = message.getFullMessage();
+    if ( null != fullMessage )
+    {
+      final String value = truncate( fullMessage, fieldLimit );
+      truncated = value != fullMessage;
+      writer.name( "full_message" );
+      writer.string( value );
+    }
+    writer.name( "timestamp" );
+    if ( message.hasJavaTimestamp() )
+    {
+      writer.timestamp( message.getJavaTimestampMillis(), message.getMicrosOfMilli() );
+    }
+    else
+    {
+      writer.timestamp( System.currentTimeMillis(), -1 );
+    }
+    final SyslogLevel level = message.getLevel();
+    if ( null != level )
+    {
+      writer.name( "level" );
+      writer.number( level.ordinal() );
+    }
+    final String file = message.getFile();
+    if ( null != file )
+    {
+      writer.name( "file" );
+      writer.string( file );
+    }
+    if ( message.hasLine() )
+    {
+      writer.name( "line" );
+      writer.number( message.getLineNumber() );
+    }
+    final int fieldCount = message.getFieldCount();
+    for ( int i = 0; i < fieldCount; i++ )
+    {
+      final String key = message.getFieldName( i );
+      if ( !key.equals( ID_NAME ) )
+      {
+        writer.additionalName( key );
+        final int type = message.getFieldType( i );
+        if ( GelfMessage.LONG_FIELD == type )
+        {
+          writer.number( message.getLongField( i ) );
+        }
+        else if ( GelfMessage.DOUBLE_FIELD == type )
+        {
+          writer.number( message.getDoubleField( i ) );
+        }
+        else
+        {
+          final Object value = message.getObjectField( i );
+          if ( value instanceof String && ( (String) value ).length() > fieldLimit )
+          {
+            truncated = true;
+            writer.string( truncate( (String) value, fieldLimit ) );
+          }
+          else
+          {
+            writer.value( value );
+          }
+        }
+      }
+    }
+    if ( truncated && -1 == message.indexOfField( TRUNCATED_NAME ) )
+    {
+      writer.additionalName( TRUNCATED_NAME );
+      writer.value( Boolean.TRUE );
+    }
+    if ( null != template )
+    {
+      if ( template.hasFieldsFor( message ) )
+      {
+        writer.fields( template.getFields() );
+      }
+      else
+      {
+        // The message overrides some of the default fields so write the others individually
+        for ( final Map.Entry<String, Object> entry : template.getAdditionalFields().entrySet() )
+        {
+          if ( -1 == message.indexOfField( entry.getKey() ) )
+          {
+            writer.additionalName( entry.getKey() );
+            writer.value( entry.getValue() );
+          }
+        }
+      }
+    }
+    writer.endObject();
+    return true;
+  }
+
+  /**
+   * Compile the default fields into a template for messages encoded by this encoder.
+   *
+   * @param version the version of the default fields, read before the fields.
+   */
+  GelfMessageTemplate compileTemplate( final Map<String, Object> defaultFields, final long version )
+  {
+    return new GelfMessageTemplate( defaultFields, version, getDefaultHost(), DEFAULT_FACILITY );
+  }
+
+  /**
+   * @return the host of messages that do not specify a host. When no hostname was supplied this is the name of the
+   * local host, or a provisional host while the name is looked up in the background.
+   */
+  String getDefaultHost()
+  {
+    return null != _hostname ? _hostname : GelfMessageUtil.getLocalHostWithoutBlocking();
+  }
+
+  private String encodeTimestamp( final long time, final int microsOfMilli )
+  {
+    if ( microsOfMilli >= 0 )
+    {
+      return new BigDecimal( time ).multiply( TIME_DIVISOR )
+        .add( new BigDecimal( microsOfMilli ) )
+        .divide( MICROS_DIVISOR )
+        .toPlainString();
+    }
     return new BigDecimal( time ).divide( TIME_DIVISOR ).toPlainString();
   }
 
@@ -139,13 +733,17 @@ final class GelfEncoder
    * Creates a message id that should be unique on every call. The message ID needs to be unique for every message. If
    * a message is chunked, then each chunk in a message needs the same message ID.
    *
+   * <p>The id is the next value of a counter scrambled by the splitmix64 finalizer, which is a bijection, so ids
+   * never repeat within the JVM and consecutive ids share no obvious bit patterns.</p>
+   *
    * @return unique message ID
    */
-  byte[] generateMessageID()
+  static long generateMessageID()
   {
-    final byte[] digestString = ( _hostname + c_sequence.incrementAndGet() + RUNTIME_ID ).getBytes();
-    final int messageIdLength = _compressed ? COMPRESSED_MESSAGE_ID_LENGTH : MESSAGE_ID_LENGTH;
-    return Arrays.copyOf( _messageDigest.digest( digestString ), messageIdLength );
+    long z = c_messageIdSeed + c_sequence.getAndIncrement() * 0x9E3779B97F4A7C15L;
+    z = ( z ^ ( z >>> 30 ) ) * 0xBF58476D1CE4E5B9L;
+    z = ( z ^ ( z >>> 27 ) ) * 0x94D049BB133111EBL;
+    return z ^ ( z >>> 31 );
   }
 
   /**
@@ -157,101 +755,81 @@ final class GelfEncoder
    */
   List<byte[]> createPackets( final byte[] payload )
   {
-    final List<byte[]> packets = new ArrayList<byte[]>();
-    if ( payload.length <= MAX_PACKET_SIZE )
+    final int chunkCount = getChunkCount( payload.length );
+    if ( 0 == chunkCount )
     {
-      packets.add( payload );
+      return null;
+    }
+    else if ( 1 == chunkCount )
+    {
+      return Collections.singletonList( payload );
     }
     else
     {
-      final byte[] messageId = generateMessageID();
-
-      final int fullChunksCount = payload.length / PAYLOAD_THRESHOLD;
-      if ( fullChunksCount > MAX_SEQ_NUMBER )
+      final List<byte[]> packets = new ArrayList<byte[]>( chunkCount );
+      final long messageId = generateMessageID();
+      for ( int chunk = 0; chunk < chunkCount; chunk++ )
       {
-        return null;
-      }
-      final int remainingBytes = payload.length % PAYLOAD_THRESHOLD;
-      final int chunkCount = fullChunksCount + ( remainingBytes != 0 ? 1 : 0 );
-      final int headerSize = _compressed ? COMPRESSED_HEADER_SIZE : HEADER_SIZE;
-
-      for ( int chunk = 0; chunk < fullChunksCount; chunk++ )
-      {
-        final ByteBuffer buffer = ByteBuffer.allocate( PAYLOAD_THRESHOLD + headerSize );
-        buffer.put( CHUNKED_GELF_ID );
-        buffer.put( messageId );
-        if ( !_compressed )
-        {
-          buffer.put( (byte) 0 );
-        }
-        buffer.put( (byte) chunk );
-        if ( !_compressed )
-        {
-          buffer.put( (byte) 0 );
-        }
-        buffer.put( (byte) chunkCount );
-        buffer.put( payload, chunk * PAYLOAD_THRESHOLD, PAYLOAD_THRESHOLD );
-        packets.add( buffer.array() );
-
-      }
-      if ( remainingBytes > 0 )
-      {
-        final ByteBuffer buffer = ByteBuffer.allocate( remainingBytes + headerSize );
-        buffer.put( CHUNKED_GELF_ID );
-        buffer.put( messageId );
-        if ( !_compressed )
-        {
-          buffer.put( (byte) 0 );
-        }
-        buffer.put( (byte) (chunkCount - 1) );
-        if ( !_compressed )
-        {
-          buffer.put( (byte) 0 );
-        }
-        buffer.put( (byte) chunkCount );
-        buffer.put( payload, fullChunksCount * PAYLOAD_THRESHOLD, remainingBytes );
+        final int length = Math.min( _chunkPayloadSize, payload.length - chunk * _chunkPayloadSize );
+        final ByteBuffer buffer = ByteBuffer.allocate( getHeaderSize() + length );
+        writeChunk( buffer, messageId, payload, chunk, chunkCount );
         packets.add( buffer.array() );
       }
+      return packets;
     }
-    return packets;
   }
 
   /**
-   * Compresses a string using the GZIP compression scheme.
+   * Return the number of packets required to send the payload.
    *
-   * @param message The message to compress.
-   * @return The encoded message.
+   * @param payloadLength the length of the payload.
+   * @return 1 if the payload fits in a single unchunked packet, the number of chunks if the payload needs
+   * to be chunked or 0 if the payload is too large to be sent.
    */
-  private byte[] gzip( final String message )
+  int getChunkCount( final int payloadLength )
   {
-    GZIPOutputStream zipStream = null;
-    try
+    if ( payloadLength <= _maxPacketSize )
     {
-      final ByteArrayOutputStream targetStream = new ByteArrayOutputStream();
-      zipStream = new GZIPOutputStream( targetStream );
-      zipStream.write( message.getBytes("UTF-8") );
-      zipStream.close();
-      final byte[] zipped = targetStream.toByteArray();
-      targetStream.close();
-      return zipped;
+      return 1;
     }
-    catch( final IOException ioe )
+    final int chunkCount = ( payloadLength + _chunkPayloadSize - 1 ) / _chunkPayloadSize;
+    return chunkCount > _maxChunkCount ? 0 : chunkCount;
+  }
+
+  int getHeaderSize()
+  {
+    return _compressed ? COMPRESSED_HEADER_SIZE : HEADER_SIZE;
+  }
+
+  /**
+   * Write the header and the slice of the payload for the specified chunk into the buffer.
+   * The legacy message id is the 8 byte id padded with zeros.
+   */
+  void writeChunk( final ByteBuffer buffer,
+                   final long messageId,
+                   final byte[] payload,
+                   final int chunk,
+                   final int chunkCount )
+  {
+    writeChunkHeader( buffer, messageId, chunk, chunkCount );
+    final int offset = chunk * _chunkPayloadSize;
+    buffer.put( payload, offset, Math.min( _chunkPayloadSize, payload.length - offset ) );
+  }
+
+  void writeChunkHeader( final ByteBuffer buffer, final long messageId, final int chunk, final int chunkCount )
+  {
+    buffer.put( CHUNKED_GELF_ID );
+    buffer.putLong( messageId );
+    if ( !_compressed )
     {
-      return null;
+      buffer.put( ZERO_PADDING );
+      buffer.put( (byte) 0 );
     }
-    finally
+    buffer.put( (byte) chunk );
+    if ( !_compressed )
     {
-      try
-      {
-        if( null != zipStream )
-        {
-          zipStream.close();
-        }
-      }
-      catch( final IOException ioe )
-      {
-        //Ignore..
-      }
+      buffer.put( (byte) 0 );
     }
+    buffer.put( (byte) chunkCount );
   }
 }
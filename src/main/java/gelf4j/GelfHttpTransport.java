@@ -0,0 +1,240 @@
+package gelf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sends uncompressed payloads to a GELF HTTP input by POSTing them. Requests from different threads are sent
+ * concurrently. Groups of payloads are sent as newline
+ * delimited bodies of up to the batch size and the body may be gzipped. Connections are kept alive and reused
+ * by the http client built into the JDK, which requires that every response is read to the end.
+ *
+ * <p>A client error response, other than a timeout or too many requests, means the server will never accept the
+ * payload. Such payloads are counted on the target and discarded rather than reported as failures, so that they
+ * are not retried, spilled or held against the circuit breaker of the target. The payloads of a rejected batch are
+ * sent again one at a time so that only the payloads the server rejects are discarded.</p>
+ */
+final class GelfHttpTransport
+  implements GelfTransport
+{
+  static final int TIMEOUT_MILLIS = 5000;
+
+  private static final byte MESSAGE_DELIMITER = '\n';
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+  // The outcomes of a request
+  private static final int ACCEPTED = 0;
+  private static final int FAILED = 1;
+  private static final int REJECTED = 2;
+
+  private final GelfTarget _target;
+  private final String _path;
+  private final int _batchSize;
+  private final GelfCompressor _compressor;
+
+  /**
+   * @param compressor the gzip compressor applied to request bodies, or null to send them uncompressed.
+   */
+  GelfHttpTransport( final GelfTarget target, final String path, final int batchSize, final GelfCompressor compressor )
+  {
+    if ( batchSize <= 0 )
+    {
+      throw new IllegalArgumentException( "httpBatchSize must be greater than 0" );
+    }
+    _target = target;
+    _path = path.startsWith( "/" ) ? path : "/" + path;
+    _batchSize = batchSize;
+    _compressor = compressor;
+  }
+
+  public boolean accepts( final byte[] payload )
+  {
+    return true;
+  }
+
+  public boolean send( final byte[] payload )
+  {
+    return 1 == send( Collections.singletonList( payload ) );
+  }
+
+  public int send( final List<byte[]> payloads )
+  {
+    int sent = 0;
+    while ( sent < payloads.size() )
+    {
+      final int end = Math.min( payloads.size(), sent + _batchSize );
+      final int outcome = post( payloads.subList( sent, end ) );
+      if ( FAILED == outcome )
+      {
+        break;
+      }
+      else if ( REJECTED == outcome && end - sent > 1 )
+      {
+        while ( sent < end )
+        {
+          final int singleOutcome = post( payloads.subList( sent, sent + 1 ) );
+          if ( FAILED == singleOutcome )
+          {
+            return sent;
+          }
+          else if ( REJECTED == singleOutcome )
+          {
+            _target.recordDiscarded();
+          }
+          sent++;
+        }
+      }
+      else if ( REJECTED == outcome )
+      {
+        _target.recordDiscarded();
+      }
+      sent = end;
+    }
+    return sent;
+  }
+
+  /**
+   * @return the outcome of posting the payloads.
+   */
+  private int post( final List<byte[]> payloads )
+  {
+    try
+    {
+      final byte[] body = createBody( payloads );
+      try
+      {
+        return doPost( body );
+      }
+      catch ( final IOException ioe )
+      {
+        // A kept alive connection may have been closed by the server since the last request so retry once
+        return doPost( body );
+      }
+    }
+    catch ( final IOException ioe )
+    {
+      return FAILED;
+    }
+  }
+
+  public void close()
+    throws IOException
+  {
+    // Idle connections are owned and closed by the keep-alive cache of the JDK
+  }
+
+  /**
+   * @return the outcome of the request.
+   */
+  private int doPost( final byte[] body )
+    throws IOException
+  {
+    // The host name is resolved through the JDK address cache that is kept warm by the target refresher
+    final URL url = new URL( "http", _target.getHost(), _target.getPort(), _path );
+    final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    try
+    {
+      connection.setConnectTimeout( TIMEOUT_MILLIS );
+      connection.setReadTimeout( TIMEOUT_MILLIS );
+      connection.setUseCaches( false );
+      connection.setDoOutput( true );
+      connection.setRequestMethod( "POST" );
+      connection.setRequestProperty( "Content-Type", "application/json" );
+      if ( null != _compressor )
+      {
+        connection.setRequestProperty( "Content-Encoding", "gzip" );
+      }
+      connection.setFixedLengthStreamingMode( body.length );
+      final OutputStream output = connection.getOutputStream();
+      try
+      {
+        output.write( body );
+      }
+      finally
+      {
+        output.close();
+      }
+      final int status = connection.getResponseCode();
+      drain( status < HttpURLConnection.HTTP_BAD_REQUEST ? connection.getInputStream() : connection.getErrorStream() );
+      if ( status >= HttpURLConnection.HTTP_OK && status < HttpURLConnection.HTTP_MULT_CHOICE )
+      {
+        return ACCEPTED;
+      }
+      else if ( isPermanentRejection( status ) )
+      {
+        return REJECTED;
+      }
+      else
+      {
+        return FAILED;
+      }
+    }
+    catch ( final IOException ioe )
+    {
+      // Do not return a connection in an unknown state to the keep-alive cache
+      connection.disconnect();
+      throw ioe;
+    }
+  }
+
+  /**
+   * @return true if the status means the server will never accept the request, however often it is retried.
+   */
+  static boolean isPermanentRejection( final int status )
+  {
+    return status >= HttpURLConnection.HTTP_BAD_REQUEST &&
+           status < HttpURLConnection.HTTP_INTERNAL_ERROR &&
+           HttpURLConnection.HTTP_CLIENT_TIMEOUT != status &&
+           HTTP_TOO_MANY_REQUESTS != status;
+  }
+
+  private byte[] createBody( final List<byte[]> payloads )
+    throws IOException
+  {
+    if ( 1 == payloads.size() )
+    {
+      final byte[] payload = payloads.get( 0 );
+      return null != _compressor ? _compressor.compress( payload, 0, payload.length ) : payload;
+    }
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    for ( int i = 0; i < payloads.size(); i++ )
+    {
+      if ( 0 != i )
+      {
+        buffer.write( MESSAGE_DELIMITER );
+      }
+      buffer.write( payloads.get( i ) );
+    }
+    final byte[] body = buffer.toByteArray();
+    return null != _compressor ? _compressor.compress( body, 0, body.length ) : body;
+  }
+
+  /**
+   * Read the response to the end so that the connection can be reused.
+   */
+  private void drain( final InputStream input )
+    throws IOException
+  {
+    if ( null != input )
+    {
+      try
+      {
+        final byte[] buffer = new byte[ 512 ];
+        while ( -1 != input.read( buffer ) )
+        {
+          // Discard the response body
+        }
+      }
+      finally
+      {
+        input.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,488 @@
+package gelf4j;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Writes GELF messages as UTF-8 encoded json directly into a growable byte buffer, without building an
+ * intermediate map or string. A writer is reused for many messages but must only be used by one thread at a time.
+ */
+final class GelfJsonWriter
+{
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+  private static final byte[] NULL = "null".getBytes();
+  private static final byte[] TRUE = "true".getBytes();
+  private static final byte[] FALSE = "false".getBytes();
+  // Timestamps further from the epoch than this are rendered with BigDecimal as their microseconds overflow a long
+  private static final long MAX_TIMESTAMP_MILLIS = Long.MAX_VALUE / 1000 - 1;
+  private static final BigDecimal MILLIS_PER_SECOND = new BigDecimal( 1000 );
+  // The number of characters escaped between checks of the capacity of the buffer
+  private static final int ESCAPE_BLOCK_SIZE = 1024;
+  // The largest array that every JVM can allocate
+  private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
+  private byte[] _buffer;
+  private int _size;
+  // The digits of the most recently written whole second, as consecutive messages usually share the same second
+  private final byte[] _secondDigits = new byte[ 20 ];
+  private int _secondLength;
+  private long _second = -1;
+
+  GelfJsonWriter( final int initialCapacity )
+  {
+    _buffer = new byte[ initialCapacity ];
+  }
+
+  void reset()
+  {
+    _size = 0;
+  }
+
+  int size()
+  {
+    return _size;
+  }
+
+  /**
+   * @return the length of the underlying buffer, which grows to fit the largest message written.
+   */
+  int capacity()
+  {
+    return _buffer.length;
+  }
+
+  byte[] toByteArray()
+  {
+    return Arrays.copyOf( _buffer, _size );
+  }
+
+  byte[] compress( final GelfCompressor compressor )
+  {
+    return compressor.compress( _buffer, 0, _size );
+  }
+
+  /**
+   * @return false if the sink stopped the compression.
+   */
+  boolean compressTo( final GelfCompressor compressor, final GelfCompressor.Sink sink )
+  {
+    return compressor.compressTo( _buffer, 0, _size, sink );
+  }
+
+  void beginObject()
+  {
+    writeByte( '{' );
+  }
+
+  void endObject()
+  {
+    writeByte( '}' );
+  }
+
+  /**
+   * Write the name of a field, preceded by a comma unless it is the first field in the object.
+   */
+  void name( final String name )
+  {
+    writeSeparator();
+    string( name );
+    writeByte( ':' );
+  }
+
+  /**
+   * Write the name of an additional field, which GELF prefixes with an underscore.
+   */
+  void additionalName( final String name )
+  {
+    writeSeparator();
+    writeByte( '"' );
+    writeByte( '_' );
+    writeEscaped( name );
+    writeByte( '"' );
+    writeByte( ':' );
+  }
+
+  /**
+   * Write bytes that are already encoded json, such as the start of an object.
+   */
+  void raw( final byte[] json )
+  {
+    writeBytes( json );
+  }
+
+  /**
+   * Write fields that are already encoded json and separated by commas, preceded by a comma unless they are the
+   * first fields in the object.
+   */
+  void fields( final byte[] json )
+  {
+    if ( 0 != json.length )
+    {
+      writeSeparator();
+      writeBytes( json );
+    }
+  }
+
+  void string( final String value )
+  {
+    writeByte( '"' );
+    writeEscaped( value );
+    writeByte( '"' );
+  }
+
+  void number( final long value )
+  {
+    if ( Long.MIN_VALUE == value )
+    {
+      writeAscii( Long.toString( value ) );
+      return;
+    }
+    long remaining = value;
+    if ( remaining < 0 )
+    {
+      writeByte( '-' );
+      remaining = -remaining;
+    }
+    int digits = 1;
+    for ( long limit = 10; digits < 19 && remaining >= limit; limit *= 10 )
+    {
+      digits++;
+    }
+    ensureCapacity( digits );
+    for ( int i = _size + digits - 1; i >= _size; i-- )
+    {
+      _buffer[ i ] = (byte) ( '0' + remaining % 10 );
+      remaining /= 10;
+    }
+    _size += digits;
+  }
+
+  /**
+   * Write a number, or null if the number is not finite as json can not represent it.
+   */
+  void number( final double value )
+  {
+    if ( Double.isNaN( value ) || Double.isInfinite( value ) )
+    {
+      writeBytes( NULL );
+    }
+    else
+    {
+      writeAscii( Double.toString( value ) );
+    }
+  }
+
+  /**
+   * Write a timestamp as a string holding the decimal number of seconds since the epoch, without trailing zeros
+   * in the fraction, so that it is identical to the output of {@link BigDecimal#toPlainString()}.
+   *
+   * @param millis        the milliseconds since the epoch.
+   * @param microsOfMilli the microseconds within the millisecond, or -1 to write millisecond precision.
+   */
+  void timestamp( final long millis, final int microsOfMilli )
+  {
+    writeByte( '"' );
+    if ( millis > MAX_TIMESTAMP_MILLIS || millis < -MAX_TIMESTAMP_MILLIS )
+    {
+      writeAscii( new BigDecimal( millis ).divide( MILLIS_PER_SECOND ).toPlainString() );
+    }
+    else
+    {
+      final boolean micros = microsOfMilli >= 0;
+      final long unitsPerSecond = micros ? 1000000 : 1000;
+      long value = micros ? millis * 1000 + microsOfMilli : millis;
+      if ( value < 0 )
+      {
+        writeByte( '-' );
+        value = -value;
+      }
+      writeSecond( value / unitsPerSecond );
+      long fraction = value % unitsPerSecond;
+      if ( 0 != fraction )
+      {
+        int digits = micros ? 6 : 3;
+        while ( 0 == fraction % 10 )
+        {
+          fraction /= 10;
+          digits--;
+        }
+        ensureCapacity( digits + 1 );
+        _buffer[ _size++ ] = '.';
+        for ( int i = _size + digits - 1; i >= _size; i-- )
+        {
+          _buffer[ i ] = (byte) ( '0' + fraction % 10 );
+          fraction /= 10;
+        }
+        _size += digits;
+      }
+    }
+    writeByte( '"' );
+  }
+
+  private void writeSecond( final long second )
+  {
+    if ( second != _second )
+    {
+      final int start = _size;
+      number( second );
+      _secondLength = _size - start;
+      System.arraycopy( _buffer, start, _secondDigits, 0, _secondLength );
+      _second = second;
+    }
+    else
+    {
+      ensureCapacity( _secondLength );
+      System.arraycopy( _secondDigits, 0, _buffer, _size, _secondLength );
+      _size += _secondLength;
+    }
+  }
+
+  /**
+   * Write an arbitrary value. Maps and collections are written as nested objects and arrays, numbers that are
+   * not finite as null and values of any other type as their string representation.
+   */
+  void value( final Object value )
+  {
+    if ( null == value )
+    {
+      writeBytes( NULL );
+    }
+    else if ( value instanceof String )
+    {
+      string( (String) value );
+    }
+    else if ( value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte )
+    {
+      number( ( (Number) value ).longValue() );
+    }
+    else if ( value instanceof Double )
+    {
+      number( (Double) value );
+    }
+    else if ( value instanceof Float )
+    {
+      final float number = (Float) value;
+      if ( Float.isNaN( number ) || Float.isInfinite( number ) )
+      {
+        writeBytes( NULL );
+      }
+      else
+      {
+        writeAscii( value.toString() );
+      }
+    }
+    else if ( value instanceof Number )
+    {
+      writeAscii( value.toString() );
+    }
+    else if ( value instanceof Boolean )
+    {
+      writeBytes( (Boolean) value ? TRUE : FALSE );
+    }
+    else if ( value instanceof Map )
+    {
+      beginObject();
+      for ( final Map.Entry<?, ?> entry : ( (Map<?, ?>) value ).entrySet() )
+      {
+        name( String.valueOf( entry.getKey() ) );
+        value( entry.getValue() );
+      }
+      endObject();
+    }
+    else if ( value instanceof Collection )
+    {
+      writeByte( '[' );
+      for ( final Object element : (Collection<?>) value )
+      {
+        writeSeparator();
+        value( element );
+      }
+      writeByte( ']' );
+    }
+    else
+    {
+      string( value.toString() );
+    }
+  }
+
+  private void writeSeparator()
+  {
+    final byte previous = _buffer[ _size - 1 ];
+    if ( '{' != previous && '[' != previous )
+    {
+      writeByte( ',' );
+    }
+  }
+
+  /**
+   * Write the characters of the value as UTF-8, escaping quotes, backslashes and control characters.
+   * Unpaired surrogates are written as '?' as they can not be encoded.
+   */
+  private void writeEscaped( final String value )
+  {
+    final int length = value.length();
+    int i = 0;
+    while ( i < length )
+    {
+      // Reserve space a block at a time so a long string does not grow the buffer to six times its length.
+      // Every character takes at most 6 bytes, as an escape or as half of a surrogate pair, and the last
+      // character of a block may be the start of a pair.
+      final int end = Math.min( length, i + ESCAPE_BLOCK_SIZE );
+      ensureCapacity( ( end - i + 1 ) * 6 );
+      final byte[] buffer = _buffer;
+      int position = _size;
+      for ( ; i < end; i++ )
+      {
+        final char c = value.charAt( i );
+        if ( c < 0x80 )
+        {
+          if ( c >= 0x20 && '"' != c && '\\' != c )
+          {
+            buffer[ position++ ] = (byte) c;
+          }
+          else
+          {
+            buffer[ position++ ] = '\\';
+            switch ( c )
+            {
+              case '"':
+                buffer[ position++ ] = '"';
+                break;
+              case '\\':
+                buffer[ position++ ] = '\\';
+                break;
+              case '\n':
+                buffer[ position++ ] = 'n';
+                break;
+              case '\r':
+                buffer[ position++ ] = 'r';
+                break;
+              case '\t':
+                buffer[ position++ ] = 't';
+                break;
+              case '\b':
+                buffer[ position++ ] = 'b';
+                break;
+              case '\f':
+                buffer[ position++ ] = 'f';
+                break;
+              default:
+                buffer[ position++ ] = 'u';
+                buffer[ position++ ] = '0';
+                buffer[ position++ ] = '0';
+                buffer[ position++ ] = HEX[ c >> 4 ];
+                buffer[ position++ ] = HEX[ c & 0xF ];
+            }
+          }
+        }
+        else if ( c < 0x800 )
+        {
+          buffer[ position++ ] = (byte) ( 0xC0 | ( c >> 6 ) );
+          buffer[ position++ ] = (byte) ( 0x80 | ( c & 0x3F ) );
+        }
+        else if ( Character.isHighSurrogate( c ) && i + 1 < length && Character.isLowSurrogate( value.charAt( i + 1 ) ) )
+        {
+          final int codePoint = Character.toCodePoint( c, value.charAt( ++i ) );
+          buffer[ position++ ] = (byte) ( 0xF0 | ( codePoint >> 18 ) );
+          buffer[ position++ ] = (byte) ( 0x80 | ( ( codePoint >> 12 ) & 0x3F ) );
+          buffer[ position++ ] = (byte) ( 0x80 | ( ( codePoint >> 6 ) & 0x3F ) );
+          buffer[ position++ ] = (byte) ( 0x80 | ( codePoint & 0x3F ) );
+        }
+        else if ( Character.isSurrogate( c ) )
+        {
+          buffer[ position++ ] = '?';
+        }
+        else
+        {
+          buffer[ position++ ] = (byte) ( 0xE0 | ( c >> 12 ) );
+          buffer[ position++ ] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+          buffer[ position++ ] = (byte) ( 0x80 | ( c & 0x3F ) );
+        }
+      }
+      _size = position;
+    }
+  }
+
+  /**
+   * @return the number of bytes that {@link #string(String)} writes for the first characters of the value, excluding
+   * the quotes.
+   */
+  static long getEscapedLength( final String value, final int length )
+  {
+    long size = 0;
+    for ( int i = 0; i < length; i++ )
+    {
+      final char c = value.charAt( i );
+      if ( c < 0x80 )
+      {
+        if ( c >= 0x20 && '"' != c && '\\' != c )
+        {
+          size += 1;
+        }
+        else
+        {
+          size += '"' == c || '\\' == c || '\n' == c || '\r' == c || '\t' == c || '\b' == c || '\f' == c ? 2 : 6;
+        }
+      }
+      else if ( c < 0x800 )
+      {
+        size += 2;
+      }
+      else if ( Character.isHighSurrogate( c ) && i + 1 < value.length() && Character.isLowSurrogate( value.charAt( i + 1 ) ) )
+      {
+        size += 4;
+        i++;
+      }
+      else if ( Character.isSurrogate( c ) )
+      {
+        size += 1;
+      }
+      else
+      {
+        size += 3;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Write a value that is known to only contain ascii characters that need no escaping.
+   */
+  private void writeAscii( final String value )
+  {
+    final int length = value.length();
+    ensureCapacity( length );
+    for ( int i = 0; i < length; i++ )
+    {
+      _buffer[ _size++ ] = (byte) value.charAt( i );
+    }
+  }
+
+  private void writeBytes( final byte[] bytes )
+  {
+    ensureCapacity( bytes.length );
+    System.arraycopy( bytes, 0, _buffer, _size, bytes.length );
+    _size += bytes.length;
+  }
+
+  private void writeByte( final int b )
+  {
+    ensureCapacity( 1 );
+    _buffer[ _size++ ] = (byte) b;
+  }
+
+  private void ensureCapacity( final int additional )
+  {
+    final long required = (long) _size + additional;
+    if ( required > _buffer.length )
+    {
+      if ( required > MAX_BUFFER_SIZE )
+      {
+        throw new OutOfMemoryError( "Json of " + required + " bytes exceeds the maximum array size" );
+      }
+      _buffer = Arrays.copyOf( _buffer, (int) Math.min( MAX_BUFFER_SIZE, Math.max( required, _buffer.length * 2L ) ) );
+    }
+  }
+}
@@ -1,19 +1,47 @@
 package gelf4j;
 
-import java.util.HashMap;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
+/**
+ * A GELF message. The timestamp and line are held as primitives with flags that record whether they are set, and
+ * the additional fields are held in flat arrays rather than a map so that building a message allocates little.
+ */
 public class GelfMessage
 {
+  static final int OBJECT_FIELD = 0;
+  static final int LONG_FIELD = 1;
+  static final int DOUBLE_FIELD = 2;
+
+  private static final int INITIAL_FIELD_CAPACITY = 8;
+  private static final String[] NO_NAMES = new String[ 0 ];
+
   private String _host;
   private String _shortMessage;
   private String _fullMessage;
-  private Long _javaTimestamp;
+  private long _javaTimestamp;
+  private boolean _hasJavaTimestamp;
+  private int _microsOfMilli = -1;
   private SyslogLevel _level;
   private String _facility;
-  private Long _line;
+  private long _line;
+  private boolean _hasLine;
   private String _file;
-  private final Map<String, Object> _additionalFields = new HashMap<String, Object>(  );
+  // The additional fields as parallel arrays. Long and double values are held in _primitiveValues, with doubles
+  // stored as their raw bits, and all other values in _objectValues.
+  private String[] _fieldNames = NO_NAMES;
+  private byte[] _fieldTypes;
+  private long[] _primitiveValues;
+  private Object[] _objectValues;
+  private int _fieldCount;
+  private Map<String, Object> _additionalFields;
+  private GelfMessageTemplate _template;
 
   public String getHost()
   {
@@ -46,6 +74,19 @@ public class GelfMessage
   }
 
   public Long getJavaTimestamp()
+  {
+    return _hasJavaTimestamp ? _javaTimestamp : null;
+  }
+
+  public boolean hasJavaTimestamp()
+  {
+    return _hasJavaTimestamp;
+  }
+
+  /**
+   * @return the timestamp in milliseconds since the epoch, or 0 if the timestamp has not been set.
+   */
+  public long getJavaTimestampMillis()
   {
     return _javaTimestamp;
   }
@@ -53,6 +94,26 @@ public class GelfMessage
   public void setJavaTimestamp( final long javaTimestamp )
   {
     _javaTimestamp = javaTimestamp;
+    _hasJavaTimestamp = true;
+    _microsOfMilli = -1;
+  }
+
+  /**
+   * Set the timestamp with microsecond precision.
+   */
+  public void setTimestamp( final Instant instant )
+  {
+    _javaTimestamp = instant.toEpochMilli();
+    _hasJavaTimestamp = true;
+    _microsOfMilli = ( instant.getNano() / 1000 ) % 1000;
+  }
+
+  /**
+   * @return the microseconds within the millisecond of the timestamp, or -1 if the timestamp has millisecond precision.
+   */
+  public int getMicrosOfMilli()
+  {
+    return _microsOfMilli;
   }
 
   public SyslogLevel getLevel()
@@ -76,6 +137,19 @@ public class GelfMessage
   }
 
   public Long getLine()
+  {
+    return _hasLine ? _line : null;
+  }
+
+  public boolean hasLine()
+  {
+    return _hasLine;
+  }
+
+  /**
+   * @return the line, or 0 if the line has not been set.
+   */
+  public long getLineNumber()
   {
     return _line;
   }
@@ -83,6 +157,7 @@ public class GelfMessage
   public void setLine( final long line )
   {
     _line = line;
+    _hasLine = true;
   }
 
   public String getFile()
@@ -95,8 +170,430 @@ public class GelfMessage
     _file = file;
   }
 
+  /**
+   * @return a modifiable view of the additional fields of this message. Long and double fields are boxed as they are
+   * read through the view. The view includes the default additional fields of the connection that created the
+   * message, unless the message sets them itself. Setting a default field overrides it for this message, while
+   * removing it or clearing the view only removes the fields set on the message, so the defaults remain visible.
+   * Removing a default field through an iterator is not supported.
+   */
   public Map<String, Object> getAdditionalFields()
   {
+    if ( null == _additionalFields )
+    {
+      _additionalFields = new AdditionalFields();
+    }
     return _additionalFields;
   }
+
+  /**
+   * Set an additional field, replacing any existing value, without boxing the value.
+   */
+  public void addField( final String name, final long value )
+  {
+    final int index = slotFor( name );
+    _fieldTypes[ index ] = LONG_FIELD;
+    _primitiveValues[ index ] = value;
+    _objectValues[ index ] = null;
+  }
+
+  /**
+   * Set an additional field, replacing any existing value, without boxing the value.
+   */
+  public void addField( final String name, final double value )
+  {
+    final int index = slotFor( name );
+    _fieldTypes[ index ] = DOUBLE_FIELD;
+    _primitiveValues[ index ] = Double.doubleToRawLongBits( value );
+    _objectValues[ index ] = null;
+  }
+
+  /**
+   * Set an additional field, replacing any existing value. The value is converted to a string as it is added so
+   * that a buffer can be reused once the field is set.
+   */
+  public void addField( final String name, final CharSequence value )
+  {
+    setField( name, null != value ? value.toString() : null );
+  }
+
+  /**
+   * Copy the additional fields of the source message, keeping the types of long and double fields.
+   */
+  void copyFieldsFrom( final GelfMessage source )
+  {
+    for ( int i = 0; i < source._fieldCount; i++ )
+    {
+      final int index = slotFor( source._fieldNames[ i ] );
+      _fieldTypes[ index ] = source._fieldTypes[ i ];
+      _primitiveValues[ index ] = source._primitiveValues[ i ];
+      _objectValues[ index ] = source._objectValues[ i ];
+    }
+  }
+
+  int getFieldCount()
+  {
+    return _fieldCount;
+  }
+
+  String getFieldName( final int index )
+  {
+    return _fieldNames[ index ];
+  }
+
+  /**
+   * @return one of {@link #OBJECT_FIELD}, {@link #LONG_FIELD} or {@link #DOUBLE_FIELD}.
+   */
+  int getFieldType( final int index )
+  {
+    return _fieldTypes[ index ];
+  }
+
+  long getLongField( final int index )
+  {
+    return _primitiveValues[ index ];
+  }
+
+  double getDoubleField( final int index )
+  {
+    return Double.longBitsToDouble( _primitiveValues[ index ] );
+  }
+
+  Object getObjectField( final int index )
+  {
+    return _objectValues[ index ];
+  }
+
+  /**
+   * @return the value of the field, boxing long and double values.
+   */
+  Object getFieldValue( final int index )
+  {
+    final int type = _fieldTypes[ index ];
+    if ( LONG_FIELD == type )
+    {
+      return _primitiveValues[ index ];
+    }
+    else if ( DOUBLE_FIELD == type )
+    {
+      return getDoubleField( index );
+    }
+    else
+    {
+      return _objectValues[ index ];
+    }
+  }
+
+  /**
+   * @return the index of the field or -1 if the field is not set.
+   */
+  int indexOfField( final Object name )
+  {
+    // Messages have few fields so a linear scan is faster than hashing
+    for ( int i = 0; i < _fieldCount; i++ )
+    {
+      if ( _fieldNames[ i ].equals( name ) )
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  GelfMessageTemplate getTemplate()
+  {
+    return _template;
+  }
+
+  void setTemplate( final GelfMessageTemplate template )
+  {
+    _template = template;
+  }
+
+  /**
+   * @return the value of the default field of the template, or null if the message has no template or the
+   * template has no such field.
+   */
+  private Object getDefaultField( final Object name )
+  {
+    return null != _template ? _template.getAdditionalFields().get( name ) : null;
+  }
+
+  /**
+   * @return the index of the first default field of the template at or after the index that the message does not
+   * override, or -1 if there are none.
+   */
+  private int nextDefaultField( final int index )
+  {
+    if ( null != _template )
+    {
+      final int count = _template.getFieldCount();
+      for ( int i = index; i < count; i++ )
+      {
+        if ( -1 == indexOfField( _template.getFieldName( i ) ) )
+        {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private int countDefaultFields()
+  {
+    int count = 0;
+    for ( int i = nextDefaultField( 0 ); -1 != i; i = nextDefaultField( i + 1 ) )
+    {
+      count++;
+    }
+    return count;
+  }
+
+  private void setField( final String name, final Object value )
+  {
+    final int index = slotFor( name );
+    _fieldTypes[ index ] = OBJECT_FIELD;
+    _primitiveValues[ index ] = 0;
+    _objectValues[ index ] = value;
+  }
+
+  /**
+   * @return the index of the existing field with the name or of a new field appended for it.
+   */
+  private int slotFor( final String name )
+  {
+    if ( null == name )
+    {
+      throw new NullPointerException( "name" );
+    }
+    final int existing = indexOfField( name );
+    if ( -1 != existing )
+    {
+      return existing;
+    }
+    if ( _fieldCount == _fieldNames.length )
+    {
+      final int capacity = Math.max( INITIAL_FIELD_CAPACITY, _fieldCount * 2 );
+      _fieldNames = Arrays.copyOf( _fieldNames, capacity );
+      _fieldTypes = null == _fieldTypes ? new byte[ capacity ] : Arrays.copyOf( _fieldTypes, capacity );
+      _primitiveValues = null == _primitiveValues ? new long[ capacity ] : Arrays.copyOf( _primitiveValues, capacity );
+      _objectValues = null == _objectValues ? new Object[ capacity ] : Arrays.copyOf( _objectValues, capacity );
+    }
+    _fieldNames[ _fieldCount ] = name;
+    return _fieldCount++;
+  }
+
+  private void removeField( final int index )
+  {
+    final int moved = _fieldCount - index - 1;
+    System.arraycopy( _fieldNames, index + 1, _fieldNames, index, moved );
+    System.arraycopy( _fieldTypes, index + 1, _fieldTypes, index, moved );
+    System.arraycopy( _primitiveValues, index + 1, _primitiveValues, index, moved );
+    System.arraycopy( _objectValues, index + 1, _objectValues, index, moved );
+    _fieldCount--;
+    _fieldNames[ _fieldCount ] = null;
+    _objectValues[ _fieldCount ] = null;
+  }
+
+  /**
+   * A map view of the additional fields that reads and writes the flat arrays of the message, falling back to the
+   * default fields of the template.
+   */
+  private final class AdditionalFields
+    extends AbstractMap<String, Object>
+  {
+    private Set<Map.Entry<String, Object>> _entrySet;
+
+    @Override
+    public int size()
+    {
+      return _fieldCount + countDefaultFields();
+    }
+
+    @Override
+    public boolean containsKey( final Object key )
+    {
+      return -1 != indexOfField( key ) || ( null != _template && _template.getAdditionalFields().containsKey( key ) );
+    }
+
+    @Override
+    public Object get( final Object key )
+    {
+      final int index = indexOfField( key );
+      return -1 != index ? getFieldValue( index ) : getDefaultField( key );
+    }
+
+    @Override
+    public Object put( final String key, final Object value )
+    {
+      final Object previous = get( key );
+      setField( key, value );
+      return previous;
+    }
+
+    @Override
+    public Object remove( final Object key )
+    {
+      final int index = indexOfField( key );
+      if ( -1 == index )
+      {
+        return null;
+      }
+      final Object previous = getFieldValue( index );
+      removeField( index );
+      return previous;
+    }
+
+    @Override
+    public void clear()
+    {
+      Arrays.fill( _fieldNames, 0, _fieldCount, null );
+      if ( null != _objectValues )
+      {
+        Arrays.fill( _objectValues, 0, _fieldCount, null );
+      }
+      _fieldCount = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet()
+    {
+      if ( null == _entrySet )
+      {
+        _entrySet = new AbstractSet<Map.Entry<String, Object>>()
+        {
+          @Override
+          public int size()
+          {
+            return AdditionalFields.this.size();
+          }
+
+          @Override
+          public void clear()
+          {
+            AdditionalFields.this.clear();
+          }
+
+          @Override
+          public Iterator<Map.Entry<String, Object>> iterator()
+          {
+            return new FieldIterator();
+          }
+        };
+      }
+      return _entrySet;
+    }
+  }
+
+  /**
+   * Iterates over the fields set on the message followed by the default fields that the message does not override.
+   */
+  private final class FieldIterator
+    implements Iterator<Map.Entry<String, Object>>
+  {
+    private int _next;
+    private int _last = -1;
+    private int _nextDefault;
+    private boolean _lastIsDefault;
+
+    @Override
+    public boolean hasNext()
+    {
+      return ( !_lastIsDefault && _next < _fieldCount ) || -1 != nextDefaultField( _nextDefault );
+    }
+
+    @Override
+    public Map.Entry<String, Object> next()
+    {
+      // Fields set on the message while the defaults are iterated override defaults and are not visited again
+      if ( !_lastIsDefault && _next < _fieldCount )
+      {
+        _last = _next++;
+        return new FieldEntry( _fieldNames[ _last ] );
+      }
+      final int index = nextDefaultField( _nextDefault );
+      if ( -1 == index )
+      {
+        throw new NoSuchElementException();
+      }
+      _lastIsDefault = true;
+      _last = index;
+      _nextDefault = index + 1;
+      return new FieldEntry( _template.getFieldName( index ) );
+    }
+
+    @Override
+    public void remove()
+    {
+      if ( -1 == _last )
+      {
+        throw new IllegalStateException();
+      }
+      if ( _lastIsDefault )
+      {
+        throw new UnsupportedOperationException( "Default fields can not be removed from a message" );
+      }
+      removeField( _last );
+      _next = _last;
+      _last = -1;
+    }
+  }
+
+  /**
+   * An entry that reads and writes the field by name so that it remains valid as other fields are removed.
+   */
+  private final class FieldEntry
+    implements Map.Entry<String, Object>
+  {
+    private final String _name;
+
+    FieldEntry( final String name )
+    {
+      _name = name;
+    }
+
+    @Override
+    public String getKey()
+    {
+      return _name;
+    }
+
+    @Override
+    public Object getValue()
+    {
+      return getAdditionalFields().get( _name );
+    }
+
+    @Override
+    public Object setValue( final Object value )
+    {
+      return getAdditionalFields().put( _name, value );
+    }
+
+    @Override
+    public boolean equals( final Object o )
+    {
+      if ( !( o instanceof Map.Entry ) )
+      {
+        return false;
+      }
+      final Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+      final Object value = getValue();
+      return _name.equals( other.getKey() ) &&
+             ( null == value ? null == other.getValue() : value.equals( other.getValue() ) );
+    }
+
+    @Override
+    public int hashCode()
+    {
+      final Object value = getValue();
+      return _name.hashCode() ^ ( null == value ? 0 : value.hashCode() );
+    }
+
+    @Override
+    public String toString()
+    {
+      return _name + "=" + getValue();
+    }
+  }
 }
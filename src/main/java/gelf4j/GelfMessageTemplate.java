@@ -0,0 +1,171 @@
+package gelf4j;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The default fields of a connection compiled once so that they are not copied into and serialized from every
+ * message. Default values for the standard fields are copied onto each message, as they are cheap to set, while
+ * the default additional fields are kept as a json fragment that is spliced into the encoded message.
+ */
+final class GelfMessageTemplate
+{
+  private final long _version;
+  private final String _defaultHost;
+  private final GelfMessage _prototype;
+  private final String _host;
+  private final String _facility;
+  private final byte[] _prefix;
+  private final byte[] _fields;
+  private final String[] _fieldNames;
+
+  /**
+   * @param defaultFields   the default fields of the configuration.
+   * @param version         the version of the default fields.
+   * @param defaultHost     the host set on messages when the default fields do not specify a host.
+   * @param defaultFacility the facility used when the default fields do not specify a facility.
+   */
+  GelfMessageTemplate( final Map<String, Object> defaultFields,
+                       final long version,
+                       final String defaultHost,
+                       final String defaultFacility )
+  {
+    _version = version;
+    _defaultHost = defaultHost;
+    _prototype = new GelfMessage();
+    for ( final Map.Entry<String, Object> entry : defaultFields.entrySet() )
+    {
+      GelfMessageUtil.setValue( _prototype, entry.getKey(), entry.getValue() );
+    }
+    _prototype.getAdditionalFields().remove( GelfEncoder.ID_NAME );
+    _host = null != _prototype.getHost() ? _prototype.getHost() : defaultHost;
+    _facility = _prototype.getFacility();
+
+    final GelfJsonWriter writer = new GelfJsonWriter( 256 );
+    writer.beginObject();
+    writer.name( "version" );
+    writer.string( GelfEncoder.GELF_VERSION );
+    writer.name( "host" );
+    writer.string( _host );
+    writer.name( "facility" );
+    writer.string( null != _facility ? _facility : defaultFacility );
+    _prefix = writer.toByteArray();
+
+    writer.reset();
+    writer.beginObject();
+    for ( final Map.Entry<String, Object> entry : _prototype.getAdditionalFields().entrySet() )
+    {
+      writer.additionalName( entry.getKey() );
+      writer.value( entry.getValue() );
+    }
+    // Strip the braces so that the fields can be spliced into a message
+    final byte[] fields = writer.toByteArray();
+    _fields = Arrays.copyOfRange( fields, 1, fields.length );
+    _fieldNames = _prototype.getAdditionalFields().keySet().toArray( new String[ 0 ] );
+  }
+
+  /**
+   * @return true if the template was compiled from the supplied version of the default fields and default host.
+   */
+  boolean isCompiledFrom( final long version, final String defaultHost )
+  {
+    return _version == version && _defaultHost == defaultHost;
+  }
+
+  /**
+   * Copy the default values of the standard fields onto the message and associate the message with the template.
+   */
+  void apply( final GelfMessage message )
+  {
+    final GelfMessage prototype = _prototype;
+    message.setHost( _host );
+    message.setFacility( _facility );
+    if ( null != prototype.getLevel() )
+    {
+      message.setLevel( prototype.getLevel() );
+    }
+    if ( prototype.hasJavaTimestamp() )
+    {
+      message.setJavaTimestamp( prototype.getJavaTimestampMillis() );
+    }
+    if ( prototype.hasLine() )
+    {
+      message.setLine( prototype.getLineNumber() );
+    }
+    if ( null != prototype.getFile() )
+    {
+      message.setFile( prototype.getFile() );
+    }
+    if ( null != prototype.getShortMessage() )
+    {
+      message.setShortMessage( prototype.getShortMessage() );
+      message.setFullMessage( prototype.getFullMessage() );
+    }
+    message.setTemplate( this );
+  }
+
+  /**
+   * @return the default additional fields, keyed without the underscore prefix.
+   */
+  Map<String, Object> getAdditionalFields()
+  {
+    return _prototype.getAdditionalFields();
+  }
+
+  /**
+   * @return the number of default additional fields.
+   */
+  int getFieldCount()
+  {
+    return _fieldNames.length;
+  }
+
+  String getFieldName( final int index )
+  {
+    return _fieldNames[ index ];
+  }
+
+  /**
+   * @return true if the encoded version, host and facility fields can be used for the message, which is the case
+   * unless the host or facility of the message has been changed since the template was applied.
+   */
+  boolean hasPrefixFor( final GelfMessage message )
+  {
+    return _host == message.getHost() && _facility == message.getFacility();
+  }
+
+  /**
+   * @return the encoded start of a message: the opening brace and the version, host and facility fields.
+   */
+  byte[] getPrefix()
+  {
+    return _prefix;
+  }
+
+  /**
+   * @return true if the encoded additional fields can be used for the message, which is the case unless the message
+   * sets any of the default additional fields itself.
+   */
+  boolean hasFieldsFor( final GelfMessage message )
+  {
+    if ( 0 != message.getFieldCount() )
+    {
+      for ( final String name : _fieldNames )
+      {
+        if ( -1 != message.indexOfField( name ) )
+        {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the encoded default additional fields separated by commas, or an empty array if there are none.
+   */
+  byte[] getFields()
+  {
+    return _fields;
+  }
+}
@@ -11,6 +11,7 @@ import java.text.SimpleDateFormat;
 import java.util.Enumeration;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A set of utility methods for constructing the Gelf messages.
@@ -19,6 +20,10 @@ public final class GelfMessageUtil
 {
   static final int MAX_SHORT_MESSAGE_LENGTH = 250;
   private static final Map<String, DateFormat> c_formats = new WeakHashMap<String, DateFormat>();
+  private static volatile String c_localHost;
+  // The host used while the name of the local host is looked up in the background
+  private static volatile String c_provisionalHost;
+  private static final AtomicBoolean c_lookupStarted = new AtomicBoolean();
 
   private GelfMessageUtil()
   {
@@ -133,6 +138,32 @@ public final class GelfMessageUtil
     }
   }
 
+  /**
+   * Set a value without boxing it when the key names an additional field.
+   */
+  public static void setValue( final GelfMessage message, final String key, final long value )
+  {
+    if( isStandardField( key ) )
+    {
+      setValue( message, key, (Object) value );
+    }
+    else
+    {
+      message.addField( key, value );
+    }
+  }
+
+  private static boolean isStandardField( final String key )
+  {
+    return key.equals( GelfTargetConfig.FIELD_LEVEL ) ||
+           key.equals( GelfTargetConfig.FIELD_FACILITY ) ||
+           key.startsWith( GelfTargetConfig.FIELD_TIMESTAMP_PREFIX ) ||
+           key.equals( GelfTargetConfig.FIELD_LINE ) ||
+           key.equals( GelfTargetConfig.FIELD_FILE ) ||
+           key.equals( GelfTargetConfig.FIELD_HOST ) ||
+           key.equals( GelfTargetConfig.FIELD_MESSAGE );
+  }
+
   public static String truncateShortMessage( final String message )
   {
     if ( null == message )
@@ -149,29 +180,116 @@ public final class GelfMessageUtil
     }
   }
 
+  /**
+   * @return the name of the local host. The name is looked up once as the canonical name lookup may block.
+   */
   static String getLocalHost()
     throws IOException
   {
-    try
+    String localHost = c_localHost;
+    if( null == localHost )
     {
-      return InetAddress.getLocalHost().getCanonicalHostName();
+      localHost = lookupLocalHost();
+      c_localHost = localHost;
     }
-    catch( final UnknownHostException uhe )
+    return localHost;
+  }
+
+  /**
+   * Start looking up the name of the local host on a background thread, unless it has already been started.
+   */
+  static void lookupLocalHostInBackground()
+  {
+    if( null == c_localHost && c_lookupStarted.compareAndSet( false, true ) )
     {
-      final Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-      while( interfaces.hasMoreElements() )
+      final Thread thread = new Thread( new Runnable()
       {
-        final NetworkInterface networkInterface = interfaces.nextElement();
-        if( null != networkInterface )
+        public void run()
         {
-          final Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
-          if( addresses.hasMoreElements() )
+          try
           {
-            return addresses.nextElement().getHostAddress();
+            getLocalHost();
+          }
+          catch( final IOException ioe )
+          {
+            //ignore
           }
         }
+      }, "gelf4j-localhost" );
+      thread.setDaemon( true );
+      thread.start();
+    }
+  }
+
+  /**
+   * @return the name of the local host if it has been looked up, otherwise the address of a network interface,
+   * which is found without a DNS lookup, while the name is looked up in the background.
+   */
+  static String getLocalHostWithoutBlocking()
+  {
+    final String localHost = c_localHost;
+    if( null != localHost )
+    {
+      return localHost;
+    }
+    lookupLocalHostInBackground();
+    String provisionalHost = c_provisionalHost;
+    if( null == provisionalHost )
+    {
+      try
+      {
+        provisionalHost = findInterfaceAddress();
+      }
+      catch( final IOException ioe )
+      {
+        //ignore
+      }
+      if( null == provisionalHost )
+      {
+        provisionalHost = InetAddress.getLoopbackAddress().getHostAddress();
+      }
+      c_provisionalHost = provisionalHost;
+    }
+    return provisionalHost;
+  }
+
+  private static String lookupLocalHost()
+    throws IOException
+  {
+    try
+    {
+      return InetAddress.getLocalHost().getCanonicalHostName();
+    }
+    catch( final UnknownHostException uhe )
+    {
+      final String address = findInterfaceAddress();
+      if( null != address )
+      {
+        return address;
       }
       throw uhe;
     }
   }
+
+  /**
+   * @return the first address of a network interface, or null if there are none.
+   */
+  private static String findInterfaceAddress()
+    throws IOException
+  {
+    final Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+    while( null != interfaces && interfaces.hasMoreElements() )
+    {
+      final NetworkInterface networkInterface = interfaces.nextElement();
+      if( null != networkInterface )
+      {
+        final Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+        if( addresses.hasMoreElements() )
+        {
+          return addresses.nextElement().getHostAddress();
+        }
+      }
+    }
+    return null;
+  }
 }
@@ -0,0 +1,114 @@
+package gelf4j;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small lock-free pool of objects that are expensive to create, such as deflaters and json writers. Unlike a
+ * thread local the number of retained objects is bounded by the size of the pool rather than the number of threads,
+ * objects are still reused when every message is logged from a new or virtual thread, and closing the pool
+ * releases every retained object.
+ */
+abstract class GelfObjectPool<T>
+{
+  // Enough objects for every core to be encoding at once, with some slack for threads that are descheduled
+  static final int DEFAULT_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+  private final AtomicReferenceArray<T> _slots;
+  private volatile boolean _closed;
+
+  GelfObjectPool( final int size )
+  {
+    _slots = new AtomicReferenceArray<T>( size );
+  }
+
+  /**
+   * @return a new object, used when the pool is empty.
+   */
+  protected abstract T create();
+
+  /**
+   * Prepare an object that has been released for reuse.
+   *
+   * @return false if the object should be discarded rather than retained.
+   */
+  protected boolean recycle( final T object )
+  {
+    return true;
+  }
+
+  /**
+   * Release the resources held by an object that is discarded.
+   */
+  protected void dispose( final T object )
+  {
+  }
+
+  /**
+   * Take an object from the pool, creating a new object if the pool is empty.
+   */
+  final T acquire()
+  {
+    final int length = _slots.length();
+    final int hint = getHint( length );
+    for ( int i = 0; i < length; i++ )
+    {
+      final T object = _slots.getAndSet( ( hint + i ) % length, null );
+      if ( null != object )
+      {
+        return object;
+      }
+    }
+    return create();
+  }
+
+  /**
+   * Return an object to the pool. The object is disposed of if it can not be recycled, the pool is full or the
+   * pool has been closed.
+   */
+  final void release( final T object )
+  {
+    if ( !_closed && recycle( object ) )
+    {
+      final int length = _slots.length();
+      final int hint = getHint( length );
+      for ( int i = 0; i < length; i++ )
+      {
+        final int index = ( hint + i ) % length;
+        if ( _slots.compareAndSet( index, null, object ) )
+        {
+          // The pool may have been drained by a close that started after the check above
+          if ( _closed && _slots.compareAndSet( index, object, null ) )
+          {
+            dispose( object );
+          }
+          return;
+        }
+      }
+    }
+    dispose( object );
+  }
+
+  /**
+   * Dispose of every retained object. Objects that are in use are disposed of when they are released.
+   */
+  final void close()
+  {
+    _closed = true;
+    for ( int i = 0; i < _slots.length(); i++ )
+    {
+      final T object = _slots.getAndSet( i, null );
+      if ( null != object )
+      {
+        dispose( object );
+      }
+    }
+  }
+
+  /**
+   * @return the slot at which to start searching, stable for a thread to reduce contention.
+   */
+  private static int getHint( final int length )
+  {
+    return (int) ( ( Thread.currentThread().getId() & Long.MAX_VALUE ) % length );
+  }
+}
@@ -0,0 +1,200 @@
+package gelf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of messages from each logger using a token bucket per logger. The rate for a logger is taken
+ * from the longest matching prefix in the configured rates, falling back to the default rate. Buckets that have
+ * refilled are evicted when the suppressed message summaries are flushed, so the buckets of loggers that are no
+ * longer used do not accumulate.
+ */
+final class GelfRateLimiter
+{
+  private final long _defaultRate;
+  private final long _burst;
+  private final String[] _prefixes;
+  private final long[] _rates;
+  private final ConcurrentMap<String, Bucket> _buckets = new ConcurrentHashMap<String, Bucket>();
+
+  /**
+   * @param defaultRate the messages per second permitted for loggers that do not match a prefix, or 0 for no limit.
+   * @param burst       the number of messages that may be sent at once, or 0 to use one second's worth of messages.
+   * @param rates       a comma separated list of prefix=rate pairs, or null.
+   */
+  GelfRateLimiter( final long defaultRate, final long burst, final String rates )
+  {
+    if ( defaultRate < 0 || burst < 0 )
+    {
+      throw new IllegalArgumentException( "rateLimit and rateLimitBurst must not be negative" );
+    }
+    _defaultRate = defaultRate;
+    _burst = burst;
+    final List<String> prefixes = new ArrayList<String>();
+    if ( null != rates )
+    {
+      for ( final String entry : rates.trim().split( "[,\\s]+" ) )
+      {
+        if ( 0 != entry.length() )
+        {
+          final int separator = entry.lastIndexOf( '=' );
+          if ( -1 == separator )
+          {
+            throw new IllegalArgumentException( "Invalid rate limit " + entry );
+          }
+          prefixes.add( entry );
+        }
+      }
+    }
+    // Longest prefixes first so the first match is the most specific
+    Collections.sort( prefixes, new Comparator<String>()
+    {
+      public int compare( final String o1, final String o2 )
+      {
+        return o2.lastIndexOf( '=' ) - o1.lastIndexOf( '=' );
+      }
+    } );
+    _prefixes = new String[ prefixes.size() ];
+    _rates = new long[ prefixes.size() ];
+    for ( int i = 0; i < _prefixes.length; i++ )
+    {
+      final String entry = prefixes.get( i );
+      final int separator = entry.lastIndexOf( '=' );
+      _prefixes[ i ] = entry.substring( 0, separator );
+      try
+      {
+        _rates[ i ] = Long.parseLong( entry.substring( separator + 1 ) );
+      }
+      catch ( final NumberFormatException nfe )
+      {
+        throw new IllegalArgumentException( "Invalid rate limit " + entry );
+      }
+      if ( _rates[ i ] < 0 )
+      {
+        throw new IllegalArgumentException( "Invalid rate limit " + entry );
+      }
+    }
+  }
+
+  /**
+   * @return the bucket for the key, or null if messages for the key are not limited.
+   */
+  Bucket getBucket( final String key )
+  {
+    final Bucket bucket = _buckets.get( key );
+    if ( null != bucket )
+    {
+      return bucket.isUnlimited() ? null : bucket;
+    }
+    final long rate = getRate( key );
+    final Bucket candidate = new Bucket( key, rate, 0 != _burst ? _burst : Math.max( 1, rate ) );
+    final Bucket existing = _buckets.putIfAbsent( key, candidate );
+    final Bucket result = null != existing ? existing : candidate;
+    return result.isUnlimited() ? null : result;
+  }
+
+  Collection<Bucket> getBuckets()
+  {
+    return _buckets.values();
+  }
+
+  /**
+   * Remove the bucket if it is idle, as a new bucket for the key would behave identically.
+   *
+   * @param now the current value of {@link System#nanoTime()}.
+   * @return true if the bucket was removed. The caller must then report any messages that the bucket suppressed
+   * while it was being removed.
+   */
+  boolean evictIfIdle( final Bucket bucket, final long now )
+  {
+    return bucket.isIdle( now ) && _buckets.remove( bucket.getKey(), bucket );
+  }
+
+  long getRate( final String key )
+  {
+    for ( int i = 0; i < _prefixes.length; i++ )
+    {
+      if ( key.startsWith( _prefixes[ i ] ) )
+      {
+        return _rates[ i ];
+      }
+    }
+    return _defaultRate;
+  }
+
+  /**
+   * A token bucket implemented as a theoretical arrival time so that acquiring a token is a single CAS.
+   */
+  static final class Bucket
+  {
+    private final String _key;
+    private final long _intervalNanos;
+    private final long _toleranceNanos;
+    private final AtomicLong _nextArrival = new AtomicLong( Long.MIN_VALUE );
+    private final AtomicLong _suppressedCount = new AtomicLong();
+
+    Bucket( final String key, final long rate, final long burst )
+    {
+      _key = key;
+      _intervalNanos = 0 != rate ? Math.max( 1, TimeUnit.SECONDS.toNanos( 1 ) / rate ) : 0;
+      _toleranceNanos = _intervalNanos * ( burst - 1 );
+    }
+
+    String getKey()
+    {
+      return _key;
+    }
+
+    boolean isUnlimited()
+    {
+      return 0 == _intervalNanos;
+    }
+
+    /**
+     * @param now the current value of {@link System#nanoTime()}.
+     * @return true if the bucket has refilled and has no suppressed messages to report.
+     */
+    boolean isIdle( final long now )
+    {
+      final long nextArrival = _nextArrival.get();
+      return ( Long.MIN_VALUE == nextArrival || nextArrival - now <= 0 ) && 0 == _suppressedCount.get();
+    }
+
+    /**
+     * @param now the current value of {@link System#nanoTime()}.
+     * @return true if a message may be sent, otherwise the message is counted as suppressed.
+     */
+    boolean tryAcquire( final long now )
+    {
+      while ( true )
+      {
+        final long nextArrival = _nextArrival.get();
+        final long start = Long.MIN_VALUE == nextArrival || nextArrival - now < 0 ? now : nextArrival;
+        if ( start - now > _toleranceNanos )
+        {
+          _suppressedCount.incrementAndGet();
+          return false;
+        }
+        if ( _nextArrival.compareAndSet( nextArrival, start + _intervalNanos ) )
+        {
+          return true;
+        }
+      }
+    }
+
+    /**
+     * @return the number of messages suppressed since the last call.
+     */
+    long takeSuppressedCount()
+    {
+      return 0 != _suppressedCount.get() ? _suppressedCount.getAndSet( 0 ) : 0;
+    }
+  }
+}
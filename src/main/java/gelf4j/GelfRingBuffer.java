@@ -0,0 +1,326 @@
+package gelf4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded ring buffer of messages that sits between the logging threads and the sender thread.
+ * The slots are allocated up front so publishing a message never allocates.
+ *
+ * <p>The overload policy decides what happens when a message is published into a full buffer.</p>
+ */
+final class GelfRingBuffer
+{
+  /**
+   * Wait for up to the block timeout for space and then reject the message.
+   */
+  static final int BLOCK = 0;
+  /**
+   * Reject the message.
+   */
+  static final int DROP_NEWEST = 1;
+  /**
+   * Evict the oldest message to make space.
+   */
+  static final int DROP_OLDEST = 2;
+  /**
+   * Evict the oldest of the least severe messages if it is less severe than the message, otherwise reject the message.
+   */
+  static final int SHED_BY_SEVERITY = 3;
+
+  private static final SyslogLevel[] LEVELS = SyslogLevel.values();
+
+  private final GelfMessage[] _slots;
+  private final int _policy;
+  private final long _blockTimeoutNanos;
+  private final ReentrantLock _lock = new ReentrantLock();
+  private final Condition _notEmpty = _lock.newCondition();
+  private final Condition _notFull = _lock.newCondition();
+  // The number of buffered messages at each level, used when shedding by severity
+  private final int[] _levelCounts = new int[ LEVELS.length ];
+  private final AtomicLong _droppedCount = new AtomicLong();
+  private int _head;
+  private int _size;
+  private boolean _closed;
+
+  GelfRingBuffer( final int capacity )
+  {
+    this( capacity, DROP_NEWEST, 0 );
+  }
+
+  /**
+   * @param capacity          the number of messages that can be buffered.
+   * @param policy            the overload policy.
+   * @param blockTimeoutNanos the maximum time to wait for space when the policy is {@link #BLOCK}.
+   */
+  GelfRingBuffer( final int capacity, final int policy, final long blockTimeoutNanos )
+  {
+    if ( capacity <= 0 )
+    {
+      throw new IllegalArgumentException( "capacity must be greater than 0" );
+    }
+    if ( policy < BLOCK || policy > SHED_BY_SEVERITY )
+    {
+      throw new IllegalArgumentException( "Unknown overload policy " + policy );
+    }
+    _slots = new GelfMessage[ capacity ];
+    _policy = policy;
+    _blockTimeoutNanos = blockTimeoutNanos;
+  }
+
+  /**
+   * @return the number of messages that were rejected or evicted by the overload policy.
+   */
+  long getDroppedCount()
+  {
+    return _droppedCount.get();
+  }
+
+  int capacity()
+  {
+    return _slots.length;
+  }
+
+  int size()
+  {
+    _lock.lock();
+    try
+    {
+      return _size;
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Publish a message into the buffer.
+   *
+   * @param message the message.
+   * @return false if the buffer has been closed or is full and the overload policy rejected the message.
+   */
+  boolean offer( final GelfMessage message )
+  {
+    _lock.lock();
+    try
+    {
+      if ( _closed )
+      {
+        return false;
+      }
+      if ( _size == _slots.length && !makeSpace( message ) )
+      {
+        if ( !_closed )
+        {
+          _droppedCount.incrementAndGet();
+        }
+        return false;
+      }
+      _slots[ ( _head + _size ) % _slots.length ] = message;
+      _size++;
+      _levelCounts[ levelIndex( message ) ]++;
+      _notEmpty.signal();
+      return true;
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Apply the overload policy to a full buffer. Must be called while holding the lock.
+   *
+   * @return true if there is now space for the message.
+   */
+  private boolean makeSpace( final GelfMessage message )
+  {
+    if ( BLOCK == _policy )
+    {
+      long remaining = _blockTimeoutNanos;
+      try
+      {
+        while ( _size == _slots.length && !_closed && remaining > 0 )
+        {
+          remaining = _notFull.awaitNanos( remaining );
+        }
+      }
+      catch ( final InterruptedException ie )
+      {
+        Thread.currentThread().interrupt();
+      }
+      return _size != _slots.length && !_closed;
+    }
+    else if ( DROP_OLDEST == _policy )
+    {
+      evict( 0 );
+      return true;
+    }
+    else if ( SHED_BY_SEVERITY == _policy )
+    {
+      final int level = levelIndex( message );
+      for ( int victimLevel = _levelCounts.length - 1; victimLevel > level; victimLevel-- )
+      {
+        if ( 0 != _levelCounts[ victimLevel ] )
+        {
+          for ( int i = 0; i < _size; i++ )
+          {
+            if ( victimLevel == levelIndex( _slots[ ( _head + i ) % _slots.length ] ) )
+            {
+              evict( i );
+              return true;
+            }
+          }
+        }
+      }
+      return false;
+    }
+    else
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Remove the message at the supplied position, counted from the oldest message, and close the gap by moving
+   * whichever of the older or newer messages are fewer by one slot. Evicting the oldest message just advances the
+   * head. Must be called while holding the lock.
+   */
+  private void evict( final int position )
+  {
+    final int length = _slots.length;
+    _levelCounts[ levelIndex( _slots[ ( _head + position ) % length ] ) ]--;
+    if ( position < _size / 2 )
+    {
+      for ( int i = position; i > 0; i-- )
+      {
+        _slots[ ( _head + i ) % length ] = _slots[ ( _head + i - 1 ) % length ];
+      }
+      _slots[ _head ] = null;
+      _head = ( _head + 1 ) % length;
+    }
+    else
+    {
+      for ( int i = position; i < _size - 1; i++ )
+      {
+        _slots[ ( _head + i ) % length ] = _slots[ ( _head + i + 1 ) % length ];
+      }
+      _slots[ ( _head + _size - 1 ) % length ] = null;
+    }
+    _size--;
+    _droppedCount.incrementAndGet();
+  }
+
+  /**
+   * Messages without a level are treated as the least severe.
+   */
+  private static int levelIndex( final GelfMessage message )
+  {
+    final SyslogLevel level = message.getLevel();
+    return null != level ? level.ordinal() : LEVELS.length - 1;
+  }
+
+  /**
+   * Move as many messages as will fit into the supplied batch, waiting until at least one message is available.
+   *
+   * @param batch the array to copy messages into.
+   * @return the number of messages copied, or 0 if the buffer has been closed and fully drained.
+   */
+  int drainTo( final GelfMessage[] batch )
+    throws InterruptedException
+  {
+    return drainTo( batch, 0 );
+  }
+
+  /**
+   * Move as many messages as will fit into the supplied batch, waiting until at least one message is available
+   * and then for up to the linger time for the batch to fill.
+   *
+   * @param batch       the array to copy messages into.
+   * @param lingerNanos the maximum time to wait for the batch to fill once a message is available.
+   * @return the number of messages copied, or 0 if the buffer has been closed and fully drained.
+   */
+  int drainTo( final GelfMessage[] batch, final long lingerNanos )
+    throws InterruptedException
+  {
+    _lock.lock();
+    try
+    {
+      while ( 0 == _size && !_closed )
+      {
+        _notEmpty.await();
+      }
+      long remaining = lingerNanos;
+      while ( _size < batch.length && !_closed && remaining > 0 )
+      {
+        remaining = _notEmpty.awaitNanos( remaining );
+      }
+      return take( batch );
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Move as many messages as will fit into the supplied batch without waiting.
+   *
+   * @param batch the array to copy messages into.
+   * @return the number of messages copied, or 0 if the buffer is empty.
+   */
+  int poll( final GelfMessage[] batch )
+  {
+    _lock.lock();
+    try
+    {
+      return take( batch );
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Move messages into the batch. Must be called while holding the lock.
+   */
+  private int take( final GelfMessage[] batch )
+  {
+    final int count = Math.min( _size, batch.length );
+    for ( int i = 0; i < count; i++ )
+    {
+      final GelfMessage message = _slots[ _head ];
+      batch[ i ] = message;
+      _levelCounts[ levelIndex( message ) ]--;
+      _slots[ _head ] = null;
+      _head = ( _head + 1 ) % _slots.length;
+    }
+    _size -= count;
+    if ( 0 != count )
+    {
+      _notFull.signalAll();
+    }
+    return count;
+  }
+
+  /**
+   * Stop accepting messages. Messages already in the buffer can still be drained.
+   */
+  void close()
+  {
+    _lock.lock();
+    try
+    {
+      _closed = true;
+      _notEmpty.signalAll();
+      _notFull.signalAll();
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package gelf4j;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which messages to keep when sampling by level. The decision for a message with a sampling key is a
+ * hash of the key so that every message with the same key, such as a trace id, is either kept or discarded
+ * together. Messages without a key are sampled at random. Deciding never allocates.
+ */
+final class GelfSampler
+{
+  // Keep every message. Compared against a hash that has been shifted to be non-negative
+  private static final long KEEP_ALL = Long.MAX_VALUE;
+
+  private final long[] _thresholds;
+
+  /**
+   * @param rates a comma separated list of level=rate pairs where the rate is the fraction of messages kept,
+   *              between 0 and 1. Levels that are not listed are not sampled.
+   */
+  GelfSampler( final String rates )
+  {
+    _thresholds = new long[ SyslogLevel.values().length ];
+    Arrays.fill( _thresholds, KEEP_ALL );
+    for ( final String entry : rates.trim().split( "[,\\s]+" ) )
+    {
+      if ( 0 == entry.length() )
+      {
+        continue;
+      }
+      final int separator = entry.indexOf( '=' );
+      final SyslogLevel level = -1 != separator ? GelfMessageUtil.parseLevel( entry.substring( 0, separator ) ) : null;
+      final double rate;
+      try
+      {
+        rate = null != level ? Double.parseDouble( entry.substring( separator + 1 ) ) : -1;
+      }
+      catch ( final NumberFormatException nfe )
+      {
+        throw new IllegalArgumentException( "Invalid sampling rate " + entry );
+      }
+      if ( rate < 0 || rate > 1 )
+      {
+        throw new IllegalArgumentException( "Invalid sampling rate " + entry );
+      }
+      _thresholds[ level.ordinal() ] = rate >= 1 ? KEEP_ALL : (long) ( rate * KEEP_ALL );
+    }
+  }
+
+  /**
+   * @param level the level of the message.
+   * @param key   the value that groups messages that are kept together, or null to sample at random.
+   * @return true if the message should be kept.
+   */
+  boolean isSampled( final SyslogLevel level, final String key )
+  {
+    final long threshold = _thresholds[ level.ordinal() ];
+    if ( KEEP_ALL == threshold )
+    {
+      return true;
+    }
+    final long hash = null != key ? mix( key.hashCode() ) : ThreadLocalRandom.current().nextLong();
+    return ( hash >>> 1 ) < threshold;
+  }
+
+  /**
+   * Spread the 32 bit hash code of the key over 64 bits so the decision is uniform.
+   */
+  private static long mix( final long value )
+  {
+    long z = value + 0x9E3779B97F4A7C15L;
+    z = ( z ^ ( z >>> 30 ) ) * 0xBF58476D1CE4E5B9L;
+    z = ( z ^ ( z >>> 27 ) ) * 0x94D049BB133111EBL;
+    return z ^ ( z >>> 31 );
+  }
+}
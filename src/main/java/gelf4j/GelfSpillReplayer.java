@@ -0,0 +1,97 @@
+package gelf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Periodically replays spilled payloads on a dedicated thread. Without it spilled payloads would only be replayed
+ * when another message is sent, so they would stay spilled after the server recovers if nothing more is logged.
+ * The replay is also the probe that closes the circuit breaker of a recovering target.
+ */
+final class GelfSpillReplayer
+  implements Runnable
+{
+  // The milliseconds between attempts to replay the spilled payloads
+  static final long REPLAY_INTERVAL = 1000L;
+
+  private final GelfConnection _connection;
+  private final long _intervalNanos;
+  private final Thread _thread;
+  private final ReentrantLock _lock = new ReentrantLock();
+  private final Condition _closed = _lock.newCondition();
+  // Volatile so that a replay of a large backlog stops promptly when the replayer is closed
+  private volatile boolean _closing;
+
+  GelfSpillReplayer( final GelfConnection connection, final long intervalMillis )
+  {
+    _connection = connection;
+    _intervalNanos = TimeUnit.MILLISECONDS.toNanos( intervalMillis );
+    _thread = new Thread( this, "gelf4j-spill-replay" );
+    _thread.setDaemon( true );
+  }
+
+  void start()
+  {
+    _thread.start();
+  }
+
+  /**
+   * Stop the replayer. Payloads that are still spilled remain in the store.
+   */
+  void close()
+    throws InterruptedException
+  {
+    _lock.lock();
+    try
+    {
+      _closing = true;
+      _closed.signalAll();
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+    _thread.join();
+  }
+
+  public void run()
+  {
+    while ( awaitInterval() )
+    {
+      // Keep replaying while every payload of a round is sent so that a large backlog is not spread over intervals
+      boolean backlog;
+      do
+      {
+        backlog = _connection.replaySpilled();
+      }
+      while ( backlog && !_closing );
+    }
+  }
+
+  /**
+   * @return false if the replayer was closed while waiting.
+   */
+  private boolean awaitInterval()
+  {
+    _lock.lock();
+    try
+    {
+      long remaining = _intervalNanos;
+      while ( !_closing && remaining > 0 )
+      {
+        remaining = _closed.awaitNanos( remaining );
+      }
+      return !_closing;
+    }
+    catch ( final InterruptedException ie )
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+}
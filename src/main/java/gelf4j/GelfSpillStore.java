@@ -0,0 +1,437 @@
+package gelf4j;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A queue of encoded payloads stored in memory-mapped segment files. Payloads are spilled into the store
+ * when they can not be sent and are replayed in order once sending succeeds again.
+ *
+ * <p>Each record is a 4 byte length followed by the payload. A length of 0 marks the end of the records in
+ * a segment and a negative length marks a record that has already been replayed, so that the store can be
+ * recovered after a restart. Segments are deleted once every record in them has been replayed.</p>
+ */
+final class GelfSpillStore
+{
+  static final String SEGMENT_SUFFIX = ".spill";
+  private static final String LOCK_FILE = "spill.lock";
+  private static final int RECORD_HEADER_SIZE = 4;
+
+  private final File _directory;
+  private final int _segmentSize;
+  private final int _maxSegments;
+  private final ReentrantLock _lock = new ReentrantLock();
+  private final LinkedList<Segment> _segments = new LinkedList<Segment>();
+  private final AtomicLong _droppedCount = new AtomicLong();
+  private RandomAccessFile _lockFile;
+  private FileLock _fileLock;
+  private long _nextSequence;
+  private volatile int _pendingCount;
+
+  GelfSpillStore( final File directory, final int segmentSize, final long maxSize )
+    throws IOException
+  {
+    if ( segmentSize <= RECORD_HEADER_SIZE )
+    {
+      throw new IllegalArgumentException( "spillSegmentSize must be greater than " + RECORD_HEADER_SIZE );
+    }
+    if ( maxSize < segmentSize )
+    {
+      throw new IllegalArgumentException( "spillMaxSize must not be less than spillSegmentSize" );
+    }
+    if ( !directory.isDirectory() && !directory.mkdirs() )
+    {
+      throw new IOException( "Unable to create spill directory " + directory );
+    }
+    _directory = directory;
+    _segmentSize = segmentSize;
+    _maxSegments = (int) Math.min( Integer.MAX_VALUE, maxSize / segmentSize );
+    open();
+  }
+
+  /**
+   * @return true if there are no payloads waiting to be replayed.
+   */
+  boolean isEmpty()
+  {
+    return 0 == _pendingCount;
+  }
+
+  int getPendingCount()
+  {
+    return _pendingCount;
+  }
+
+  /**
+   * @return the number of payloads that were discarded as the store was full.
+   */
+  long getDroppedCount()
+  {
+    return _droppedCount.get();
+  }
+
+  /**
+   * Add a payload to the end of the store.
+   *
+   * @return false if the payload could not be stored because the store is full or the payload is larger than a segment.
+   */
+  boolean append( final byte[] payload )
+  {
+    final int recordSize = RECORD_HEADER_SIZE + payload.length;
+    _lock.lock();
+    try
+    {
+      if ( 0 == payload.length || recordSize > _segmentSize )
+      {
+        _droppedCount.incrementAndGet();
+        return false;
+      }
+      ensureOpen();
+      Segment segment = _segments.peekLast();
+      if ( null == segment || !segment.hasCapacity( recordSize ) )
+      {
+        purgeConsumedSegments();
+        if ( _segments.size() >= _maxSegments )
+        {
+          _droppedCount.incrementAndGet();
+          return false;
+        }
+        segment = newSegment();
+      }
+      segment.append( payload );
+      _pendingCount++;
+      return true;
+    }
+    catch ( final IOException ioe )
+    {
+      _droppedCount.incrementAndGet();
+      return false;
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * @return the oldest payload in the store without removing it, or null if the store is empty.
+   */
+  byte[] peek()
+  {
+    _lock.lock();
+    try
+    {
+      final Segment segment = _segments.peekFirst();
+      return null != segment ? segment.peek() : null;
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Remove the oldest payload from the store. Called after the payload returned by {@link #peek()} has been sent.
+   */
+  void remove()
+  {
+    _lock.lock();
+    try
+    {
+      final Segment segment = _segments.peekFirst();
+      if ( null != segment && segment.remove() )
+      {
+        _pendingCount--;
+        if ( segment.isConsumed() && segment != _segments.peekLast() )
+        {
+          _segments.removeFirst();
+          segment.delete();
+        }
+      }
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Flush the segments to disk and release the directory. Payloads that have not been replayed remain on disk
+   * and the store is reopened if it is used again.
+   */
+  void close()
+    throws IOException
+  {
+    _lock.lock();
+    try
+    {
+      if ( null != _lockFile )
+      {
+        for ( final Segment segment : _segments )
+        {
+          segment.force();
+        }
+        _segments.clear();
+        _pendingCount = 0;
+        try
+        {
+          _fileLock.release();
+        }
+        finally
+        {
+          _lockFile.close();
+          _lockFile = null;
+          _fileLock = null;
+        }
+      }
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+
+  private void ensureOpen()
+    throws IOException
+  {
+    if ( null == _lockFile )
+    {
+      open();
+    }
+  }
+
+  /**
+   * Lock the directory so that it is not shared with another store and load any segments left by a previous store.
+   */
+  private void open()
+    throws IOException
+  {
+    final RandomAccessFile lockFile = new RandomAccessFile( new File( _directory, LOCK_FILE ), "rw" );
+    FileLock fileLock;
+    try
+    {
+      fileLock = lockFile.getChannel().tryLock();
+    }
+    catch ( final OverlappingFileLockException ofle )
+    {
+      fileLock = null;
+    }
+    if ( null == fileLock )
+    {
+      lockFile.close();
+      throw new IOException( "Spill directory " + _directory + " is in use by another store" );
+    }
+    _lockFile = lockFile;
+    _fileLock = fileLock;
+    _segments.clear();
+    _pendingCount = 0;
+    recover();
+  }
+
+  private void purgeConsumedSegments()
+  {
+    while ( !_segments.isEmpty() && _segments.peekFirst().isConsumed() )
+    {
+      _segments.removeFirst().delete();
+    }
+  }
+
+  private void recover()
+    throws IOException
+  {
+    final File[] files = _directory.listFiles( new FilenameFilter()
+    {
+      public boolean accept( final File dir, final String name )
+      {
+        return name.endsWith( SEGMENT_SUFFIX ) && null != parseSequence( name );
+      }
+    } );
+    final List<Long> sequences = new ArrayList<Long>();
+    if ( null != files )
+    {
+      for ( final File file : files )
+      {
+        sequences.add( parseSequence( file.getName() ) );
+      }
+    }
+    final Long[] sorted = sequences.toArray( new Long[ sequences.size() ] );
+    Arrays.sort( sorted );
+    for ( final Long sequence : sorted )
+    {
+      final Segment segment = new Segment( segmentFile( sequence ) );
+      if ( segment.isConsumed() )
+      {
+        segment.delete();
+      }
+      else
+      {
+        _segments.add( segment );
+        _pendingCount += segment.getPendingCount();
+      }
+      _nextSequence = sequence + 1;
+    }
+  }
+
+  private Segment newSegment()
+    throws IOException
+  {
+    final long sequence = _nextSequence++;
+    final Segment segment = new Segment( segmentFile( sequence ) );
+    _segments.add( segment );
+    return segment;
+  }
+
+  private File segmentFile( final long sequence )
+  {
+    return new File( _directory, String.format( "%020d", sequence ) + SEGMENT_SUFFIX );
+  }
+
+  private static Long parseSequence( final String name )
+  {
+    try
+    {
+      return Long.parseLong( name.substring( 0, name.length() - SEGMENT_SUFFIX.length() ) );
+    }
+    catch ( final NumberFormatException nfe )
+    {
+      return null;
+    }
+  }
+
+  private final class Segment
+  {
+    private final File _file;
+    private final MappedByteBuffer _buffer;
+    private int _readPosition;
+    private int _writePosition;
+    private int _pendingCount;
+
+    Segment( final File file )
+      throws IOException
+    {
+      _file = file;
+      final RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" );
+      try
+      {
+        _buffer = randomAccessFile.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, _segmentSize );
+      }
+      finally
+      {
+        randomAccessFile.close();
+      }
+      scan();
+    }
+
+    /**
+     * Locate the first record that has not been replayed and the end of the records.
+     */
+    private void scan()
+    {
+      int position = 0;
+      boolean seenPending = false;
+      while ( position + RECORD_HEADER_SIZE <= _segmentSize )
+      {
+        final int length = _buffer.getInt( position );
+        if ( 0 == length || Math.abs( length ) > _segmentSize - position - RECORD_HEADER_SIZE )
+        {
+          break;
+        }
+        else if ( length < 0 )
+        {
+          if ( !seenPending )
+          {
+            _readPosition = position + RECORD_HEADER_SIZE - length;
+          }
+        }
+        else
+        {
+          seenPending = true;
+          _pendingCount++;
+        }
+        position += RECORD_HEADER_SIZE + Math.abs( length );
+      }
+      _writePosition = position;
+    }
+
+    int getPendingCount()
+    {
+      return _pendingCount;
+    }
+
+    boolean hasCapacity( final int recordSize )
+    {
+      return _writePosition + recordSize <= _segmentSize;
+    }
+
+    boolean isConsumed()
+    {
+      return 0 == _pendingCount;
+    }
+
+    void append( final byte[] payload )
+    {
+      _buffer.position( _writePosition + RECORD_HEADER_SIZE );
+      _buffer.put( payload );
+      // The length is written last so a partially written record is never seen as complete
+      _buffer.putInt( _writePosition, payload.length );
+      _writePosition += RECORD_HEADER_SIZE + payload.length;
+      if ( _writePosition + RECORD_HEADER_SIZE <= _segmentSize )
+      {
+        _buffer.putInt( _writePosition, 0 );
+      }
+      _pendingCount++;
+    }
+
+    byte[] peek()
+    {
+      if ( isConsumed() )
+      {
+        return null;
+      }
+      final int length = _buffer.getInt( _readPosition );
+      final byte[] payload = new byte[ length ];
+      _buffer.position( _readPosition + RECORD_HEADER_SIZE );
+      _buffer.get( payload );
+      return payload;
+    }
+
+    boolean remove()
+    {
+      if ( isConsumed() )
+      {
+        return false;
+      }
+      final int length = _buffer.getInt( _readPosition );
+      _buffer.putInt( _readPosition, -length );
+      _readPosition += RECORD_HEADER_SIZE + length;
+      _pendingCount--;
+      return true;
+    }
+
+    void force()
+    {
+      _buffer.force();
+    }
+
+    void delete()
+    {
+      if ( !_file.delete() )
+      {
+        // The mapping may prevent deletion on some platforms so fall back to removing it on exit
+        _file.deleteOnExit();
+      }
+    }
+  }
+}
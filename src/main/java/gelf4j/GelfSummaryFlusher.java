@@ -0,0 +1,90 @@
+package gelf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Periodically sends the summaries of messages suppressed by the rate limit on a dedicated thread. Without it
+ * a logger that stays over its limit, or stops logging altogether, would only report the suppressed messages
+ * when the connection is closed.
+ */
+final class GelfSummaryFlusher
+  implements Runnable
+{
+  // The milliseconds between flushes of the suppressed message counts
+  static final long FLUSH_INTERVAL = 10000L;
+
+  private final GelfConnection _connection;
+  private final long _intervalNanos;
+  private final Thread _thread;
+  private final ReentrantLock _lock = new ReentrantLock();
+  private final Condition _closed = _lock.newCondition();
+  private boolean _closing;
+
+  GelfSummaryFlusher( final GelfConnection connection, final long intervalMillis )
+  {
+    _connection = connection;
+    _intervalNanos = TimeUnit.MILLISECONDS.toNanos( intervalMillis );
+    _thread = new Thread( this, "gelf4j-rate-limit" );
+    _thread.setDaemon( true );
+  }
+
+  void start()
+  {
+    _thread.start();
+  }
+
+  /**
+   * Stop the flusher. The caller is responsible for sending the summaries that are still pending.
+   */
+  void close()
+    throws InterruptedException
+  {
+    _lock.lock();
+    try
+    {
+      _closing = true;
+      _closed.signalAll();
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+    _thread.join();
+  }
+
+  public void run()
+  {
+    while ( awaitInterval() )
+    {
+      _connection.sendSuppressedSummaries();
+    }
+  }
+
+  /**
+   * @return false if the flusher was closed while waiting.
+   */
+  private boolean awaitInterval()
+  {
+    _lock.lock();
+    try
+    {
+      long remaining = _intervalNanos;
+      while ( !_closing && remaining > 0 )
+      {
+        remaining = _closed.awaitNanos( remaining );
+      }
+      return !_closing;
+    }
+    catch ( final InterruptedException ie )
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,194 @@
+package gelf4j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A server that messages are sent to, along with the circuit breaker that tracks the outcome of sending to it.
+ */
+final class GelfTarget
+{
+  private final String _host;
+  private final int _port;
+  private final GelfCircuitBreaker _circuitBreaker;
+  private final AtomicLong _discardedCount = new AtomicLong();
+  private volatile InetSocketAddress _address;
+  // The name of the local host, looked up with the address when no host is specified
+  private volatile String _localHost;
+
+  /**
+   * @param host the host, or null to send to the local host.
+   */
+  GelfTarget( final String host, final int port, final GelfCircuitBreaker circuitBreaker )
+  {
+    _host = host;
+    _port = port;
+    _circuitBreaker = circuitBreaker;
+  }
+
+  /**
+   * @return the host, or null if the target is the local host and it has not been resolved.
+   */
+  String getHost()
+  {
+    return null != _host ? _host : _localHost;
+  }
+
+  int getPort()
+  {
+    return _port;
+  }
+
+  /**
+   * @return the most recently resolved address of the target. The same instance is returned until the address
+   * changes so transports can detect a change by identity.
+   * @throws UnknownHostException if the host has not been resolved.
+   */
+  InetSocketAddress getAddress()
+    throws UnknownHostException
+  {
+    final InetSocketAddress address = _address;
+    if ( null == address )
+    {
+      throw new UnknownHostException( toString() );
+    }
+    return address;
+  }
+
+  /**
+   * @return true once the host has been resolved at least once.
+   */
+  boolean isResolved()
+  {
+    return null != _address;
+  }
+
+  /**
+   * Look up the address of the host. Called off the logging path so that logging threads never block on DNS.
+   *
+   * @return true if the address has changed.
+   */
+  boolean resolve()
+  {
+    final InetAddress resolved;
+    try
+    {
+      final String host = null != _host ? _host : GelfMessageUtil.getLocalHost();
+      resolved = InetAddress.getByName( host );
+      _localHost = null != _host ? null : host;
+    }
+    catch ( final IOException ioe )
+    {
+      // Keep using the last known address until the host can be resolved again
+      return false;
+    }
+    final InetSocketAddress address = _address;
+    if ( null == address || !resolved.equals( address.getAddress() ) )
+    {
+      _address = new InetSocketAddress( resolved, _port );
+      return true;
+    }
+    else
+    {
+      return false;
+    }
+  }
+
+  GelfCircuitBreaker getCircuitBreaker()
+  {
+    return _circuitBreaker;
+  }
+
+  /**
+   * Count a payload that the target permanently rejected and that was discarded.
+   */
+  void recordDiscarded()
+  {
+    _discardedCount.incrementAndGet();
+  }
+
+  /**
+   * @return the number of payloads the target permanently rejected.
+   */
+  long getDiscardedCount()
+  {
+    return _discardedCount.get();
+  }
+
+  @Override
+  public String toString()
+  {
+    return ( null != _host ? _host : "localhost" ) + ":" + _port;
+  }
+
+  /**
+   * Create the targets described by the configuration. The targets are a comma or whitespace separated list of
+   * the form host[:port], where IPv6 addresses must be enclosed in square brackets if a port is specified. If no
+   * targets are configured then the configured host and port is the only target.
+   *
+   * @param config the configuration.
+   * @return the targets.
+   */
+  static List<GelfTarget> parseTargets( final GelfTargetConfig config )
+  {
+    final List<GelfTarget> results = new ArrayList<GelfTarget>();
+    final String targets = config.getTargets();
+    if ( null == targets )
+    {
+      results.add( new GelfTarget( config.getConfiguredHost(), config.getPort(), newCircuitBreaker( config ) ) );
+      return results;
+    }
+    for ( final String entry : targets.trim().split( "[,\\s]+" ) )
+    {
+      if ( 0 == entry.length() )
+      {
+        continue;
+      }
+      final String host;
+      final String port;
+      if ( entry.startsWith( "[" ) )
+      {
+        final int end = entry.indexOf( ']' );
+        if ( -1 == end )
+        {
+          throw new IllegalArgumentException( "Invalid target " + entry );
+        }
+        host = entry.substring( 1, end );
+        port = entry.length() > end + 1 && ':' == entry.charAt( end + 1 ) ? entry.substring( end + 2 ) : null;
+      }
+      else
+      {
+        final int separator = entry.lastIndexOf( ':' );
+        final boolean hasPort = -1 != separator && entry.indexOf( ':' ) == separator;
+        host = hasPort ? entry.substring( 0, separator ) : entry;
+        port = hasPort ? entry.substring( separator + 1 ) : null;
+      }
+      try
+      {
+        final int portNumber = null != port ? Integer.parseInt( port ) : config.getPort();
+        results.add( new GelfTarget( host, portNumber, newCircuitBreaker( config ) ) );
+      }
+      catch ( final NumberFormatException nfe )
+      {
+        throw new IllegalArgumentException( "Invalid port in target " + entry );
+      }
+    }
+    if ( results.isEmpty() )
+    {
+      throw new IllegalArgumentException( "No targets specified" );
+    }
+    return results;
+  }
+
+  private static GelfCircuitBreaker newCircuitBreaker( final GelfTargetConfig config )
+  {
+    return new GelfCircuitBreaker( config.getCircuitBreakerFailureThreshold(),
+                                   config.getCircuitBreakerInitialBackoff(),
+                                   config.getCircuitBreakerMaxBackoff() );
+  }
+}
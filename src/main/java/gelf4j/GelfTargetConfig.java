@@ -5,6 +5,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * Configuration about how to create GELF messages in a particular logging framework.
@@ -24,38 +25,96 @@ public class GelfTargetConfig
   public static final String FIELD_MESSAGE = "message";
   public static final String DEFAULT_JSON_CODEC = "gelf4j.SimpleJsonCodec";
 
+  public static final String PROTOCOL_UDP = "udp";
+  public static final String PROTOCOL_TCP = "tcp";
+  public static final String PROTOCOL_HTTP = "http";
+
+  public static final String LOAD_BALANCING_ROUND_ROBIN = "round_robin";
+  public static final String LOAD_BALANCING_HASH = "hash";
+
+  public static final String COMPRESSION_GZIP = "gzip";
+  public static final String COMPRESSION_ZLIB = "zlib";
+  public static final String COMPRESSION_NONE = "none";
+
+  public static final String OVERLOAD_POLICY_BLOCK = "block";
+  public static final String OVERLOAD_POLICY_DROP_NEWEST = "drop_newest";
+  public static final String OVERLOAD_POLICY_DROP_OLDEST = "drop_oldest";
+  public static final String OVERLOAD_POLICY_SHED_BY_SEVERITY = "shed_by_severity";
+
   public static final int DEFAULT_PORT = 12201;
+  public static final int DEFAULT_CHUNK_SIZE = 2 * 1024;
+  // The chunk limit of Graylog 2.x and later, which discard messages with more chunks
+  public static final int DEFAULT_MAX_CHUNK_COUNT = 128;
+  public static final int DEFAULT_PARALLEL_COMPRESSION_THRESHOLD = 1024 * 1024;
+  public static final int DEFAULT_ASYNC_QUEUE_CAPACITY = 1024;
+  public static final long DEFAULT_OVERLOAD_BLOCK_TIMEOUT = 1000;
+  public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 3;
+  public static final long DEFAULT_CIRCUIT_BREAKER_INITIAL_BACKOFF = 500;
+  public static final long DEFAULT_CIRCUIT_BREAKER_MAX_BACKOFF = 30000;
+  public static final long DEFAULT_DNS_REFRESH_INTERVAL = 30000;
+  public static final int DEFAULT_DEDUP_TABLE_SIZE = 1024;
+  public static final String DEFAULT_HTTP_PATH = "/gelf";
+  public static final long DEFAULT_SPILL_MAX_SIZE = 64 * 1024 * 1024;
+  public static final int DEFAULT_SPILL_SEGMENT_SIZE = 4 * 1024 * 1024;
 
   private String _host;
   private InetAddress _hostAddress;
   private int _port = DEFAULT_PORT;
+  private String _protocol = PROTOCOL_UDP;
+  private int _channelPoolSize = Runtime.getRuntime().availableProcessors();
+  private String _targets;
+  private String _loadBalancing = LOAD_BALANCING_ROUND_ROBIN;
+  private String _loadBalancingKey = FIELD_FACILITY;
+  private int _circuitBreakerFailureThreshold = DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+  private long _circuitBreakerInitialBackoff = DEFAULT_CIRCUIT_BREAKER_INITIAL_BACKOFF;
+  private long _circuitBreakerMaxBackoff = DEFAULT_CIRCUIT_BREAKER_MAX_BACKOFF;
+  private long _dnsRefreshInterval = DEFAULT_DNS_REFRESH_INTERVAL;
+  private long _rateLimit;
+  private long _rateLimitBurst;
+  private String _rateLimits;
+  private String _samplingRates;
+  private String _samplingKey;
+  private long _dedupWindow;
+  private int _dedupTableSize = DEFAULT_DEDUP_TABLE_SIZE;
+  private String _httpPath = DEFAULT_HTTP_PATH;
+  private int _httpBatchSize = 1;
+  private boolean _httpCompression;
+  private long _maxLinger;
+  private Executor _executor;
   private boolean _compressedChunking = true;
+  private int _chunkSize = DEFAULT_CHUNK_SIZE;
+  private int _maxChunkCount = DEFAULT_MAX_CHUNK_COUNT;
+  private String _compression = COMPRESSION_GZIP;
+  private int _compressionLevel = -1;
+  private int _compressionThreshold;
+  private int _parallelCompressionThreshold = DEFAULT_PARALLEL_COMPRESSION_THRESHOLD;
   private String _codecClass = DEFAULT_JSON_CODEC;
+  private boolean _encodeWithCodec;
   private JsonCodec _codec;
+  private boolean _async;
+  private int _asyncQueueCapacity = DEFAULT_ASYNC_QUEUE_CAPACITY;
+  private String _overloadPolicy = OVERLOAD_POLICY_DROP_NEWEST;
+  private long _overloadBlockTimeout = DEFAULT_OVERLOAD_BLOCK_TIMEOUT;
+  private String _spillDirectory;
+  private long _spillMaxSize = DEFAULT_SPILL_MAX_SIZE;
+  private int _spillSegmentSize = DEFAULT_SPILL_SEGMENT_SIZE;
 
   private String _defaultFieldsJson;
-  private final Map<String, Object> _defaultFields;
+  private final GelfVersionedMap<String, Object> _defaultFields;
   private String _additionalFieldsJson;
   private final Map<String, String> _additionalFields;
 
   public GelfTargetConfig()
   {
-    try
-    {
-      _host = GelfMessageUtil.getLocalHost();
-    }
-    catch( final IOException ioe )
-    {
-      //ignore
-    }
+    // The local host is the default host, so its name is looked up without blocking the configuration
+    GelfMessageUtil.lookupLocalHostInBackground();
     _additionalFields = new HashMap<String, String>();
     _additionalFields.put( FIELD_EXCEPTION, FIELD_EXCEPTION );
     _additionalFields.put( FIELD_THREAD_NAME, FIELD_THREAD_NAME );
     _additionalFields.put( FIELD_LOGGER_NAME, FIELD_LOGGER_NAME );
     _additionalFields.put( FIELD_TIMESTAMP_MS, FIELD_TIMESTAMP_MS );
 
-    _defaultFields = new HashMap<String, Object>();
-    _defaultFields.put( FIELD_HOST, _host );
+    _defaultFields = new GelfVersionedMap<String, Object>();
   }
 
   public boolean isCompressedChunking()
@@ -68,18 +127,217 @@ public class GelfTargetConfig
     _compressedChunking = compressedChunking;
   }
 
+  /**
+   * @return the maximum size in bytes of a UDP packet, including the chunk header, or 0 to derive the size from
+   * the MTU of the network interface that the targets are reached through.
+   */
+  public int getChunkSize()
+  {
+    return _chunkSize;
+  }
+
+  public void setChunkSize( final int chunkSize )
+  {
+    _chunkSize = chunkSize;
+  }
+
+  /**
+   * @return the maximum number of chunks a UDP message may be split into. Larger messages are truncated to fit.
+   * The default matches current Graylog servers, which discard messages with more chunks, and should only be raised,
+   * up to 255, for receivers that are known to accept more.
+   */
+  public int getMaxChunkCount()
+  {
+    return _maxChunkCount;
+  }
+
+  public void setMaxChunkCount( final int maxChunkCount )
+  {
+    _maxChunkCount = maxChunkCount;
+  }
+
+  /**
+   * @return how UDP payloads are compressed. One of "gzip", "zlib" or "none".
+   */
+  public String getCompression()
+  {
+    return _compression;
+  }
+
+  public void setCompression( final String compression )
+  {
+    _compression = compression;
+  }
+
+  /**
+   * @return the deflate level, from 0 to 9, used to compress payloads and HTTP request bodies, or -1 for the default level.
+   */
+  public int getCompressionLevel()
+  {
+    return _compressionLevel;
+  }
+
+  public void setCompressionLevel( final int compressionLevel )
+  {
+    _compressionLevel = compressionLevel;
+  }
+
+  /**
+   * @return the size in bytes below which UDP payloads are sent uncompressed.
+   */
+  public int getCompressionThreshold()
+  {
+    return _compressionThreshold;
+  }
+
+  public void setCompressionThreshold( final int compressionThreshold )
+  {
+    _compressionThreshold = compressionThreshold;
+  }
+
+  /**
+   * @return the size in bytes from which gzip payloads are split into blocks that are compressed in parallel,
+   * or 0 to always compress on a single thread.
+   */
+  public int getParallelCompressionThreshold()
+  {
+    return _parallelCompressionThreshold;
+  }
+
+  public void setParallelCompressionThreshold( final int parallelCompressionThreshold )
+  {
+    _parallelCompressionThreshold = parallelCompressionThreshold;
+  }
+
+  /**
+   * @return true if messages are queued and sent on a background thread rather than on the logging thread.
+   */
+  public boolean isAsync()
+  {
+    return _async;
+  }
+
+  public void setAsync( final boolean async )
+  {
+    _async = async;
+  }
+
+  /**
+   * @return the maximum number of messages that can be queued when sending asynchronously.
+   */
+  public int getAsyncQueueCapacity()
+  {
+    return _asyncQueueCapacity;
+  }
+
+  public void setAsyncQueueCapacity( final int asyncQueueCapacity )
+  {
+    _asyncQueueCapacity = asyncQueueCapacity;
+  }
+
+  /**
+   * @return what happens when a message is sent asynchronously and the queue is full. One of "block",
+   * "drop_newest", "drop_oldest" or "shed_by_severity".
+   */
+  public String getOverloadPolicy()
+  {
+    return _overloadPolicy;
+  }
+
+  public void setOverloadPolicy( final String overloadPolicy )
+  {
+    _overloadPolicy = overloadPolicy;
+  }
+
+  /**
+   * @return the milliseconds to wait for space in a full queue before dropping the message when the overload policy is "block".
+   */
+  public long getOverloadBlockTimeout()
+  {
+    return _overloadBlockTimeout;
+  }
+
+  public void setOverloadBlockTimeout( final long overloadBlockTimeout )
+  {
+    _overloadBlockTimeout = overloadBlockTimeout;
+  }
+
+  /**
+   * @return the directory in which messages that could not be sent are stored until they can be replayed,
+   * or null if messages that can not be sent are discarded.
+   */
+  public String getSpillDirectory()
+  {
+    return _spillDirectory;
+  }
+
+  public void setSpillDirectory( final String spillDirectory )
+  {
+    _spillDirectory = spillDirectory;
+  }
+
+  /**
+   * @return the maximum number of bytes of disk used to store messages that could not be sent.
+   */
+  public long getSpillMaxSize()
+  {
+    return _spillMaxSize;
+  }
+
+  public void setSpillMaxSize( final long spillMaxSize )
+  {
+    _spillMaxSize = spillMaxSize;
+  }
+
+  /**
+   * @return the size of each memory-mapped file used to store messages that could not be sent.
+   */
+  public int getSpillSegmentSize()
+  {
+    return _spillSegmentSize;
+  }
+
+  public void setSpillSegmentSize( final int spillSegmentSize )
+  {
+    _spillSegmentSize = spillSegmentSize;
+  }
+
+  /**
+   * @return the host that messages are sent to. If no host has been set this is the name of the local host, which
+   * is looked up in the background when the configuration is created and is waited for here if it is still pending.
+   */
   public String getHost()
+  {
+    if( null != _host )
+    {
+      return _host;
+    }
+    try
+    {
+      return GelfMessageUtil.getLocalHost();
+    }
+    catch( final IOException ioe )
+    {
+      return null;
+    }
+  }
+
+  /**
+   * @return the host that has been set, or null if messages are sent to the local host.
+   */
+  String getConfiguredHost()
   {
     return _host;
   }
 
   public InetAddress getHostAddress()
   {
-    if( null == _hostAddress && null != _host )
+    final String host = getHost();
+    if( null == _hostAddress && null != host )
     {
       try
       {
-        _hostAddress = InetAddress.getByName( _host );
+        _hostAddress = InetAddress.getByName( host );
       }
       catch( final UnknownHostException uhe )
       {
@@ -105,6 +363,292 @@ public class GelfTargetConfig
     _port = port;
   }
 
+  /**
+   * @return the protocol used to send messages. One of {@link #PROTOCOL_UDP}, {@link #PROTOCOL_TCP} or
+   * {@link #PROTOCOL_HTTP}.
+   */
+  public String getProtocol()
+  {
+    return _protocol;
+  }
+
+  public void setProtocol( final String protocol )
+  {
+    _protocol = null != protocol ? protocol.trim().toLowerCase() : null;
+  }
+
+  /**
+   * @return the number of UDP channels that packets are spread across.
+   */
+  public int getChannelPoolSize()
+  {
+    return _channelPoolSize;
+  }
+
+  public void setChannelPoolSize( final int channelPoolSize )
+  {
+    _channelPoolSize = channelPoolSize;
+  }
+
+  /**
+   * @return a comma separated list of servers of the form host[:port] that messages are spread across,
+   * or null if messages are only sent to {@link #getHost()}. Servers that do not specify a port use {@link #getPort()}.
+   */
+  public String getTargets()
+  {
+    return _targets;
+  }
+
+  public void setTargets( final String targets )
+  {
+    _targets = targets;
+  }
+
+  /**
+   * @return how messages are spread across the targets. Either {@link #LOAD_BALANCING_ROUND_ROBIN} or
+   * {@link #LOAD_BALANCING_HASH}.
+   */
+  public String getLoadBalancing()
+  {
+    return _loadBalancing;
+  }
+
+  public void setLoadBalancing( final String loadBalancing )
+  {
+    _loadBalancing = null != loadBalancing ? loadBalancing.trim().toLowerCase() : null;
+  }
+
+  /**
+   * @return the message field hashed to select a target when using {@link #LOAD_BALANCING_HASH}.
+   */
+  public String getLoadBalancingKey()
+  {
+    return _loadBalancingKey;
+  }
+
+  public void setLoadBalancingKey( final String loadBalancingKey )
+  {
+    _loadBalancingKey = loadBalancingKey;
+  }
+
+  /**
+   * @return the number of consecutive failed sends after which sends to a target are stopped.
+   */
+  public int getCircuitBreakerFailureThreshold()
+  {
+    return _circuitBreakerFailureThreshold;
+  }
+
+  public void setCircuitBreakerFailureThreshold( final int circuitBreakerFailureThreshold )
+  {
+    _circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+  }
+
+  /**
+   * @return the milliseconds to wait before retrying a target after sends to it are stopped.
+   */
+  public long getCircuitBreakerInitialBackoff()
+  {
+    return _circuitBreakerInitialBackoff;
+  }
+
+  public void setCircuitBreakerInitialBackoff( final long circuitBreakerInitialBackoff )
+  {
+    _circuitBreakerInitialBackoff = circuitBreakerInitialBackoff;
+  }
+
+  /**
+   * @return the maximum milliseconds to wait before retrying a target that continues to fail.
+   */
+  public long getCircuitBreakerMaxBackoff()
+  {
+    return _circuitBreakerMaxBackoff;
+  }
+
+  public void setCircuitBreakerMaxBackoff( final long circuitBreakerMaxBackoff )
+  {
+    _circuitBreakerMaxBackoff = circuitBreakerMaxBackoff;
+  }
+
+  /**
+   * @return the milliseconds between background lookups of the addresses of the targets, or 0 to only look
+   * up the addresses when the connection is created. Targets that can not be resolved are retried in the
+   * background until they are, regardless of this setting.
+   */
+  public long getDnsRefreshInterval()
+  {
+    return _dnsRefreshInterval;
+  }
+
+  public void setDnsRefreshInterval( final long dnsRefreshInterval )
+  {
+    _dnsRefreshInterval = dnsRefreshInterval;
+  }
+
+  /**
+   * @return the maximum messages per second sent from each logger, or 0 if messages are not limited.
+   */
+  public long getRateLimit()
+  {
+    return _rateLimit;
+  }
+
+  public void setRateLimit( final long rateLimit )
+  {
+    _rateLimit = rateLimit;
+  }
+
+  /**
+   * @return the number of messages a logger may send at once before the rate limit applies, or 0 to allow one
+   * second's worth of messages.
+   */
+  public long getRateLimitBurst()
+  {
+    return _rateLimitBurst;
+  }
+
+  public void setRateLimitBurst( final long rateLimitBurst )
+  {
+    _rateLimitBurst = rateLimitBurst;
+  }
+
+  /**
+   * @return a comma separated list of logger prefix=rate pairs that override the rate limit for matching loggers,
+   * or null. The longest matching prefix is used and a rate of 0 means messages are not limited.
+   */
+  public String getRateLimits()
+  {
+    return _rateLimits;
+  }
+
+  public void setRateLimits( final String rateLimits )
+  {
+    _rateLimits = rateLimits;
+  }
+
+  /**
+   * @return a comma separated list of level=rate pairs, where the rate is the fraction of messages at the level
+   * that are kept, or null if messages are not sampled.
+   */
+  public String getSamplingRates()
+  {
+    return _samplingRates;
+  }
+
+  public void setSamplingRates( final String samplingRates )
+  {
+    _samplingRates = samplingRates;
+  }
+
+  /**
+   * @return the MDC key whose value decides whether a message is sampled, so that messages with the same value
+   * are kept together, or null to sample each message at random.
+   */
+  public String getSamplingKey()
+  {
+    return _samplingKey;
+  }
+
+  public void setSamplingKey( final String samplingKey )
+  {
+    _samplingKey = samplingKey;
+  }
+
+  /**
+   * @return the milliseconds in which repeats of a message are counted rather than sent, or 0 to send every message.
+   */
+  public long getDedupWindow()
+  {
+    return _dedupWindow;
+  }
+
+  public void setDedupWindow( final long dedupWindow )
+  {
+    _dedupWindow = dedupWindow;
+  }
+
+  /**
+   * @return the number of distinct messages tracked for deduplication.
+   */
+  public int getDedupTableSize()
+  {
+    return _dedupTableSize;
+  }
+
+  public void setDedupTableSize( final int dedupTableSize )
+  {
+    _dedupTableSize = dedupTableSize;
+  }
+
+  /**
+   * @return the path of the GELF HTTP input that messages are posted to.
+   */
+  public String getHttpPath()
+  {
+    return _httpPath;
+  }
+
+  public void setHttpPath( final String httpPath )
+  {
+    _httpPath = httpPath;
+  }
+
+  /**
+   * @return the maximum number of messages posted in a single newline delimited HTTP request.
+   */
+  public int getHttpBatchSize()
+  {
+    return _httpBatchSize;
+  }
+
+  public void setHttpBatchSize( final int httpBatchSize )
+  {
+    _httpBatchSize = httpBatchSize;
+  }
+
+  /**
+   * @return true if HTTP request bodies are gzipped.
+   */
+  public boolean isHttpCompression()
+  {
+    return _httpCompression;
+  }
+
+  public void setHttpCompression( final boolean httpCompression )
+  {
+    _httpCompression = httpCompression;
+  }
+
+  /**
+   * @return the milliseconds the asynchronous sender waits for more messages so they can be sent together.
+   */
+  public long getMaxLinger()
+  {
+    return _maxLinger;
+  }
+
+  public void setMaxLinger( final long maxLinger )
+  {
+    _maxLinger = maxLinger;
+  }
+
+  /**
+   * @return the executor that runs the sends when sending asynchronously, or null to send from a dedicated thread.
+   */
+  public Executor getExecutor()
+  {
+    return _executor;
+  }
+
+  /**
+   * Set the executor that runs the sends when sending asynchronously, such as an executor that creates a
+   * virtual thread per task. Only one send task is submitted at a time.
+   */
+  public void setExecutor( final Executor executor )
+  {
+    _executor = executor;
+  }
+
   public GelfConnection createConnection()
     throws Exception
   {
@@ -128,6 +672,19 @@ public class GelfTargetConfig
     _codecClass = codecClass;
   }
 
+  /**
+   * @return true if messages are serialized by the codec rather than written directly as UTF-8 by the built-in json writer.
+   */
+  public boolean isEncodeWithCodec()
+  {
+    return _encodeWithCodec;
+  }
+
+  public void setEncodeWithCodec( final boolean encodeWithCodec )
+  {
+    _encodeWithCodec = encodeWithCodec;
+  }
+
   /**
    * Additional fields to add to the gelf message. The keys are the key in the GELF message and the value corresponds
    * to a symbol recognized by the underlying log system.
@@ -136,40 +693,79 @@ public class GelfTargetConfig
    * this will result in access to application specific data such as Mapped Diagnostic Contexts (MDC) in Log4j and
    * Logback.</p>
    */
-  public Map<String, String> getAdditionalFields()
+  public synchronized Map<String, String> getAdditionalFields()
   {
     if ( null != _additionalFieldsJson )
     {
-      _additionalFields.clear();
-      for ( final Map.Entry<String, Object> entry : parseJsonObject( _additionalFieldsJson ).entrySet() )
-      {
-        _additionalFields.put( entry.getKey(), String.valueOf( entry.getValue() ) );
-      }
+      applyAdditionalFieldsJson();
     }
     return _additionalFields;
   }
 
-  public void setAdditionalFields( final String additionalFields )
+  /**
+   * Set the additional fields from a json object. The json is parsed when the fields are first read, so the codec
+   * can be configured after the fields, or immediately if a codec has already been created.
+   */
+  public synchronized void setAdditionalFields( final String additionalFields )
   {
     _additionalFieldsJson = additionalFields;
+    if ( null != _codec )
+    {
+      applyAdditionalFieldsJson();
+    }
   }
 
   /**
    * @return the default set of fields that will be added to the GELF message.
    */
-  public Map<String, Object> getDefaultFields()
+  public synchronized Map<String, Object> getDefaultFields()
   {
     if ( null != _defaultFieldsJson )
     {
-      _defaultFields.clear();
-      _defaultFields.putAll( parseJsonObject( _defaultFieldsJson ) );
+      applyDefaultFieldsJson();
     }
     return _defaultFields;
   }
 
-  public void setDefaultFields( final String additionalData )
+  /**
+   * @return a number that changes whenever the default fields are modified. Pending json is not parsed here, as
+   * it is parsed when the connection is created or, after that, as soon as it is set.
+   */
+  long getDefaultFieldsVersion()
+  {
+    return _defaultFields.getVersion();
+  }
+
+  /**
+   * Set the default fields from a json object. The json is parsed when the fields are first read, so the codec
+   * can be configured after the fields, or immediately if a codec has already been created.
+   */
+  public synchronized void setDefaultFields( final String additionalData )
   {
     _defaultFieldsJson = additionalData;
+    if ( null != _codec )
+    {
+      applyDefaultFieldsJson();
+    }
+  }
+
+  private void applyAdditionalFieldsJson()
+  {
+    final Map<String, Object> fields = parseJsonObject( _additionalFieldsJson );
+    _additionalFieldsJson = null;
+    _additionalFields.clear();
+    for ( final Map.Entry<String, Object> entry : fields.entrySet() )
+    {
+      _additionalFields.put( entry.getKey(), String.valueOf( entry.getValue() ) );
+    }
+  }
+
+  private void applyDefaultFieldsJson()
+  {
+    final Map<String, Object> fields = parseJsonObject( _defaultFieldsJson );
+    _defaultFieldsJson = null;
+    _defaultFields.clear();
+    _defaultFields.putAll( fields );
   }
 
   @SuppressWarnings( "unchecked" )
@@ -178,7 +774,7 @@ public class GelfTargetConfig
     return (Map<String, Object>) getCodec().fromJson( additionalFields, Map.class );
   }
 
-  protected final JsonCodec getCodec()
+  protected final synchronized JsonCodec getCodec()
   {
     if ( null == _codec )
     {
@@ -0,0 +1,279 @@
+package gelf4j;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Distributes payloads across a set of targets, either round-robin or by consistent hashing of a key.
+ * A target whose circuit breaker is open, or that has not yet been resolved, is skipped and the payload is sent to
+ * the next available target.
+ */
+final class GelfTargetGroup
+  implements GelfTransport
+{
+  // The number of points each target occupies on the hash ring
+  static final int VIRTUAL_NODE_COUNT = 64;
+
+  private final GelfTarget[] _targets;
+  private final GelfTransport[] _transports;
+  private final boolean _hashed;
+  private final int[] _ringHashes;
+  private final int[] _ringTargets;
+  private final AtomicInteger _next = new AtomicInteger();
+
+  GelfTargetGroup( final GelfTarget[] targets, final GelfTransport[] transports, final boolean hashed )
+  {
+    _targets = targets;
+    _transports = transports;
+    _hashed = hashed;
+    if ( hashed )
+    {
+      final long[] points = new long[ targets.length * VIRTUAL_NODE_COUNT ];
+      for ( int i = 0; i < targets.length; i++ )
+      {
+        final int base = targets[ i ].toString().hashCode();
+        for ( int j = 0; j < VIRTUAL_NODE_COUNT; j++ )
+        {
+          // Order by the unsigned hash with the target index in the low bits. The hash is shifted by 31 bits so
+          // that every point is positive and a signed sort orders the points by the unsigned hash.
+          final long hash = mix( base * 31 + j ) & 0xFFFFFFFFL;
+          points[ i * VIRTUAL_NODE_COUNT + j ] = ( hash << 31 ) | i;
+        }
+      }
+      Arrays.sort( points );
+      _ringHashes = new int[ points.length ];
+      _ringTargets = new int[ points.length ];
+      for ( int i = 0; i < points.length; i++ )
+      {
+        _ringHashes[ i ] = (int) ( points[ i ] >>> 31 );
+        _ringTargets[ i ] = (int) ( points[ i ] & Integer.MAX_VALUE );
+      }
+    }
+    else
+    {
+      _ringHashes = null;
+      _ringTargets = null;
+    }
+  }
+
+  /**
+   * @return true if targets are selected by hashing a key.
+   */
+  boolean isHashed()
+  {
+    return _hashed;
+  }
+
+  GelfTarget[] getTargets()
+  {
+    return _targets;
+  }
+
+  public boolean accepts( final byte[] payload )
+  {
+    return _transports[ 0 ].accepts( payload );
+  }
+
+  public boolean send( final byte[] payload )
+  {
+    return send( null, payload );
+  }
+
+  /**
+   * Send the payload to the target selected by the key, or to the next target if the key is null.
+   */
+  boolean send( final String key, final byte[] payload )
+  {
+    final int start = select( key );
+    final long now = System.nanoTime();
+    for ( int i = 0; i < _targets.length; i++ )
+    {
+      final int index = ( start + i ) % _targets.length;
+      if ( isAvailable( index, now ) && send( index, payload, now ) )
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stream the message to the target selected by the key, or to the next target if the key is null. Only a UDP
+   * target whose circuit breaker is closed is streamed to, so that a probe of a recovering target is never spent
+   * on a message that is then sent as a payload. The message is not failed over as the caller falls back to
+   * sending a payload, which can be failed over and spilled.
+   *
+   * @return true if the message was sent.
+   */
+  boolean stream( final String key, final GelfMessage message )
+  {
+    final int index = select( key );
+    final GelfTransport transport = _transports[ index ];
+    if ( !( transport instanceof GelfUdpTransport ) ||
+         !_targets[ index ].isResolved() ||
+         GelfCircuitBreaker.CLOSED != _targets[ index ].getCircuitBreaker().getState() )
+    {
+      return false;
+    }
+    int outcome = GelfUdpTransport.FAILED;
+    try
+    {
+      outcome = ( (GelfUdpTransport) transport ).stream( message );
+    }
+    finally
+    {
+      if ( GelfUdpTransport.NOT_STREAMED != outcome )
+      {
+        recordOutcome( index, GelfUdpTransport.SENT == outcome, System.nanoTime() );
+      }
+    }
+    return GelfUdpTransport.SENT == outcome;
+  }
+
+  /**
+   * Send the payloads to the next target, failing over to later targets if it fails part way through.
+   */
+  public int send( final List<byte[]> payloads )
+  {
+    final int start = select( null );
+    final long now = System.nanoTime();
+    final int size = payloads.size();
+    int sent = 0;
+    for ( int i = 0; i < _targets.length && sent < size; i++ )
+    {
+      final int index = ( start + i ) % _targets.length;
+      if ( isAvailable( index, now ) )
+      {
+        sent += send( index, payloads.subList( sent, size ), now );
+      }
+    }
+    return sent;
+  }
+
+  public void close()
+    throws IOException
+  {
+    IOException exception = null;
+    for ( final GelfTransport transport : _transports )
+    {
+      try
+      {
+        transport.close();
+      }
+      catch ( final IOException ioe )
+      {
+        exception = ioe;
+      }
+    }
+    if ( null != exception )
+    {
+      throw exception;
+    }
+  }
+
+  /**
+   * @return true if a send to the target may be attempted. A target that has not yet been resolved is skipped
+   * without counting as a failure, as its first lookup is still being made in the background.
+   */
+  private boolean isAvailable( final int index, final long now )
+  {
+    final GelfTarget target = _targets[ index ];
+    return target.isResolved() && target.getCircuitBreaker().allowRequest( now );
+  }
+
+  /**
+   * A send that throws is recorded as a failure, so that a probe of a recovering target is not left outstanding
+   * with the circuit breaker half open forever.
+   */
+  private boolean send( final int index, final byte[] payload, final long now )
+  {
+    boolean sent = false;
+    try
+    {
+      sent = _transports[ index ].send( payload );
+    }
+    finally
+    {
+      recordOutcome( index, sent, now );
+    }
+    return sent;
+  }
+
+  private int send( final int index, final List<byte[]> payloads, final long now )
+  {
+    int sent = 0;
+    try
+    {
+      sent = _transports[ index ].send( payloads );
+    }
+    finally
+    {
+      recordOutcome( index, sent == payloads.size(), now );
+    }
+    return sent;
+  }
+
+  private void recordOutcome( final int index, final boolean success, final long now )
+  {
+    final GelfCircuitBreaker circuitBreaker = _targets[ index ].getCircuitBreaker();
+    if ( success )
+    {
+      circuitBreaker.recordSuccess();
+    }
+    else
+    {
+      circuitBreaker.recordFailure( now );
+    }
+  }
+
+  /**
+   * @return the index of the preferred target for the key.
+   */
+  int select( final String key )
+  {
+    if ( 1 == _targets.length )
+    {
+      return 0;
+    }
+    else if ( !_hashed || null == key )
+    {
+      return ( _next.getAndIncrement() & Integer.MAX_VALUE ) % _targets.length;
+    }
+    else
+    {
+      // Find the first point on the ring at or after the hash of the key, wrapping around to the start
+      final long hash = mix( key.hashCode() ) & 0xFFFFFFFFL;
+      int low = 0;
+      int high = _ringHashes.length;
+      while ( low < high )
+      {
+        final int middle = ( low + high ) >>> 1;
+        if ( ( _ringHashes[ middle ] & 0xFFFFFFFFL ) < hash )
+        {
+          low = middle + 1;
+        }
+        else
+        {
+          high = middle;
+        }
+      }
+      return _ringTargets[ low == _ringHashes.length ? 0 : low ];
+    }
+  }
+
+  /**
+   * Spread the bits of a hash code so that similar keys land far apart on the ring.
+   */
+  private static int mix( final int value )
+  {
+    int h = value;
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
@@ -0,0 +1,230 @@
+package gelf4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends uncompressed payloads as null byte delimited frames over a persistent TCP connection.
+ * Groups of payloads are coalesced into a single gathering write.
+ *
+ * <p>Writes are non-blocking and wait for the socket to become writable for at most the write timeout, so a
+ * server that stops reading fails the send rather than blocking the sending thread, and every thread waiting on
+ * the lock, indefinitely. The connection is closed on a timeout as a frame may have been partially written.</p>
+ */
+final class GelfTcpTransport
+  implements GelfTransport
+{
+  static final int CONNECT_TIMEOUT_MILLIS = 5000;
+  static final int WRITE_TIMEOUT_MILLIS = 5000;
+
+  private static final byte[] FRAME_DELIMITER = new byte[]{ 0 };
+
+  private final GelfTarget _target;
+  private final long _writeTimeoutNanos;
+  // A lock rather than a monitor so that a virtual thread blocked on the socket does not pin its carrier
+  private final ReentrantLock _lock = new ReentrantLock();
+  private SocketChannel _channel;
+  private Selector _selector;
+  private InetSocketAddress _connectedAddress;
+
+  GelfTcpTransport( final GelfTarget target )
+  {
+    this( target, WRITE_TIMEOUT_MILLIS );
+  }
+
+  GelfTcpTransport( final GelfTarget target, final long writeTimeoutMillis )
+  {
+    _target = target;
+    _writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos( writeTimeoutMillis );
+  }
+
+  public boolean accepts( final byte[] payload )
+  {
+    return true;
+  }
+
+  public boolean send( final byte[] payload )
+  {
+    return 1 == send( Collections.singletonList( payload ) );
+  }
+
+  public int send( final List<byte[]> payloads )
+  {
+    if ( payloads.isEmpty() )
+    {
+      return 0;
+    }
+    final ByteBuffer[] buffers = new ByteBuffer[ payloads.size() * 2 ];
+    int index = 0;
+    for ( final byte[] payload : payloads )
+    {
+      buffers[ index++ ] = ByteBuffer.wrap( payload );
+      buffers[ index++ ] = ByteBuffer.wrap( FRAME_DELIMITER );
+    }
+    _lock.lock();
+    try
+    {
+      try
+      {
+        write( buffers, 0 );
+        return payloads.size();
+      }
+      catch ( final SocketTimeoutException ste )
+      {
+        // The server is not reading so resending on a new connection would most likely wait out another timeout
+        closeQuietly();
+        return countWrittenFrames( buffers );
+      }
+      catch ( final IOException ioe )
+      {
+        closeQuietly();
+      }
+
+      // The connection may have been closed by the server since the last write so reconnect and
+      // resend every frame that was not completely written.
+      final int offset = countWrittenFrames( buffers ) * 2;
+      if ( offset == buffers.length )
+      {
+        return payloads.size();
+      }
+      buffers[ offset ].rewind();
+      buffers[ offset + 1 ].rewind();
+      try
+      {
+        write( buffers, offset );
+        return payloads.size();
+      }
+      catch ( final IOException ioe )
+      {
+        closeQuietly();
+        return countWrittenFrames( buffers );
+      }
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+
+  private int countWrittenFrames( final ByteBuffer[] buffers )
+  {
+    int count = 0;
+    while ( count * 2 < buffers.length && !buffers[ count * 2 + 1 ].hasRemaining() )
+    {
+      count++;
+    }
+    return count;
+  }
+
+  public void close()
+    throws IOException
+  {
+    _lock.lock();
+    try
+    {
+      if ( null != _channel )
+      {
+        try
+        {
+          _selector.close();
+          _channel.close();
+        }
+        finally
+        {
+          _channel = null;
+          _selector = null;
+        }
+      }
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Write the buffers, waiting for the socket to become writable whenever its send buffer is full.
+   *
+   * @throws SocketTimeoutException if the buffers are not written within the write timeout.
+   */
+  private void write( final ByteBuffer[] buffers, final int offset )
+    throws IOException
+  {
+    final SocketChannel channel = getChannel();
+    final ByteBuffer last = buffers[ buffers.length - 1 ];
+    final long deadline = System.nanoTime() + _writeTimeoutNanos;
+    while ( last.hasRemaining() )
+    {
+      if ( 0 == channel.write( buffers, offset, buffers.length - offset ) )
+      {
+        final long remaining = TimeUnit.NANOSECONDS.toMillis( deadline - System.nanoTime() );
+        if ( remaining <= 0 )
+        {
+          throw new SocketTimeoutException( "Timed out writing to " + _target );
+        }
+        _selector.select( remaining );
+        _selector.selectedKeys().clear();
+      }
+    }
+  }
+
+  private void closeQuietly()
+  {
+    try
+    {
+      close();
+    }
+    catch ( final IOException ignored )
+    {
+    }
+  }
+
+  /**
+   * Return the connection, opening it if necessary. The connection is re-established if the address of the
+   * target has changed since it was opened.
+   */
+  private SocketChannel getChannel()
+    throws IOException
+  {
+    final InetSocketAddress address = _target.getAddress();
+    if ( null != _channel && address != _connectedAddress )
+    {
+      close();
+    }
+    if ( null == _channel )
+    {
+      final SocketChannel channel = SocketChannel.open();
+      try
+      {
+        channel.socket().setTcpNoDelay( true );
+        channel.socket().setKeepAlive( true );
+        channel.socket().connect( address, CONNECT_TIMEOUT_MILLIS );
+        channel.configureBlocking( false );
+        _selector = Selector.open();
+        channel.register( _selector, SelectionKey.OP_WRITE );
+      }
+      catch ( final IOException ioe )
+      {
+        if ( null != _selector )
+        {
+          _selector.close();
+          _selector = null;
+        }
+        channel.close();
+        throw ioe;
+      }
+      _channel = channel;
+      _connectedAddress = address;
+    }
+    return _channel;
+  }
+}
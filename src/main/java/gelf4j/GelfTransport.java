@@ -0,0 +1,41 @@
+package gelf4j;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The mechanism used to deliver encoded GELF payloads to the server.
+ */
+interface GelfTransport
+{
+  /**
+   * Return true if the payload can ever be sent by the transport. Payloads that can not be sent are not retained
+   * for replay.
+   *
+   * @param payload the encoded message.
+   */
+  boolean accepts( byte[] payload );
+
+  /**
+   * Send a single encoded payload.
+   *
+   * @param payload the encoded message.
+   * @return false if sending failed.
+   */
+  boolean send( byte[] payload );
+
+  /**
+   * Send a group of encoded payloads in order. Transports may coalesce the payloads into fewer writes.
+   * Sending stops at the first payload that fails.
+   *
+   * @param payloads the encoded messages.
+   * @return the number of payloads, from the start of the list, that were sent.
+   */
+  int send( List<byte[]> payloads );
+
+  /**
+   * Release any resources held by the transport. The transport may be used again after it is closed.
+   */
+  void close()
+    throws IOException;
+}
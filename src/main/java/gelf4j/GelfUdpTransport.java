@@ -0,0 +1,431 @@
+package gelf4j;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sends payloads as datagrams, splitting them into chunks if they are too large for a single packet.
+ * Packets are written to a pool of channels with each thread mapped to a channel so that threads do
+ * not contend on a single socket.
+ *
+ * <p>Messages can also be streamed, in which case the compressed json is written straight into pooled packet
+ * buffers as the deflater produces it. The chunk headers are filled in once the number of chunks is known, so
+ * the compressed payload is never held as a whole.</p>
+ */
+final class GelfUdpTransport
+  implements GelfTransport
+{
+  private static final int IPV4_HEADER_SIZE = 20;
+  private static final int IPV6_HEADER_SIZE = 40;
+  private static final int UDP_HEADER_SIZE = 8;
+
+  // The outcomes of streaming a message
+  static final int SENT = 0;
+  static final int FAILED = 1;
+  // The message was not sent as it could not be encoded or is too large to be sent without truncation
+  static final int NOT_STREAMED = 2;
+
+  private final GelfTarget _target;
+  private final GelfEncoder _encoder;
+  private final AtomicReferenceArray<ConnectedChannel> _channels;
+  private final GelfBufferPool _bufferPool;
+  private final GelfObjectPool<ChunkWriter> _writers = new GelfObjectPool<ChunkWriter>( GelfObjectPool.DEFAULT_SIZE )
+  {
+    @Override
+    protected ChunkWriter create()
+    {
+      return new ChunkWriter();
+    }
+  };
+
+  GelfUdpTransport( final GelfTargetConfig config, final GelfTarget target, final GelfEncoder encoder )
+  {
+    _target = target;
+    _encoder = encoder;
+    _channels = new AtomicReferenceArray<ConnectedChannel>( config.getChannelPoolSize() );
+    _bufferPool = new GelfBufferPool( config.getChannelPoolSize() * 2, _encoder.getMaxPacketSize() );
+  }
+
+  /**
+   * Derive the largest packet that can be sent to the address without IP fragmentation from the MTU of the
+   * network interface the address is routed through. Connecting a datagram channel selects the route without
+   * sending anything.
+   *
+   * @return the maximum packet size or 0 if it could not be determined.
+   */
+  static int discoverMaxPacketSize( final InetSocketAddress address )
+  {
+    if ( address.isUnresolved() )
+    {
+      return 0;
+    }
+    try
+    {
+      final DatagramChannel channel = DatagramChannel.open();
+      try
+      {
+        channel.connect( address );
+        final InetAddress localAddress = ( (InetSocketAddress) channel.getLocalAddress() ).getAddress();
+        final NetworkInterface networkInterface = NetworkInterface.getByInetAddress( localAddress );
+        if ( null == networkInterface || networkInterface.getMTU() <= 0 )
+        {
+          return 0;
+        }
+        final int ipHeaderSize = localAddress instanceof Inet6Address ? IPV6_HEADER_SIZE : IPV4_HEADER_SIZE;
+        return Math.min( GelfEncoder.MAX_DATAGRAM_SIZE, networkInterface.getMTU() - ipHeaderSize - UDP_HEADER_SIZE );
+      }
+      finally
+      {
+        channel.close();
+      }
+    }
+    catch ( final IOException ioe )
+    {
+      return 0;
+    }
+  }
+
+  public boolean accepts( final byte[] payload )
+  {
+    return 0 != _encoder.getChunkCount( payload.length );
+  }
+
+  public boolean send( final byte[] payload )
+  {
+    return send( getStripe(), payload );
+  }
+
+  /**
+   * Send the payloads. The channel is selected once so that the whole batch is written to the same channel.
+   */
+  public int send( final List<byte[]> payloads )
+  {
+    final int stripe = getStripe();
+    int sent = 0;
+    for ( final byte[] payload : payloads )
+    {
+      if ( !send( stripe, payload ) )
+      {
+        break;
+      }
+      sent++;
+    }
+    return sent;
+  }
+
+  /**
+   * Send the payload, assembling each packet in a pooled direct buffer that is written straight to the channel.
+   */
+  private boolean send( final int stripe, final byte[] payload )
+  {
+    final int chunkCount = _encoder.getChunkCount( payload.length );
+    // Note: Returning false when the payload is too large to be chunked
+    if ( 0 == chunkCount )
+    {
+      return false;
+    }
+    final ByteBuffer buffer = _bufferPool.acquire( stripe );
+    try
+    {
+      if ( 1 == chunkCount )
+      {
+        buffer.put( payload );
+        buffer.flip();
+        return doSend( stripe, buffer );
+      }
+      else
+      {
+        final long messageId = GelfEncoder.generateMessageID();
+        for ( int chunk = 0; chunk < chunkCount; chunk++ )
+        {
+          buffer.clear();
+          _encoder.writeChunk( buffer, messageId, payload, chunk, chunkCount );
+          buffer.flip();
+          if ( !doSend( stripe, buffer ) )
+          {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+    finally
+    {
+      _bufferPool.release( stripe, buffer );
+    }
+  }
+
+  /**
+   * Encode the message straight into packets and send them. A message that needs more chunks than can be sent is
+   * not truncated but abandoned as soon as it grows too large.
+   *
+   * @return {@link #SENT}, {@link #FAILED} if writing to the channel failed or {@link #NOT_STREAMED} if the message
+   * could not be encoded or is too large.
+   */
+  int stream( final GelfMessage message )
+  {
+    final int stripe = getStripe();
+    final ChunkWriter writer = _writers.acquire();
+    try
+    {
+      writer.begin( stripe );
+      if ( !_encoder.encodeTo( message, writer ) )
+      {
+        return NOT_STREAMED;
+      }
+      return writer.send() ? SENT : FAILED;
+    }
+    finally
+    {
+      writer.end();
+      _writers.release( writer );
+    }
+  }
+
+  public void close()
+    throws IOException
+  {
+    IOException exception = null;
+    for ( int i = 0; i < _channels.length(); i++ )
+    {
+      final ConnectedChannel channel = _channels.getAndSet( i, null );
+      if ( null != channel )
+      {
+        try
+        {
+          channel.channel.close();
+        }
+        catch ( final IOException ioe )
+        {
+          exception = ioe;
+        }
+      }
+    }
+    if ( null != exception )
+    {
+      throw exception;
+    }
+  }
+
+  private boolean doSend( final int stripe, final ByteBuffer buffer )
+  {
+    ConnectedChannel channel = null;
+    try
+    {
+      channel = getChannel( stripe );
+      channel.channel.write( buffer );
+      return true;
+    }
+    catch ( final IOException ioe )
+    {
+      if ( null != channel )
+      {
+        discard( stripe, channel );
+      }
+      return false;
+    }
+  }
+
+  private void discard( final int stripe, final ConnectedChannel channel )
+  {
+    if ( _channels.compareAndSet( stripe, channel, null ) )
+    {
+      try
+      {
+        channel.channel.close();
+      }
+      catch ( final IOException ignored )
+      {
+      }
+    }
+  }
+
+  /**
+   * Map the current thread onto a channel. A thread always uses the same channel so the chunks of a
+   * message are written in order.
+   */
+  private int getStripe()
+  {
+    return (int) ( Thread.currentThread().getId() % _channels.length() );
+  }
+
+  /**
+   * Return the channel for the stripe, opening it if necessary. A channel connected to an address that the
+   * target no longer resolves to is replaced. If several threads race to open the channel then one wins and
+   * the others close their channel and use the winner.
+   */
+  private ConnectedChannel getChannel( final int stripe )
+    throws IOException
+  {
+    final InetSocketAddress address = _target.getAddress();
+    while ( true )
+    {
+      final ConnectedChannel existing = _channels.get( stripe );
+      if ( null != existing )
+      {
+        if ( address == existing.address )
+        {
+          return existing;
+        }
+        discard( stripe, existing );
+        continue;
+      }
+      final DatagramChannel channel = DatagramChannel.open();
+      try
+      {
+        channel.socket().bind( new InetSocketAddress( 0 ) );
+        channel.connect( address );
+        channel.configureBlocking( false );
+      }
+      catch ( final IOException ioe )
+      {
+        channel.close();
+        throw ioe;
+      }
+      final ConnectedChannel connected = new ConnectedChannel( channel, address );
+      if ( _channels.compareAndSet( stripe, null, connected ) )
+      {
+        return connected;
+      }
+      channel.close();
+    }
+  }
+
+  /**
+   * Writes compressed data into packet buffers taken from the buffer pool, leaving room at the start of each
+   * buffer for the chunk header.
+   */
+  private final class ChunkWriter
+    implements GelfCompressor.Sink
+  {
+    private final int _headerSize = _encoder.getHeaderSize();
+    private final int _chunkEnd = _headerSize + _encoder.getChunkPayloadSize();
+    private final int _maxPayloadSize = _encoder.getMaxPayloadSize();
+    private ByteBuffer[] _chunks = new ByteBuffer[ 2 ];
+    private int _chunkCount;
+    private int _length;
+    private int _stripe;
+
+    void begin( final int stripe )
+    {
+      _stripe = stripe;
+      _chunkCount = 0;
+      _length = 0;
+    }
+
+    public boolean write( final byte[] data, final int offset, final int length )
+    {
+      if ( _length + length > _maxPayloadSize )
+      {
+        return false;
+      }
+      _length += length;
+      int position = offset;
+      final int end = offset + length;
+      while ( position < end )
+      {
+        ByteBuffer chunk = 0 == _chunkCount ? null : _chunks[ _chunkCount - 1 ];
+        if ( null == chunk || _chunkEnd == chunk.position() )
+        {
+          chunk = nextChunk();
+        }
+        final int count = Math.min( end - position, _chunkEnd - chunk.position() );
+        chunk.put( data, position, count );
+        position += count;
+      }
+      return true;
+    }
+
+    /**
+     * Send the payload as a single packet if it fits, otherwise fill in the chunk headers and send each chunk.
+     */
+    boolean send()
+    {
+      if ( 0 == _chunkCount )
+      {
+        return true;
+      }
+      else if ( _length <= _encoder.getMaxPacketSize() )
+      {
+        // The payload is sent unchunked so it is moved to the start of the first buffer
+        final ByteBuffer packet = _chunks[ 0 ];
+        packet.flip();
+        packet.position( _headerSize );
+        packet.compact();
+        for ( int i = 1; i < _chunkCount; i++ )
+        {
+          final ByteBuffer chunk = _chunks[ i ];
+          chunk.flip();
+          chunk.position( _headerSize );
+          packet.put( chunk );
+        }
+        packet.flip();
+        return doSend( _stripe, packet );
+      }
+      else
+      {
+        final long messageId = GelfEncoder.generateMessageID();
+        for ( int i = 0; i < _chunkCount; i++ )
+        {
+          final ByteBuffer chunk = _chunks[ i ];
+          chunk.flip();
+          _encoder.writeChunkHeader( chunk, messageId, i, _chunkCount );
+          chunk.position( 0 );
+          if ( !doSend( _stripe, chunk ) )
+          {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+
+    /**
+     * Return the buffers to the pool.
+     */
+    void end()
+    {
+      for ( int i = 0; i < _chunkCount; i++ )
+      {
+        _bufferPool.release( _stripe, _chunks[ i ] );
+        _chunks[ i ] = null;
+      }
+      _chunkCount = 0;
+    }
+
+    private ByteBuffer nextChunk()
+    {
+      if ( _chunkCount == _chunks.length )
+      {
+        _chunks = Arrays.copyOf( _chunks, _chunkCount * 2 );
+      }
+      final ByteBuffer chunk = _bufferPool.acquire( _stripe );
+      chunk.position( _headerSize );
+      _chunks[ _chunkCount++ ] = chunk;
+      return chunk;
+    }
+  }
+
+  /**
+   * A channel and the address it is connected to.
+   */
+  private static final class ConnectedChannel
+  {
+    final DatagramChannel channel;
+    final InetSocketAddress address;
+
+    ConnectedChannel( final DatagramChannel channel, final InetSocketAddress address )
+    {
+      this.channel = channel;
+      this.address = address;
+    }
+  }
+}
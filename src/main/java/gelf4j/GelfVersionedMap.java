@@ -0,0 +1,153 @@
+package gelf4j;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hash map that counts its modifications, so that values derived from its contents can be checked for
+ * staleness by comparing a number rather than the contents of the map.
+ */
+final class GelfVersionedMap<K, V>
+  extends AbstractMap<K, V>
+{
+  private final HashMap<K, V> _map = new HashMap<K, V>();
+  private final AtomicLong _version = new AtomicLong();
+  private final Set<Map.Entry<K, V>> _entrySet = new EntrySet();
+
+  /**
+   * @return a number that changes whenever the map is modified.
+   */
+  long getVersion()
+  {
+    return _version.get();
+  }
+
+  @Override
+  public int size()
+  {
+    return _map.size();
+  }
+
+  @Override
+  public boolean containsKey( final Object key )
+  {
+    return _map.containsKey( key );
+  }
+
+  @Override
+  public V get( final Object key )
+  {
+    return _map.get( key );
+  }
+
+  @Override
+  public V put( final K key, final V value )
+  {
+    _version.incrementAndGet();
+    return _map.put( key, value );
+  }
+
+  @Override
+  public V remove( final Object key )
+  {
+    _version.incrementAndGet();
+    return _map.remove( key );
+  }
+
+  @Override
+  public void clear()
+  {
+    _version.incrementAndGet();
+    _map.clear();
+  }
+
+  @Override
+  public Set<Map.Entry<K, V>> entrySet()
+  {
+    return _entrySet;
+  }
+
+  private final class EntrySet
+    extends AbstractSet<Map.Entry<K, V>>
+  {
+    @Override
+    public int size()
+    {
+      return _map.size();
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator()
+    {
+      final Iterator<Map.Entry<K, V>> iterator = _map.entrySet().iterator();
+      return new Iterator<Map.Entry<K, V>>()
+      {
+        public boolean hasNext()
+        {
+          return iterator.hasNext();
+        }
+
+        public Map.Entry<K, V> next()
+        {
+          return new VersionedEntry( iterator.next() );
+        }
+
+        public void remove()
+        {
+          _version.incrementAndGet();
+          iterator.remove();
+        }
+      };
+    }
+  }
+
+  private final class VersionedEntry
+    implements Map.Entry<K, V>
+  {
+    private final Map.Entry<K, V> _entry;
+
+    VersionedEntry( final Map.Entry<K, V> entry )
+    {
+      _entry = entry;
+    }
+
+    public K getKey()
+    {
+      return _entry.getKey();
+    }
+
+    public V getValue()
+    {
+      return _entry.getValue();
+    }
+
+    public V setValue( final V value )
+    {
+      _version.incrementAndGet();
+      return _entry.setValue( value );
+    }
+
+    @Override
+    public boolean equals( final Object o )
+    {
+      return _entry.equals( o );
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return _entry.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+      return _entry.toString();
+    }
+  }
+}
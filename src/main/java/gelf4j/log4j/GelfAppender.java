@@ -8,6 +8,7 @@ import gelf4j.SyslogLevel;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.spi.ErrorCode;
 import org.apache.log4j.spi.LocationInfo;
@@ -23,6 +24,8 @@ public class GelfAppender
   extends AppenderSkeleton
 {
   private static final String FIELD_LOGGER_NDC = "loggerNdc";
+  // Cached as SyslogLevel.values() copies the array on every call
+  private static final SyslogLevel[] LEVELS = SyslogLevel.values();
 
   private static boolean c_searchForMethodOccurred;
   private static Method c_getTimestampMethod;
@@ -40,6 +43,176 @@ public class GelfAppender
     _config.setCompressedChunking( compressedChunking );
   }
 
+  public void setAsync( final boolean async )
+  {
+    _config.setAsync( async );
+  }
+
+  public void setAsyncQueueCapacity( final int asyncQueueCapacity )
+  {
+    _config.setAsyncQueueCapacity( asyncQueueCapacity );
+  }
+
+  public void setSpillDirectory( final String spillDirectory )
+  {
+    _config.setSpillDirectory( spillDirectory );
+  }
+
+  public void setSpillMaxSize( final long spillMaxSize )
+  {
+    _config.setSpillMaxSize( spillMaxSize );
+  }
+
+  public void setSpillSegmentSize( final int spillSegmentSize )
+  {
+    _config.setSpillSegmentSize( spillSegmentSize );
+  }
+
+  public void setChannelPoolSize( final int channelPoolSize )
+  {
+    _config.setChannelPoolSize( channelPoolSize );
+  }
+
+  public void setTargets( final String targets )
+  {
+    _config.setTargets( targets );
+  }
+
+  public void setLoadBalancing( final String loadBalancing )
+  {
+    _config.setLoadBalancing( loadBalancing );
+  }
+
+  public void setLoadBalancingKey( final String loadBalancingKey )
+  {
+    _config.setLoadBalancingKey( loadBalancingKey );
+  }
+
+  public void setCircuitBreakerFailureThreshold( final int circuitBreakerFailureThreshold )
+  {
+    _config.setCircuitBreakerFailureThreshold( circuitBreakerFailureThreshold );
+  }
+
+  public void setCircuitBreakerInitialBackoff( final long circuitBreakerInitialBackoff )
+  {
+    _config.setCircuitBreakerInitialBackoff( circuitBreakerInitialBackoff );
+  }
+
+  public void setCircuitBreakerMaxBackoff( final long circuitBreakerMaxBackoff )
+  {
+    _config.setCircuitBreakerMaxBackoff( circuitBreakerMaxBackoff );
+  }
+
+  public void setDnsRefreshInterval( final long dnsRefreshInterval )
+  {
+    _config.setDnsRefreshInterval( dnsRefreshInterval );
+  }
+
+  public void setRateLimit( final long rateLimit )
+  {
+    _config.setRateLimit( rateLimit );
+  }
+
+  public void setRateLimitBurst( final long rateLimitBurst )
+  {
+    _config.setRateLimitBurst( rateLimitBurst );
+  }
+
+  public void setRateLimits( final String rateLimits )
+  {
+    _config.setRateLimits( rateLimits );
+  }
+
+  public void setSamplingRates( final String samplingRates )
+  {
+    _config.setSamplingRates( samplingRates );
+  }
+
+  public void setSamplingKey( final String samplingKey )
+  {
+    _config.setSamplingKey( samplingKey );
+  }
+
+  public void setDedupWindow( final long dedupWindow )
+  {
+    _config.setDedupWindow( dedupWindow );
+  }
+
+  public void setDedupTableSize( final int dedupTableSize )
+  {
+    _config.setDedupTableSize( dedupTableSize );
+  }
+
+  public void setHttpPath( final String httpPath )
+  {
+    _config.setHttpPath( httpPath );
+  }
+
+  public void setHttpBatchSize( final int httpBatchSize )
+  {
+    _config.setHttpBatchSize( httpBatchSize );
+  }
+
+  public void setHttpCompression( final boolean httpCompression )
+  {
+    _config.setHttpCompression( httpCompression );
+  }
+
+  public void setMaxLinger( final long maxLinger )
+  {
+    _config.setMaxLinger( maxLinger );
+  }
+
+  public void setExecutor( final Executor executor )
+  {
+    _config.setExecutor( executor );
+  }
+
+  public void setOverloadPolicy( final String overloadPolicy )
+  {
+    _config.setOverloadPolicy( overloadPolicy );
+  }
+
+  public void setOverloadBlockTimeout( final long overloadBlockTimeout )
+  {
+    _config.setOverloadBlockTimeout( overloadBlockTimeout );
+  }
+
+  public void setEncodeWithCodec( final boolean encodeWithCodec )
+  {
+    _config.setEncodeWithCodec( encodeWithCodec );
+  }
+
+  public void setCompression( final String compression )
+  {
+    _config.setCompression( compression );
+  }
+
+  public void setCompressionLevel( final int compressionLevel )
+  {
+    _config.setCompressionLevel( compressionLevel );
+  }
+
+  public void setCompressionThreshold( final int compressionThreshold )
+  {
+    _config.setCompressionThreshold( compressionThreshold );
+  }
+
+  public void setChunkSize( final int chunkSize )
+  {
+    _config.setChunkSize( chunkSize );
+  }
+
+  public void setMaxChunkCount( final int maxChunkCount )
+  {
+    _config.setMaxChunkCount( maxChunkCount );
+  }
+
+  public void setParallelCompressionThreshold( final int parallelCompressionThreshold )
+  {
+    _config.setParallelCompressionThreshold( parallelCompressionThreshold );
+  }
+
   public void setPort( final int port )
   {
     _config.setPort( port );
@@ -50,6 +223,11 @@ public class GelfAppender
     _config.setHost( host );
   }
 
+  public void setProtocol( final String protocol )
+  {
+    _config.setProtocol( protocol );
+  }
+
   public void setCodecClass( final String codecClass )
   {
     _config.setCodecClass( codecClass );
@@ -97,7 +275,11 @@ public class GelfAppender
   @Override
   protected void append( final LoggingEvent event )
   {
-    if( _connection == null || !_connection.send( makeMessage( event ) ) )
+    if( _connection == null )
+    {
+      errorHandler.error( "Could not send GELF message" );
+    }
+    else if( isAccepted( event ) && !_connection.send( makeMessage( event ) ) )
     {
       errorHandler.error( "Could not send GELF message" );
     }
@@ -108,6 +290,18 @@ public class GelfAppender
     return false;
   }
 
+  /**
+   * Check the sampling and rate limit before the message is built so that discarded events are cheap.
+   */
+  private boolean isAccepted( final LoggingEvent event )
+  {
+    final String samplingKey = _config.getSamplingKey();
+    final Object samplingValue = null != samplingKey ? event.getMDC( samplingKey ) : null;
+    final SyslogLevel level = LEVELS[ event.getLevel().getSyslogEquivalent() ];
+    return _connection.isSampled( level, null != samplingValue ? samplingValue.toString() : null ) &&
+           _connection.isPermitted( event.getLoggerName() );
+  }
+
   private GelfMessage makeMessage( LoggingEvent event )
   {
     final long timestamp = getTimestamp( event );
@@ -128,7 +322,7 @@ public class GelfAppender
     }
 
     final String renderedMessage = event.getRenderedMessage();
-    final SyslogLevel level = SyslogLevel.values()[ event.getLevel().getSyslogEquivalent() ];
+    final SyslogLevel level = LEVELS[ event.getLevel().getSyslogEquivalent() ];
     final GelfMessage message =
       _connection.newMessage( level, renderedMessage == null ? "" : renderedMessage, timestamp );
     if( null != lineNumber )
@@ -140,7 +334,7 @@ public class GelfAppender
       message.setFile( file );
     }
 
-    for( final Map.Entry<String, String> entry : _config.getAdditionalFields().entrySet() )
+    for( final Map.Entry<String, String> entry : _connection.getAdditionalFields().entrySet() )
     {
       final String fieldName = entry.getValue();
       final String key = entry.getKey();
@@ -154,7 +348,7 @@ public class GelfAppender
       }
       else if( GelfTargetConfig.FIELD_TIMESTAMP_MS.equals( fieldName ) )
       {
-        GelfMessageUtil.setValue( message, key, message.getJavaTimestamp() );
+        GelfMessageUtil.setValue( message, key, message.getJavaTimestampMillis() );
       }
       else if( GelfTargetConfig.FIELD_EXCEPTION.equals( fieldName ) )
       {
@@ -189,7 +383,6 @@ public class GelfAppender
         }
       }
     }
-    message.getAdditionalFields().putAll( _config.getDefaultFields() );
 
     return message;
   }
@@ -4,7 +4,7 @@ import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.IThrowableProxy;
 import ch.qos.logback.classic.spi.StackTraceElementProxy;
 import ch.qos.logback.classic.util.LevelToSyslogSeverity;
-import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
 import gelf4j.GelfConnection;
 import gelf4j.GelfMessage;
 import gelf4j.GelfMessageUtil;
@@ -12,16 +12,20 @@ import gelf4j.GelfTargetConfig;
 import gelf4j.SyslogLevel;
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * Responsible for Formatting a log event and sending it to the Server. Note that you can't swap in a different
  * Layout since the GELF format is static.
  */
 @SuppressWarnings( "UnusedDeclaration" )
-public class GelfAppender<E> extends AppenderBase<E>
+public class GelfAppender<E> extends UnsynchronizedAppenderBase<E>
 {
+  // Cached as SyslogLevel.values() copies the array on every call
+  private static final SyslogLevel[] LEVELS = SyslogLevel.values();
+
   private final GelfTargetConfig _config = new GelfTargetConfig();
-  private GelfConnection _connection;
+  private volatile GelfConnection _connection;
 
   public GelfTargetConfig getConfig()
   {
@@ -33,6 +37,176 @@ public class GelfAppender<E> extends AppenderBase<E>
     _config.setCompressedChunking( compressedChunking );
   }
 
+  public void setAsync( final boolean async )
+  {
+    _config.setAsync( async );
+  }
+
+  public void setAsyncQueueCapacity( final int asyncQueueCapacity )
+  {
+    _config.setAsyncQueueCapacity( asyncQueueCapacity );
+  }
+
+  public void setSpillDirectory( final String spillDirectory )
+  {
+    _config.setSpillDirectory( spillDirectory );
+  }
+
+  public void setSpillMaxSize( final long spillMaxSize )
+  {
+    _config.setSpillMaxSize( spillMaxSize );
+  }
+
+  public void setSpillSegmentSize( final int spillSegmentSize )
+  {
+    _config.setSpillSegmentSize( spillSegmentSize );
+  }
+
+  public void setChannelPoolSize( final int channelPoolSize )
+  {
+    _config.setChannelPoolSize( channelPoolSize );
+  }
+
+  public void setTargets( final String targets )
+  {
+    _config.setTargets( targets );
+  }
+
+  public void setLoadBalancing( final String loadBalancing )
+  {
+    _config.setLoadBalancing( loadBalancing );
+  }
+
+  public void setLoadBalancingKey( final String loadBalancingKey )
+  {
+    _config.setLoadBalancingKey( loadBalancingKey );
+  }
+
+  public void setCircuitBreakerFailureThreshold( final int circuitBreakerFailureThreshold )
+  {
+    _config.setCircuitBreakerFailureThreshold( circuitBreakerFailureThreshold );
+  }
+
+  public void setCircuitBreakerInitialBackoff( final long circuitBreakerInitialBackoff )
+  {
+    _config.setCircuitBreakerInitialBackoff( circuitBreakerInitialBackoff );
+  }
+
+  public void setCircuitBreakerMaxBackoff( final long circuitBreakerMaxBackoff )
+  {
+    _config.setCircuitBreakerMaxBackoff( circuitBreakerMaxBackoff );
+  }
+
+  public void setDnsRefreshInterval( final long dnsRefreshInterval )
+  {
+    _config.setDnsRefreshInterval( dnsRefreshInterval );
+  }
+
+  public void setRateLimit( final long rateLimit )
+  {
+    _config.setRateLimit( rateLimit );
+  }
+
+  public void setRateLimitBurst( final long rateLimitBurst )
+  {
+    _config.setRateLimitBurst( rateLimitBurst );
+  }
+
+  public void setRateLimits( final String rateLimits )
+  {
+    _config.setRateLimits( rateLimits );
+  }
+
+  public void setSamplingRates( final String samplingRates )
+  {
+    _config.setSamplingRates( samplingRates );
+  }
+
+  public void setSamplingKey( final String samplingKey )
+  {
+    _config.setSamplingKey( samplingKey );
+  }
+
+  public void setDedupWindow( final long dedupWindow )
+  {
+    _config.setDedupWindow( dedupWindow );
+  }
+
+  public void setDedupTableSize( final int dedupTableSize )
+  {
+    _config.setDedupTableSize( dedupTableSize );
+  }
+
+  public void setHttpPath( final String httpPath )
+  {
+    _config.setHttpPath( httpPath );
+  }
+
+  public void setHttpBatchSize( final int httpBatchSize )
+  {
+    _config.setHttpBatchSize( httpBatchSize );
+  }
+
+  public void setHttpCompression( final boolean httpCompression )
+  {
+    _config.setHttpCompression( httpCompression );
+  }
+
+  public void setMaxLinger( final long maxLinger )
+  {
+    _config.setMaxLinger( maxLinger );
+  }
+
+  public void setExecutor( final Executor executor )
+  {
+    _config.setExecutor( executor );
+  }
+
+  public void setOverloadPolicy( final String overloadPolicy )
+  {
+    _config.setOverloadPolicy( overloadPolicy );
+  }
+
+  public void setOverloadBlockTimeout( final long overloadBlockTimeout )
+  {
+    _config.setOverloadBlockTimeout( overloadBlockTimeout );
+  }
+
+  public void setEncodeWithCodec( final boolean encodeWithCodec )
+  {
+    _config.setEncodeWithCodec( encodeWithCodec );
+  }
+
+  public void setCompression( final String compression )
+  {
+    _config.setCompression( compression );
+  }
+
+  public void setCompressionLevel( final int compressionLevel )
+  {
+    _config.setCompressionLevel( compressionLevel );
+  }
+
+  public void setCompressionThreshold( final int compressionThreshold )
+  {
+    _config.setCompressionThreshold( compressionThreshold );
+  }
+
+  public void setChunkSize( final int chunkSize )
+  {
+    _config.setChunkSize( chunkSize );
+  }
+
+  public void setMaxChunkCount( final int maxChunkCount )
+  {
+    _config.setMaxChunkCount( maxChunkCount );
+  }
+
+  public void setParallelCompressionThreshold( final int parallelCompressionThreshold )
+  {
+    _config.setParallelCompressionThreshold( parallelCompressionThreshold );
+  }
+
   public void setPort( final int port )
   {
     _config.setPort( port );
@@ -43,6 +217,11 @@ public class GelfAppender<E> extends AppenderBase<E>
     _config.setHost( host );
   }
 
+  public void setProtocol( final String protocol )
+  {
+    _config.setProtocol( protocol );
+  }
+
   public void setCodecClass( final String codecClass )
   {
     _config.setCodecClass( codecClass );
@@ -61,7 +240,6 @@ public class GelfAppender<E> extends AppenderBase<E>
   @Override
   public void start()
   {
-    super.start();
     try
     {
       _connection = _config.createConnection();
@@ -70,38 +248,50 @@ public class GelfAppender<E> extends AppenderBase<E>
     {
       throw new RuntimeException( "Error initialising gelf connection", e );
     }
+    super.start();
   }
 
   @Override
   public void stop()
   {
-    if( null != _connection )
+    super.stop();
+    final GelfConnection connection = _connection;
+    _connection = null;
+    if( null != connection )
     {
       try
       {
-        _connection.close();
+        connection.close();
       }
       catch ( final IOException ioe )
       {
         //Ignored
       }
-      _connection = null;
     }
-    super.stop();
   }
 
   /**
    * The main append method. Takes the event that is being logged, formats if for GELF and then sends it over the wire
-   * to the log server
+   * to the log server. Appends are not serialized so that logging threads do not block each other, or pin the
+   * carrier of a virtual thread, while a message is sent.
    *
    * @param logEvent The event that we are logging
    */
   @Override
   protected void append( final E logEvent )
   {
+    final GelfConnection connection = _connection;
+    if( null == connection )
+    {
+      return;
+    }
     try
     {
-      _connection.send( toGelf( logEvent ) );
+      final ILoggingEvent event = (ILoggingEvent) logEvent;
+      if( isAccepted( connection, event ) )
+      {
+        connection.send( toGelf( connection, event ) );
+      }
     }
     catch( RuntimeException e )
     {
@@ -110,22 +300,32 @@ public class GelfAppender<E> extends AppenderBase<E>
     }
   }
 
+  /**
+   * Check the sampling and rate limit before the message is built so that discarded events are cheap.
+   */
+  private boolean isAccepted( final GelfConnection connection, final ILoggingEvent event )
+  {
+    final String samplingKey = _config.getSamplingKey();
+    final SyslogLevel level = LEVELS[ LevelToSyslogSeverity.convert( event ) ];
+    return connection.isSampled( level, null != samplingKey ? event.getMDCPropertyMap().get( samplingKey ) : null ) &&
+           connection.isPermitted( event.getLoggerName() );
+  }
+
   /**
    * Converts a log event into GELF JSON.
    *
-   * @param logEvent The log event we're converting
+   * @param connection The connection used to create the message
+   * @param event The log event we're converting
    * @return The log event converted into GELF JSON
    */
-  private GelfMessage toGelf( final E logEvent )
+  private GelfMessage toGelf( final GelfConnection connection, final ILoggingEvent event )
   {
-    final ILoggingEvent event = (ILoggingEvent) logEvent;
-
     final String formattedMessage = event.getFormattedMessage();
-    final SyslogLevel level = SyslogLevel.values()[ LevelToSyslogSeverity.convert( event ) ];
-    final GelfMessage message = _connection.newMessage( level, formattedMessage, event.getTimeStamp() );
+    final SyslogLevel level = LEVELS[ LevelToSyslogSeverity.convert( event ) ];
+    final GelfMessage message = connection.newMessage( level, formattedMessage, event.getTimeStamp() );
 
     final Map<String, String> mdc = event.getMDCPropertyMap();
-    for( final Map.Entry<String, String> entry : _config.getAdditionalFields().entrySet() )
+    for( final Map.Entry<String, String> entry : connection.getAdditionalFields().entrySet() )
     {
       final String fieldName = entry.getValue();
       final String key = entry.getKey();
@@ -139,7 +339,7 @@ public class GelfAppender<E> extends AppenderBase<E>
       }
       else if( GelfTargetConfig.FIELD_TIMESTAMP_MS.equals( fieldName ) )
       {
-        GelfMessageUtil.setValue( message, key, message.getJavaTimestamp() );
+        GelfMessageUtil.setValue( message, key, message.getJavaTimestampMillis() );
       }
       else if( GelfTargetConfig.FIELD_EXCEPTION.equals( fieldName ) )
       {
@@ -168,7 +368,6 @@ public class GelfAppender<E> extends AppenderBase<E>
         }
       }
     }
-    message.getAdditionalFields().putAll( _config.getDefaultFields() );
 
     return message;
   }
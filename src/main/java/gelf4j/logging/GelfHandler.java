@@ -6,7 +6,10 @@ import gelf4j.GelfMessageUtil;
 import gelf4j.GelfTargetConfig;
 import gelf4j.SyslogLevel;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.time.Instant;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.ErrorManager;
 import java.util.logging.Filter;
 import java.util.logging.Handler;
@@ -21,8 +24,12 @@ public class GelfHandler
   public static final String FIELD_SOURCE_CLASS_NAME = "SourceClassName";
   public static final String FIELD_SOURCE_METHOD_NAME = "SourceMethodName";
 
+  // LogRecord.getInstant() was added in Java 9 and has microsecond or better precision
+  private static final Method c_getInstantMethod = findGetInstantMethod();
+
   private final GelfTargetConfig _config = new GelfTargetConfig();
-  private GelfConnection _connection;
+  private final ReentrantLock _lock = new ReentrantLock();
+  private volatile GelfConnection _connection;
 
   public GelfHandler()
   {
@@ -39,6 +46,11 @@ public class GelfHandler
     {
       _config.setPort( Integer.parseInt( port ) );
     }
+    final String protocol = manager.getProperty( prefix + ".protocol" );
+    if( null != protocol )
+    {
+      _config.setProtocol( protocol );
+    }
     final String additionalFields = manager.getProperty( prefix + ".additionalFields" );
     if( null != additionalFields )
     {
@@ -54,6 +66,166 @@ public class GelfHandler
     {
       _config.setCompressedChunking( "true".equals( compressedChunking ) );
     }
+    final String async = manager.getProperty( prefix + ".async" );
+    if( null != async )
+    {
+      _config.setAsync( "true".equals( async ) );
+    }
+    final String asyncQueueCapacity = manager.getProperty( prefix + ".asyncQueueCapacity" );
+    if( null != asyncQueueCapacity )
+    {
+      _config.setAsyncQueueCapacity( Integer.parseInt( asyncQueueCapacity ) );
+    }
+    final String spillDirectory = manager.getProperty( prefix + ".spillDirectory" );
+    if( null != spillDirectory )
+    {
+      _config.setSpillDirectory( spillDirectory );
+    }
+    final String spillMaxSize = manager.getProperty( prefix + ".spillMaxSize" );
+    if( null != spillMaxSize )
+    {
+      _config.setSpillMaxSize( Long.parseLong( spillMaxSize ) );
+    }
+    final String spillSegmentSize = manager.getProperty( prefix + ".spillSegmentSize" );
+    if( null != spillSegmentSize )
+    {
+      _config.setSpillSegmentSize( Integer.parseInt( spillSegmentSize ) );
+    }
+    final String channelPoolSize = manager.getProperty( prefix + ".channelPoolSize" );
+    if( null != channelPoolSize )
+    {
+      _config.setChannelPoolSize( Integer.parseInt( channelPoolSize ) );
+    }
+    final String targets = manager.getProperty( prefix + ".targets" );
+    if( null != targets )
+    {
+      _config.setTargets( targets );
+    }
+    final String loadBalancing = manager.getProperty( prefix + ".loadBalancing" );
+    if( null != loadBalancing )
+    {
+      _config.setLoadBalancing( loadBalancing );
+    }
+    final String loadBalancingKey = manager.getProperty( prefix + ".loadBalancingKey" );
+    if( null != loadBalancingKey )
+    {
+      _config.setLoadBalancingKey( loadBalancingKey );
+    }
+    final String circuitBreakerFailureThreshold = manager.getProperty( prefix + ".circuitBreakerFailureThreshold" );
+    if( null != circuitBreakerFailureThreshold )
+    {
+      _config.setCircuitBreakerFailureThreshold( Integer.parseInt( circuitBreakerFailureThreshold ) );
+    }
+    final String circuitBreakerInitialBackoff = manager.getProperty( prefix + ".circuitBreakerInitialBackoff" );
+    if( null != circuitBreakerInitialBackoff )
+    {
+      _config.setCircuitBreakerInitialBackoff( Long.parseLong( circuitBreakerInitialBackoff ) );
+    }
+    final String circuitBreakerMaxBackoff = manager.getProperty( prefix + ".circuitBreakerMaxBackoff" );
+    if( null != circuitBreakerMaxBackoff )
+    {
+      _config.setCircuitBreakerMaxBackoff( Long.parseLong( circuitBreakerMaxBackoff ) );
+    }
+    final String dnsRefreshInterval = manager.getProperty( prefix + ".dnsRefreshInterval" );
+    if( null != dnsRefreshInterval )
+    {
+      _config.setDnsRefreshInterval( Long.parseLong( dnsRefreshInterval ) );
+    }
+    final String rateLimit = manager.getProperty( prefix + ".rateLimit" );
+    if( null != rateLimit )
+    {
+      _config.setRateLimit( Long.parseLong( rateLimit ) );
+    }
+    final String rateLimitBurst = manager.getProperty( prefix + ".rateLimitBurst" );
+    if( null != rateLimitBurst )
+    {
+      _config.setRateLimitBurst( Long.parseLong( rateLimitBurst ) );
+    }
+    final String rateLimits = manager.getProperty( prefix + ".rateLimits" );
+    if( null != rateLimits )
+    {
+      _config.setRateLimits( rateLimits );
+    }
+    final String samplingRates = manager.getProperty( prefix + ".samplingRates" );
+    if( null != samplingRates )
+    {
+      _config.setSamplingRates( samplingRates );
+    }
+    final String dedupWindow = manager.getProperty( prefix + ".dedupWindow" );
+    if( null != dedupWindow )
+    {
+      _config.setDedupWindow( Long.parseLong( dedupWindow ) );
+    }
+    final String dedupTableSize = manager.getProperty( prefix + ".dedupTableSize" );
+    if( null != dedupTableSize )
+    {
+      _config.setDedupTableSize( Integer.parseInt( dedupTableSize ) );
+    }
+    final String httpPath = manager.getProperty( prefix + ".httpPath" );
+    if( null != httpPath )
+    {
+      _config.setHttpPath( httpPath );
+    }
+    final String httpBatchSize = manager.getProperty( prefix + ".httpBatchSize" );
+    if( null != httpBatchSize )
+    {
+      _config.setHttpBatchSize( Integer.parseInt( httpBatchSize ) );
+    }
+    final String httpCompression = manager.getProperty( prefix + ".httpCompression" );
+    if( null != httpCompression )
+    {
+      _config.setHttpCompression( "true".equals( httpCompression ) );
+    }
+    final String maxLinger = manager.getProperty( prefix + ".maxLinger" );
+    if( null != maxLinger )
+    {
+      _config.setMaxLinger( Long.parseLong( maxLinger ) );
+    }
+    final String overloadPolicy = manager.getProperty( prefix + ".overloadPolicy" );
+    if( null != overloadPolicy )
+    {
+      _config.setOverloadPolicy( overloadPolicy );
+    }
+    final String overloadBlockTimeout = manager.getProperty( prefix + ".overloadBlockTimeout" );
+    if( null != overloadBlockTimeout )
+    {
+      _config.setOverloadBlockTimeout( Long.parseLong( overloadBlockTimeout ) );
+    }
+    final String encodeWithCodec = manager.getProperty( prefix + ".encodeWithCodec" );
+    if( null != encodeWithCodec )
+    {
+      _config.setEncodeWithCodec( "true".equals( encodeWithCodec ) );
+    }
+    final String compression = manager.getProperty( prefix + ".compression" );
+    if( null != compression )
+    {
+      _config.setCompression( compression );
+    }
+    final String compressionLevel = manager.getProperty( prefix + ".compressionLevel" );
+    if( null != compressionLevel )
+    {
+      _config.setCompressionLevel( Integer.parseInt( compressionLevel ) );
+    }
+    final String compressionThreshold = manager.getProperty( prefix + ".compressionThreshold" );
+    if( null != compressionThreshold )
+    {
+      _config.setCompressionThreshold( Integer.parseInt( compressionThreshold ) );
+    }
+    final String chunkSize = manager.getProperty( prefix + ".chunkSize" );
+    if( null != chunkSize )
+    {
+      _config.setChunkSize( Integer.parseInt( chunkSize ) );
+    }
+    final String maxChunkCount = manager.getProperty( prefix + ".maxChunkCount" );
+    if( null != maxChunkCount )
+    {
+      _config.setMaxChunkCount( Integer.parseInt( maxChunkCount ) );
+    }
+    final String parallelCompressionThreshold = manager.getProperty( prefix + ".parallelCompressionThreshold" );
+    if( null != parallelCompressionThreshold )
+    {
+      _config.setParallelCompressionThreshold( Integer.parseInt( parallelCompressionThreshold ) );
+    }
     final String codecClass = manager.getProperty( prefix + ".codecClass" );
     if( null != codecClass )
     {
@@ -88,17 +260,27 @@ public class GelfHandler
   @Override
   public void close()
   {
-    if( null != _connection )
+    final GelfConnection connection;
+    _lock.lock();
+    try
+    {
+      connection = _connection;
+      _connection = null;
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+    if( null != connection )
     {
       try
       {
-        _connection.close();
+        connection.close();
       }
       catch ( final IOException ioe )
       {
         //Ignored
       }
-      _connection = null;
     }
   }
 
@@ -108,42 +290,78 @@ public class GelfHandler
   }
 
   @Override
-  public synchronized void flush()
+  public void flush()
   {
   }
 
+  /**
+   * Send the record. Records are not serialized so that logging threads do not block each other, or pin the
+   * carrier of a virtual thread, while a message is sent.
+   */
   @Override
-  public synchronized void publish( final LogRecord record )
+  public void publish( final LogRecord record )
   {
     if( !isLoggable( record ) )
     {
       return;
     }
-    if( null == _connection )
+    final GelfConnection connection = getConnection();
+    if( null == connection ||
+        ( isAccepted( connection, record ) && !connection.send( makeMessage( connection, record ) ) ) )
+    {
+      reportError( "Could not send GELF message", null, ErrorManager.WRITE_FAILURE );
+    }
+  }
+
+  private GelfConnection getConnection()
+  {
+    GelfConnection connection = _connection;
+    if( null == connection )
     {
+      _lock.lock();
       try
       {
-        _connection = _config.createConnection();
+        connection = _connection;
+        if( null == connection )
+        {
+          connection = _config.createConnection();
+          _connection = connection;
+        }
       }
       catch( final Exception e )
       {
         reportError( "Error initialising gelf connection: " + e.getMessage(), e, ErrorManager.WRITE_FAILURE );
       }
+      finally
+      {
+        _lock.unlock();
+      }
     }
-    if( null == _connection ||
-        !_connection.send( makeMessage( record ) ) )
-    {
-      reportError( "Could not send GELF message", null, ErrorManager.WRITE_FAILURE );
-    }
+    return connection;
   }
 
-  private GelfMessage makeMessage( final LogRecord record )
+  /**
+   * Check the sampling and rate limit before the message is built so that discarded records are cheap.
+   * There is no MDC in java.util.logging so records are sampled at random.
+   */
+  private boolean isAccepted( final GelfConnection connection, final LogRecord record )
+  {
+    return connection.isSampled( levelToSyslogLevel( record.getLevel() ), null ) &&
+           connection.isPermitted( record.getLoggerName() );
+  }
+
+  private GelfMessage makeMessage( final GelfConnection connection, final LogRecord record )
   {
     final String renderedMessage = record.getMessage();
     final SyslogLevel level = levelToSyslogLevel( record.getLevel() );
-    final GelfMessage message = _connection.newMessage( level, renderedMessage, record.getMillis() );
+    final GelfMessage message = connection.newMessage( level, renderedMessage, record.getMillis() );
+    final Instant instant = getInstant( record );
+    if( null != instant )
+    {
+      message.setTimestamp( instant );
+    }
 
-    for( final Map.Entry<String, String> entry : _config.getAdditionalFields().entrySet() )
+    for( final Map.Entry<String, String> entry : connection.getAdditionalFields().entrySet() )
     {
       final String fieldName = entry.getValue();
       final String key = entry.getKey();
@@ -161,7 +379,7 @@ public class GelfHandler
       }
       else if( GelfTargetConfig.FIELD_TIMESTAMP_MS.equals( fieldName ) )
       {
-        GelfMessageUtil.setValue( message, key, message.getJavaTimestamp() );
+        GelfMessageUtil.setValue( message, key, message.getJavaTimestampMillis() );
       }
       else if( GelfTargetConfig.FIELD_EXCEPTION.equals( fieldName ) )
       {
@@ -184,6 +402,34 @@ public class GelfHandler
     return message;
   }
 
+  private static Method findGetInstantMethod()
+  {
+    try
+    {
+      return LogRecord.class.getMethod( "getInstant" );
+    }
+    catch( final NoSuchMethodException nsme )
+    {
+      return null;
+    }
+  }
+
+  private Instant getInstant( final LogRecord record )
+  {
+    if( null != c_getInstantMethod )
+    {
+      try
+      {
+        return (Instant) c_getInstantMethod.invoke( record );
+      }
+      catch( final Throwable t )
+      {
+        //Ignored
+      }
+    }
+    return null;
+  }
+
   private SyslogLevel levelToSyslogLevel( final Level level )
   {
     if( Level.SEVERE == level )
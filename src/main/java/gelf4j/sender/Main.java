@@ -8,6 +8,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import org.realityforge.getopt4j.CLArgsParser;
 import org.realityforge.getopt4j.CLOption;
@@ -26,6 +27,7 @@ public class Main
   private static final int UNCOMPRESSED_CHUNKING_OPT = 'u';
   private static final int FIELD_OPT = 'D';
   private static final int FILE_OPT = 'f';
+  private static final int LINE_PER_MESSAGE_OPT = 'l';
 
   private static final CLOptionDescriptor[] OPTIONS = new CLOptionDescriptor[]{
     new CLOptionDescriptor( "help",
@@ -44,6 +46,10 @@ public class Main
                             CLOptionDescriptor.ARGUMENT_REQUIRED,
                             FILE_OPT,
                             "file to read message from." ),
+    new CLOptionDescriptor( "line-per-message",
+                            CLOptionDescriptor.ARGUMENT_DISALLOWED,
+                            LINE_PER_MESSAGE_OPT,
+                            "send each line of the message as a separate message." ),
     new CLOptionDescriptor( "field",
                             CLOptionDescriptor.ARGUMENTS_REQUIRED_2 | CLOptionDescriptor.DUPLICATES_ALLOWED,
                             FIELD_OPT,
@@ -64,6 +70,7 @@ public class Main
 
   private static final GelfTargetConfig c_config = new GelfTargetConfig();
   private static boolean c_verbose;
+  private static boolean c_linePerMessage;
   private static String c_message;
   private static File c_messageFromFile;
 
@@ -84,11 +91,7 @@ public class Main
         info( "Attempting to transmit message" );
       }
       connection = c_config.createConnection();
-      final GelfMessage message = connection.newMessage();
-      if( null != c_message )
-      {
-        GelfMessageUtil.setValue( message, GelfTargetConfig.FIELD_MESSAGE, c_message );
-      }
+      String text = c_message;
       if( null != c_messageFromFile )
       {
         final BufferedReader reader = new BufferedReader(  new FileReader( c_messageFromFile ) );
@@ -99,17 +102,44 @@ public class Main
           sb.append( line );
           sb.append( "\n" );
         }
-        GelfMessageUtil.setValue( message, GelfTargetConfig.FIELD_MESSAGE, sb.toString() );
+        text = sb.toString();
       }
-      if( null == message.getShortMessage() )
+      if( null == text )
       {
         error( "No message specified" );
         System.exit( ERROR_PARSING_ARGS_EXIT_CODE );
       }
-      if( !connection.send( message ) )
+      if( c_linePerMessage )
+      {
+        final List<GelfMessage> messages = new ArrayList<GelfMessage>();
+        for( final String line : text.split( "\n" ) )
+        {
+          if( 0 != line.trim().length() )
+          {
+            final GelfMessage message = connection.newMessage();
+            GelfMessageUtil.setValue( message, GelfTargetConfig.FIELD_MESSAGE, line );
+            messages.add( message );
+          }
+        }
+        if( c_verbose )
+        {
+          info( "Transmitting " + messages.size() + " messages" );
+        }
+        if( !connection.send( messages ) )
+        {
+          error( "Failed to send messages" );
+          System.exit( ERROR_SENDING_EXIT_CODE );
+        }
+      }
+      else
       {
-        error( "Failed to send message: " + message );
-        System.exit( ERROR_SENDING_EXIT_CODE );
+        final GelfMessage message = connection.newMessage();
+        GelfMessageUtil.setValue( message, GelfTargetConfig.FIELD_MESSAGE, text );
+        if( !connection.send( message ) )
+        {
+          error( "Failed to send message: " + message );
+          System.exit( ERROR_SENDING_EXIT_CODE );
+        }
       }
       connection.close();
       if( c_verbose )
@@ -207,6 +237,11 @@ public class Main
           c_config.setCompressedChunking( false );
           break;
         }
+        case LINE_PER_MESSAGE_OPT:
+        {
+          c_linePerMessage = true;
+          break;
+        }
         case VERBOSE_OPT:
         {
           c_verbose = true;
@@ -1,10 +1,14 @@
 package gelf4j;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.SocketException;
 import java.util.zip.GZIPInputStream;
 
@@ -14,6 +18,30 @@ public class ConnectionUtil
   {
   }
 
+  /**
+   * Create the connection and wait for its targets to be resolved in the background, so that messages sent
+   * straight away are not skipped.
+   */
+  public static GelfConnection createConnection( final GelfTargetConfig config )
+    throws Exception
+  {
+    return awaitResolved( config.createConnection() );
+  }
+
+  /**
+   * Wait for the targets of the connection to be resolved in the background.
+   */
+  public static <T extends GelfConnection> T awaitResolved( final T connection )
+    throws InterruptedException
+  {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while ( !connection.isResolved() && System.currentTimeMillis() < deadline )
+    {
+      Thread.sleep( 5 );
+    }
+    return connection;
+  }
+
   public static DatagramSocket createServer( final String host, final int port )
     throws SocketException
   {
@@ -43,6 +71,34 @@ public class ConnectionUtil
     return packet;
   }
 
+  public static ServerSocket createTcpServer( final String host, final int port )
+    throws IOException
+  {
+    final ServerSocket serverSocket = new ServerSocket();
+    serverSocket.setReuseAddress( true );
+    serverSocket.bind( new InetSocketAddress( host, port ) );
+    return serverSocket;
+  }
+
+  /**
+   * Read a single null byte delimited frame from the stream.
+   */
+  public static String receiveFrameAsString( final InputStream inputStream )
+    throws IOException
+  {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    int ch;
+    while ( 0 != ( ch = inputStream.read() ) )
+    {
+      if ( -1 == ch )
+      {
+        throw new EOFException();
+      }
+      output.write( ch );
+    }
+    return output.toString( "UTF-8" );
+  }
+
   private static DatagramPacket newPacket()
   {
     final byte[] data = new byte[ 1024 * 8 ];
@@ -0,0 +1,45 @@
+package gelf4j;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GelfBufferPoolTest
+{
+  @Test
+  public void buffersAreReused()
+    throws Exception
+  {
+    final GelfBufferPool pool = new GelfBufferPool( 2, 128 );
+    final ByteBuffer buffer1 = pool.acquire( 0 );
+    assertTrue( buffer1.isDirect() );
+    assertEquals( 128, buffer1.capacity() );
+    buffer1.put( (byte) 1 );
+    pool.release( 0, buffer1 );
+
+    // The released buffer is handed out again, cleared
+    final ByteBuffer buffer2 = pool.acquire( 0 );
+    assertSame( buffer1, buffer2 );
+    assertEquals( 0, buffer2.position() );
+    assertEquals( 128, buffer2.limit() );
+
+    // The other preallocated buffer
+    final ByteBuffer buffer3 = pool.acquire( 0 );
+    assertTrue( buffer3.isDirect() );
+    assertNotSame( buffer2, buffer3 );
+
+    // An exhausted pool falls back to a heap buffer rather than allocating direct memory
+    final ByteBuffer heap = pool.acquire( 0 );
+    assertFalse( heap.isDirect() );
+    assertEquals( 128, heap.capacity() );
+
+    // Heap buffers and buffers released into a full pool are discarded
+    pool.release( 0, heap );
+    pool.release( 0, buffer2 );
+    pool.release( 0, buffer3 );
+    pool.release( 0, ByteBuffer.allocateDirect( 128 ) );
+    final ByteBuffer buffer4 = pool.acquire( 0 );
+    final ByteBuffer buffer5 = pool.acquire( 0 );
+    assertTrue( ( buffer4 == buffer2 && buffer5 == buffer3 ) || ( buffer4 == buffer3 && buffer5 == buffer2 ) );
+  }
+}
@@ -0,0 +1,65 @@
+package gelf4j;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GelfCircuitBreakerTest
+{
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos( 1 );
+
+  @Test
+  public void opensAfterConsecutiveFailuresAndBacksOff()
+    throws Exception
+  {
+    final GelfCircuitBreaker breaker = new GelfCircuitBreaker( 2, 10, 25 );
+    long now = 0;
+    assertTrue( breaker.allowRequest( now ) );
+    breaker.recordFailure( now );
+    breaker.recordSuccess();
+    // A success resets the consecutive failures
+    breaker.recordFailure( now );
+    assertEquals( GelfCircuitBreaker.CLOSED, breaker.getState() );
+    breaker.recordFailure( now );
+    assertEquals( GelfCircuitBreaker.OPEN, breaker.getState() );
+    assertEquals( 1, breaker.getOpenCount() );
+
+    assertFalse( breaker.allowRequest( now + 9 * MILLIS ) );
+    assertEquals( 1, breaker.getRejectedCount() );
+
+    // Only a single probe is allowed once the backoff expires
+    now += 10 * MILLIS;
+    assertTrue( breaker.allowRequest( now ) );
+    assertEquals( GelfCircuitBreaker.HALF_OPEN, breaker.getState() );
+    assertFalse( breaker.allowRequest( now ) );
+
+    // A failed probe doubles the backoff
+    breaker.recordFailure( now );
+    assertEquals( GelfCircuitBreaker.OPEN, breaker.getState() );
+    assertFalse( breaker.allowRequest( now + 19 * MILLIS ) );
+    now += 20 * MILLIS;
+    assertTrue( breaker.allowRequest( now ) );
+
+    // The backoff is capped
+    breaker.recordFailure( now );
+    assertFalse( breaker.allowRequest( now + 24 * MILLIS ) );
+    now += 25 * MILLIS;
+    assertTrue( breaker.allowRequest( now ) );
+
+    // A successful probe closes the breaker and resets the backoff
+    breaker.recordSuccess();
+    assertEquals( GelfCircuitBreaker.CLOSED, breaker.getState() );
+    breaker.recordFailure( now );
+    breaker.recordFailure( now );
+    assertFalse( breaker.allowRequest( now + 9 * MILLIS ) );
+    assertTrue( breaker.allowRequest( now + 10 * MILLIS ) );
+    assertEquals( 7, breaker.getFailureCount() );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void rejectsInvalidBackoff()
+    throws Exception
+  {
+    new GelfCircuitBreaker( 1, 10, 5 );
+  }
+}
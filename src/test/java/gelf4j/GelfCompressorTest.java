@@ -0,0 +1,181 @@
+package gelf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GelfCompressorTest
+{
+  @Test
+  public void gzip()
+    throws Exception
+  {
+    final GelfCompressor compressor = new GelfCompressor( GelfCompressor.GZIP, -1, 0 );
+    final byte[] data = createData( 10000 );
+    // The deflater is reused so compress several payloads, including one at an offset
+    for ( int i = 0; i < 3; i++ )
+    {
+      final byte[] compressed = compressor.compress( data, 0, data.length );
+      assertEquals( 0x1f, compressed[ 0 ] & 0xFF );
+      assertEquals( 0x8b, compressed[ 1 ] & 0xFF );
+      assertArrayEquals( data, read( new GZIPInputStream( new ByteArrayInputStream( compressed ) ) ) );
+    }
+    final byte[] compressed = compressor.compress( data, 10, 100 );
+    assertArrayEquals( Arrays.copyOfRange( data, 10, 110 ),
+                       read( new GZIPInputStream( new ByteArrayInputStream( compressed ) ) ) );
+
+    // A closed compressor ends its pooled deflaters but still compresses with a deflater per payload
+    compressor.close();
+    assertArrayEquals( data,
+                       read( new GZIPInputStream( new ByteArrayInputStream( compressor.compress( data, 0, data.length ) ) ) ) );
+  }
+
+  @Test
+  public void zlib()
+    throws Exception
+  {
+    final GelfCompressor compressor = new GelfCompressor( GelfCompressor.ZLIB, 9, 0 );
+    final byte[] data = createData( 10000 );
+    final byte[] compressed = compressor.compress( data, 0, data.length );
+    assertEquals( 0x78, compressed[ 0 ] & 0xFF );
+    assertArrayEquals( data, read( new InflaterInputStream( new ByteArrayInputStream( compressed ) ) ) );
+  }
+
+  @Test
+  public void uncompressedBelowThreshold()
+    throws Exception
+  {
+    final GelfCompressor compressor = new GelfCompressor( GelfCompressor.GZIP, -1, 100 );
+    final byte[] data = createData( 200 );
+    assertArrayEquals( createData( 99 ), compressor.compress( data, 0, 99 ) );
+    assertEquals( 0x1f, compressor.compress( data, 0, 100 )[ 0 ] & 0xFF );
+
+    assertArrayEquals( data, new GelfCompressor( GelfCompressor.NONE, -1, 0 ).compress( data, 0, data.length ) );
+  }
+
+  @Test
+  public void gzipInParallel()
+    throws Exception
+  {
+    final GelfCompressor compressor = new GelfCompressor( GelfCompressor.GZIP, -1, 0, 1024 * 1024 );
+    // Not a multiple of the block size so that the last block is partial
+    final byte[] data = createData( GelfCompressor.PARALLEL_BLOCK_SIZE * 5 + 123 );
+    final byte[] compressed = compressor.compress( data, 7, data.length - 7 );
+    assertArrayEquals( Arrays.copyOfRange( data, 7, data.length ),
+                       read( new GZIPInputStream( new ByteArrayInputStream( compressed ) ) ) );
+    assertEquals( 6, countGzipMembers( compressed ) );
+
+    // Payloads under the parallel threshold are a single member
+    final byte[] small = compressor.compress( data, 0, 1024 * 1024 - 1 );
+    assertEquals( 1, countGzipMembers( small ) );
+  }
+
+  @Test
+  public void compressToStreamsOutputIntoSink()
+    throws Exception
+  {
+    final byte[] data = createData( 100000 );
+    for ( final int type : new int[]{ GelfCompressor.GZIP, GelfCompressor.ZLIB, GelfCompressor.NONE } )
+    {
+      final GelfCompressor compressor = new GelfCompressor( type, -1, 0 );
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      final boolean completed = compressor.compressTo( data, 0, data.length, new GelfCompressor.Sink()
+      {
+        public boolean write( final byte[] block, final int offset, final int length )
+        {
+          output.write( block, offset, length );
+          return true;
+        }
+      } );
+      assertTrue( completed );
+      assertArrayEquals( compressor.compress( data, 0, data.length ), output.toByteArray() );
+    }
+  }
+
+  @Test
+  public void compressToStopsWhenSinkRefusesOutput()
+    throws Exception
+  {
+    final byte[] data = createData( 100000 );
+    final GelfCompressor compressor = new GelfCompressor( GelfCompressor.GZIP, -1, 0 );
+    final int[] writes = new int[ 1 ];
+    final boolean completed = compressor.compressTo( data, 0, data.length, new GelfCompressor.Sink()
+    {
+      public boolean write( final byte[] block, final int offset, final int length )
+      {
+        return ++writes[ 0 ] < 2;
+      }
+    } );
+    assertFalse( completed );
+    assertEquals( 2, writes[ 0 ] );
+
+    // The deflater is reset before it is reused
+    final byte[] compressed = compressor.compress( data, 0, data.length );
+    assertArrayEquals( data, read( new GZIPInputStream( new ByteArrayInputStream( compressed ) ) ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void invalidLevelIsRejected()
+    throws Exception
+  {
+    new GelfCompressor( GelfCompressor.GZIP, 10, 0 );
+  }
+
+  private byte[] read( final InputStream input )
+    throws Exception
+  {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[ 1024 ];
+    int count;
+    while ( -1 != ( count = input.read( buffer ) ) )
+    {
+      output.write( buffer, 0, count );
+    }
+    return output.toByteArray();
+  }
+
+  /**
+   * Count the members by decoding each one in turn with an inflater, which stops at the end of a member.
+   */
+  private int countGzipMembers( final byte[] compressed )
+    throws Exception
+  {
+    int count = 0;
+    int offset = 0;
+    final byte[] buffer = new byte[ 64 * 1024 ];
+    while ( offset < compressed.length )
+    {
+      assertEquals( 0x1f, compressed[ offset ] & 0xFF );
+      assertEquals( 0x8b, compressed[ offset + 1 ] & 0xFF );
+      final Inflater inflater = new Inflater( true );
+      // The header written by the compressor is always 10 bytes
+      inflater.setInput( compressed, offset + 10, compressed.length - offset - 10 );
+      while ( !inflater.finished() )
+      {
+        inflater.inflate( buffer );
+      }
+      // Skip the header, the deflate data and the crc and size trailer
+      offset += 10 + ( (int) inflater.getBytesRead() ) + 8;
+      inflater.end();
+      count++;
+    }
+    assertEquals( compressed.length, offset );
+    return count;
+  }
+
+  private byte[] createData( final int byteCount )
+  {
+    final byte[] data = new byte[ byteCount ];
+    for ( int i = 0; i < byteCount; i++ )
+    {
+      data[ i ] = (byte) ( 'a' + ( i * 7 % 26 ) );
+    }
+    return data;
+  }
+}
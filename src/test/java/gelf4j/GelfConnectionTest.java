@@ -1,10 +1,33 @@
 package gelf4j;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -24,7 +47,7 @@ public class GelfConnectionTest
       ConnectionUtil.createServer( config.getHostAddress().getHostName(), config.getPort() );
     try
     {
-      final GelfConnection connection = config.createConnection();
+      final GelfConnection connection = ConnectionUtil.createConnection( config );
 
       //Make sure close can be called before a send
       connection.close();
@@ -79,6 +102,732 @@ public class GelfConnectionTest
     }
   }
 
+  @Test
+  public void ensureAsyncSendUsesExecutor()
+    throws Exception
+  {
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setHost( InetAddress.getLocalHost().getCanonicalHostName() );
+    config.setPort( 1988 );
+    config.setAsync( true );
+    config.setAsyncQueueCapacity( 16 );
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    config.setExecutor( executor );
+
+    final DatagramSocket socket =
+      ConnectionUtil.createServer( config.getHostAddress().getHostName(), config.getPort() );
+    try
+    {
+      final GelfConnection connection = ConnectionUtil.createConnection( config );
+      final int messageCount = 10;
+      for ( int i = 0; i < messageCount; i++ )
+      {
+        assertTrue( connection.send( connection.newMessage( SyslogLevel.INFO, "Message " + i, 0 ) ) );
+      }
+      connection.close();
+
+      for ( int i = 0; i < messageCount; i++ )
+      {
+        assertTrue( ConnectionUtil.receivePacketAsString( socket ).contains( "Message " + i ) );
+      }
+    }
+    finally
+    {
+      executor.shutdown();
+      socket.close();
+    }
+  }
+
+  @Test
+  public void ensureAsyncSendDrainsOnClose()
+    throws Exception
+  {
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setHost( InetAddress.getLocalHost().getCanonicalHostName() );
+    config.setPort( 1978 );
+    config.setAsync( true );
+    config.setAsyncQueueCapacity( 16 );
+
+    final DatagramSocket socket =
+      ConnectionUtil.createServer( config.getHostAddress().getHostName(), config.getPort() );
+    try
+    {
+      final GelfConnection connection = ConnectionUtil.createConnection( config );
+      final int messageCount = 10;
+      for ( int i = 0; i < messageCount; i++ )
+      {
+        assertTrue( connection.send( connection.newMessage( SyslogLevel.INFO, "Message " + i, 0 ) ) );
+      }
+      connection.close();
+
+      for ( int i = 0; i < messageCount; i++ )
+      {
+        assertTrue( ConnectionUtil.receivePacketAsString( socket ).contains( "Message " + i ) );
+      }
+
+      //Messages sent after close are dropped rather than starting another sender
+      assertFalse( connection.send( connection.newMessage( SyslogLevel.INFO, "After close", 0 ) ) );
+      assertEquals( 1, connection.getClosedDropCount() );
+      connection.close();
+    }
+    finally
+    {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void messagesSentAfterCloseAreDropped()
+    throws Exception
+  {
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setHost( "127.0.0.1" );
+    config.setPort( 1995 );
+    config.setAsync( true );
+    final GelfConnection connection = ConnectionUtil.createConnection( config );
+    connection.close();
+
+    assertFalse( connection.send( connection.newMessage( SyslogLevel.INFO, "Message 1", 0 ) ) );
+    assertFalse( connection.send( Arrays.asList( connection.newMessage( SyslogLevel.INFO, "Message 2", 0 ),
+                                                 connection.newMessage( SyslogLevel.INFO, "Message 3", 0 ) ) ) );
+    assertEquals( 3, connection.getClosedDropCount() );
+    // The sender is not created again once the connection is closed
+    final Field field = GelfConnection.class.getDeclaredField( "_sender" );
+    field.setAccessible( true );
+    assertNull( ( (AtomicReference<?>) field.get( connection ) ).get() );
+  }
+
+  @Test
+  public void ensureTcpSendWorksAsExpected()
+    throws Exception
+  {
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setHost( InetAddress.getLocalHost().getCanonicalHostName() );
+    config.setPort( 1979 );
+    config.setProtocol( "TCP" );
+    assertEquals( GelfTargetConfig.PROTOCOL_TCP, config.getProtocol() );
+
+    final ServerSocket serverSocket =
+      ConnectionUtil.createTcpServer( config.getHostAddress().getHostName(), config.getPort() );
+    try
+    {
+      final GelfConnection connection = ConnectionUtil.createConnection( config );
+      assertTrue( connection.send( connection.newMessage( SyslogLevel.INFO, "Message 1", 0 ) ) );
+
+      final Socket socket = serverSocket.accept();
+      final InputStream inputStream = socket.getInputStream();
+      final String frame1 = ConnectionUtil.receiveFrameAsString( inputStream );
+      assertTrue( frame1.startsWith( "{" ) );
+      assertTrue( frame1.contains( "Message 1" ) );
+
+      // A large message is sent uncompressed and unchunked in a single frame
+      final String largeMessage = createString( 10000 );
+      assertTrue( connection.send( connection.newMessage( SyslogLevel.INFO, largeMessage, 0 ) ) );
+      final String frame2 = ConnectionUtil.receiveFrameAsString( inputStream );
+      assertTrue( frame2.contains( "\"short_message\"" ) );
+      assertTrue( frame2.endsWith( "}" ) );
+      socket.close();
+      connection.close();
+
+      //Messages sent from an async connection are written as a batch
+      config.setAsync( true );
+      final GelfConnection asyncConnection = ConnectionUtil.createConnection( config );
+      for ( int i = 0; i < 5; i++ )
+      {
+        assertTrue( asyncConnection.send( asyncConnection.newMessage( SyslogLevel.INFO, "Async " + i, 0 ) ) );
+      }
+      final Socket asyncSocket = serverSocket.accept();
+      final InputStream asyncInputStream = asyncSocket.getInputStream();
+      for ( int i = 0; i < 5; i++ )
+      {
+        assertTrue( ConnectionUtil.receiveFrameAsString( asyncInputStream ).contains( "Async " + i ) );
+      }
+      asyncConnection.close();
+      asyncSocket.close();
+    }
+    finally
+    {
+      serverSocket.close();
+    }
+  }
+
+  @Test
+  public void ensureConcurrentSendsAcrossChannelPool()
+    throws Exception
+  {
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setHost( InetAddress.getLocalHost().getCanonicalHostName() );
+    config.setPort( 1980 );
+    config.setChannelPoolSize( 3 );
+
+    final DatagramSocket socket =
+      ConnectionUtil.createServer( config.getHostAddress().getHostName(), config.getPort() );
+    try
+    {
+      final GelfConnection connection = ConnectionUtil.createConnection( config );
+      final int threadCount = 6;
+      final int messageCount = 5;
+      final Thread[] threads = new Thread[ threadCount ];
+      final boolean[] results = new boolean[ threadCount ];
+      for ( int i = 0; i < threadCount; i++ )
+      {
+        final int index = i;
+        threads[ i ] = new Thread()
+        {
+          @Override
+          public void run()
+          {
+            boolean success = true;
+            for ( int j = 0; j < messageCount; j++ )
+            {
+              success &= connection.send( connection.newMessage( SyslogLevel.INFO, "T" + index + "M" + j, 0 ) );
+            }
+            results[ index ] = success;
+          }
+        };
+        threads[ i ].start();
+      }
+      final Set<String> received = new HashSet<String>();
+      for ( int i = 0; i < threadCount * messageCount; i++ )
+      {
+        final String json = ConnectionUtil.receivePacketAsString( socket );
+        final int start = json.indexOf( "\"T" ) + 1;
+        received.add( json.substring( start, json.indexOf( '"', start ) ) );
+      }
+      for ( int i = 0; i < threadCount; i++ )
+      {
+        threads[ i ].join();
+        assertTrue( results[ i ] );
+        for ( int j = 0; j < messageCount; j++ )
+        {
+          assertTrue( received.contains( "T" + i + "M" + j ) );
+        }
+      }
+      connection.close();
+    }
+    finally
+    {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void ensureBatchSendWorksAsExpected()
+    throws Exception
+  {
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setHost( InetAddress.getLocalHost().getCanonicalHostName() );
+    config.setPort( 1981 );
+
+    final DatagramSocket socket =
+      ConnectionUtil.createServer( config.getHostAddress().getHostName(), config.getPort() );
+    try
+    {
+      final GelfConnection connection = ConnectionUtil.createConnection( config );
+
+      // Large enough to be encoded in parallel
+      final int messageCount = GelfEncodeTask.SEQUENTIAL_THRESHOLD * 3;
+      final List<GelfMessage> messages = new ArrayList<GelfMessage>();
+      for ( int i = 0; i < messageCount; i++ )
+      {
+        messages.add( connection.newMessage( SyslogLevel.INFO, "Batch " + i + ";", 0 ) );
+      }
+      assertTrue( connection.send( messages ) );
+      // Messages are written in order as they are sent from a single channel
+      for ( int i = 0; i < messageCount; i++ )
+      {
+        assertTrue( ConnectionUtil.receivePacketAsString( socket ).contains( "Batch " + i + ";" ) );
+      }
+
+      final GelfMessage message = connection.newMessage( SyslogLevel.INFO, "Iterable", 0 );
+      final Iterable<GelfMessage> iterable = new Iterable<GelfMessage>()
+      {
+        public Iterator<GelfMessage> iterator()
+        {
+          return Collections.singletonList( message ).iterator();
+        }
+      };
+      assertTrue( connection.sendAll( iterable ) );
+      assertTrue( ConnectionUtil.receivePacketAsString( socket ).contains( "Iterable" ) );
+
+      // A message that can not be encoded fails the batch but the rest of the batch is sent
+      final List<GelfMessage> badBatch = new ArrayList<GelfMessage>();
+      badBatch.add( new GelfMessage() );
+      badBatch.add( connection.newMessage( SyslogLevel.INFO, "Good", 0 ) );
+      assertFalse( connection.send( badBatch ) );
+      assertTrue( ConnectionUtil.receivePacketAsString( socket ).contains( "Good" ) );
+
+      connection.close();
+    }
+    finally
+    {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void spilledMessagesAreReplayedWhenNothingMoreIsSent()
+    throws Exception
+  {
+    final File directory = File.createTempFile( "gelf4j", "spill" );
+    assertTrue( directory.delete() );
+
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setHost( "127.0.0.1" );
+    config.setPort( 1996 );
+    config.setProtocol( GelfTargetConfig.PROTOCOL_TCP );
+    config.setSpillDirectory( directory.getAbsolutePath() );
+    config.setSpillSegmentSize( 4096 );
+    config.setSpillMaxSize( 4096 * 4 );
+    config.setCircuitBreakerInitialBackoff( 1 );
+
+    final GelfConnection connection = ConnectionUtil.createConnection( config );
+    // No server is listening so the messages are spilled
+    for ( int i = 0; i < 3; i++ )
+    {
+      assertTrue( connection.send( connection.newMessage( SyslogLevel.INFO, "Spilled " + i + ";", 0 ) ) );
+    }
+
+    final ServerSocket serverSocket = ConnectionUtil.createTcpServer( "127.0.0.1", config.getPort() );
+    try
+    {
+      // The replayer probes the server in the background and replays the messages once it is listening
+      serverSocket.setSoTimeout( (int) GelfSpillReplayer.REPLAY_INTERVAL * 5 );
+      final Socket socket = serverSocket.accept();
+      final InputStream inputStream = socket.getInputStream();
+      for ( int i = 0; i < 3; i++ )
+      {
+        assertTrue( ConnectionUtil.receiveFrameAsString( inputStream ).contains( "Spilled " + i + ";" ) );
+      }
+      socket.close();
+      connection.close();
+    }
+    finally
+    {
+      serverSocket.close();
+      final File[] files = directory.listFiles();
+      if ( null != files )
+      {
+        for ( final File file : files )
+        {
+          assertTrue( file.delete() );
+        }
+      }
+      assertTrue( directory.delete() );
+    }
+  }
+
+  @Test
+  public void ensureUnsentMessagesAreSpilledAndReplayed()
+    throws Exception
+  {
+    final File directory = File.createTempFile( "gelf4j", "spill" );
+    assertTrue( directory.delete() );
+
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setHost( InetAddress.getLocalHost().getCanonicalHostName() );
+    config.setPort( 1982 );
+    config.setProtocol( GelfTargetConfig.PROTOCOL_TCP );
+    config.setSpillDirectory( directory.getAbsolutePath() );
+    config.setSpillSegmentSize( 4096 );
+    config.setSpillMaxSize( 4096 * 4 );
+    config.setCircuitBreakerInitialBackoff( 1 );
+
+    final GelfConnection connection = ConnectionUtil.createConnection( config );
+    // No server is listening so the messages are spilled
+    for ( int i = 0; i < 3; i++ )
+    {
+      assertTrue( connection.send( connection.newMessage( SyslogLevel.INFO, "Spilled " + i + ";", 0 ) ) );
+    }
+    // The repeated failures open the circuit breaker
+    assertEquals( 1, connection.getOpenCircuitCount() );
+    assertTrue( connection.getFailedSendCount() >= 3 );
+
+    final ServerSocket serverSocket =
+      ConnectionUtil.createTcpServer( config.getHostAddress().getHostName(), config.getPort() );
+    try
+    {
+      // Wait for the backoff so that the next send probes the server
+      Thread.sleep( 5 );
+      assertTrue( connection.send( connection.newMessage( SyslogLevel.INFO, "Spilled 3;", 0 ) ) );
+      final Socket socket = serverSocket.accept();
+      final InputStream inputStream = socket.getInputStream();
+      for ( int i = 0; i < 4; i++ )
+      {
+        assertTrue( ConnectionUtil.receiveFrameAsString( inputStream ).contains( "Spilled " + i + ";" ) );
+      }
+      assertEquals( 0, connection.getOpenCircuitCount() );
+      socket.close();
+      connection.close();
+    }
+    finally
+    {
+      serverSocket.close();
+      final File[] files = directory.listFiles();
+      if ( null != files )
+      {
+        for ( final File file : files )
+        {
+          assertTrue( file.delete() );
+        }
+      }
+      assertTrue( directory.delete() );
+    }
+  }
+
+  @Test
+  public void loadBalancingKeyFallsBackToDefaultFields()
+    throws Exception
+  {
+    final String host = InetAddress.getLocalHost().getCanonicalHostName();
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setTargets( host + ":1992," + host + ":1993" );
+    config.setLoadBalancing( GelfTargetConfig.LOAD_BALANCING_HASH );
+    config.setLoadBalancingKey( "application" );
+    config.setDefaultFields( "{\"application\":\"MyAPP\"}" );
+
+    final DatagramSocket socket1 = ConnectionUtil.createServer( host, 1992 );
+    final DatagramSocket socket2 = ConnectionUtil.createServer( host, 1993 );
+    try
+    {
+      socket1.setSoTimeout( 100 );
+      socket2.setSoTimeout( 100 );
+      final GelfConnection connection = ConnectionUtil.createConnection( config );
+      for ( int i = 0; i < 10; i++ )
+      {
+        assertTrue( connection.send( connection.newMessage( SyslogLevel.INFO, "Hashed " + i, 0 ) ) );
+      }
+      // Every message has the same default key so is sent to the same target
+      final int count1 = countPackets( socket1 );
+      final int count2 = countPackets( socket2 );
+      assertEquals( 10, count1 + count2 );
+      assertEquals( 0, count1 % 10 );
+      connection.close();
+    }
+    finally
+    {
+      socket1.close();
+      socket2.close();
+    }
+  }
+
+  @Test
+  public void ensureMessagesAreSpreadAcrossTargets()
+    throws Exception
+  {
+    final String host = InetAddress.getLocalHost().getCanonicalHostName();
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setTargets( host + ":1983," + host + ":1984" );
+    config.setLoadBalancing( GelfTargetConfig.LOAD_BALANCING_HASH );
+    config.setLoadBalancingKey( "loggerName" );
+
+    final DatagramSocket socket1 = ConnectionUtil.createServer( host, 1983 );
+    final DatagramSocket socket2 = ConnectionUtil.createServer( host, 1984 );
+    try
+    {
+      socket1.setSoTimeout( 100 );
+      socket2.setSoTimeout( 100 );
+      final GelfConnection connection = ConnectionUtil.createConnection( config );
+      for ( int i = 0; i < 20; i++ )
+      {
+        final GelfMessage message = connection.newMessage( SyslogLevel.INFO, "Hashed " + i, 0 );
+        message.getAdditionalFields().put( "loggerName", "logger" + ( i % 2 ) );
+        assertTrue( connection.send( message ) );
+      }
+      final int count1 = countPackets( socket1 );
+      final int count2 = countPackets( socket2 );
+      assertEquals( 20, count1 + count2 );
+      // Each logger is always sent to the same target
+      assertEquals( 0, count1 % 10 );
+      connection.close();
+    }
+    finally
+    {
+      socket1.close();
+      socket2.close();
+    }
+  }
+
+  @Test
+  public void ensureRateLimitedMessagesAreSummarised()
+    throws Exception
+  {
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setHost( InetAddress.getLocalHost().getCanonicalHostName() );
+    config.setPort( 1985 );
+    config.setRateLimit( 1 );
+    config.setRateLimitBurst( 2 );
+
+    final DatagramSocket socket =
+      ConnectionUtil.createServer( config.getHostAddress().getHostName(), config.getPort() );
+    try
+    {
+      final GelfConnection connection = ConnectionUtil.createConnection( config );
+      int sent = 0;
+      for ( int i = 0; i < 5; i++ )
+      {
+        if ( connection.isPermitted( "com.example.Noisy" ) )
+        {
+          assertTrue( connection.send( connection.newMessage( SyslogLevel.INFO, "Noisy " + i, 0 ) ) );
+          sent++;
+        }
+      }
+      assertEquals( 2, sent );
+      assertTrue( connection.isPermitted( "com.example.Quiet" ) );
+      assertTrue( ConnectionUtil.receivePacketAsString( socket ).contains( "Noisy 0" ) );
+      assertTrue( ConnectionUtil.receivePacketAsString( socket ).contains( "Noisy 1" ) );
+
+      // The summary of suppressed messages is sent when the connection is closed
+      connection.close();
+      final String summary = ConnectionUtil.receivePacketAsString( socket );
+      assertTrue( summary.contains( "3 messages suppressed from com.example.Noisy" ) );
+      assertTrue( summary.contains( "\"_suppressed_count\":3" ) );
+      assertTrue( summary.contains( "\"_loggerName\":\"com.example.Noisy\"" ) );
+    }
+    finally
+    {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void ensureSuppressedMessagesAreSummarisedPeriodically()
+    throws Exception
+  {
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setHost( InetAddress.getLocalHost().getCanonicalHostName() );
+    config.setPort( 1990 );
+    config.setRateLimit( 1 );
+    config.setRateLimitBurst( 1 );
+
+    final DatagramSocket socket =
+      ConnectionUtil.createServer( config.getHostAddress().getHostName(), config.getPort() );
+    try
+    {
+      final GelfConnection connection = ConnectionUtil.createConnection( config );
+      assertTrue( connection.isPermitted( "com.example.Stopped" ) );
+      assertFalse( connection.isPermitted( "com.example.Stopped" ) );
+      assertFalse( connection.isPermitted( "com.example.Stopped" ) );
+
+      // The logger never logs again, yet the summary is sent without waiting for the connection to close
+      final GelfSummaryFlusher flusher = new GelfSummaryFlusher( connection, 10 );
+      flusher.start();
+      final String summary = ConnectionUtil.receivePacketAsString( socket );
+      flusher.close();
+      assertTrue( summary.contains( "2 messages suppressed from com.example.Stopped" ) );
+      connection.close();
+    }
+    finally
+    {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void ensureUdpMessagesAreStreamedIntoChunks()
+    throws Exception
+  {
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setHost( InetAddress.getLocalHost().getCanonicalHostName() );
+    config.setPort( 1991 );
+    config.setChunkSize( 1000 );
+    config.setCompressedChunking( true );
+    config.setMaxChunkCount( 64 );
+
+    final DatagramSocket socket =
+      ConnectionUtil.createServer( config.getHostAddress().getHostName(), config.getPort() );
+    try
+    {
+      final GelfConnection connection = ConnectionUtil.createConnection( config );
+      final GelfMessage message = connection.newMessage( SyslogLevel.INFO, "Streamed", 0 );
+      message.setFullMessage( createString( 5000 ) );
+      assertTrue( connection.send( message ) );
+      final String json = receiveChunkedJson( socket );
+      assertTrue( json.contains( "\"short_message\":\"Streamed\"" ) );
+      assertFalse( json.contains( "_truncated" ) );
+
+      // A message that needs too many chunks falls back to the truncating path
+      final GelfMessage large = connection.newMessage( SyslogLevel.INFO, "Large", 0 );
+      large.setFullMessage( createString( 100000 ) );
+      assertTrue( connection.send( large ) );
+      assertTrue( receiveChunkedJson( socket ).contains( "\"_truncated\":true" ) );
+      connection.close();
+    }
+    finally
+    {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void ensureHttpSendWorksAsExpected()
+    throws Exception
+  {
+    final String host = InetAddress.getLocalHost().getCanonicalHostName();
+    final List<String> bodies = Collections.synchronizedList( new ArrayList<String>() );
+    final List<String> encodings = Collections.synchronizedList( new ArrayList<String>() );
+    final HttpServer server = HttpServer.create( new InetSocketAddress( host, 1987 ), 0 );
+    server.createContext( "/gelf", new HttpHandler()
+    {
+      public void handle( final HttpExchange exchange )
+        throws IOException
+      {
+        final String encoding = exchange.getRequestHeaders().getFirst( "Content-Encoding" );
+        encodings.add( String.valueOf( encoding ) );
+        final InputStream body =
+          "gzip".equals( encoding ) ? new GZIPInputStream( exchange.getRequestBody() ) : exchange.getRequestBody();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int ch;
+        while ( -1 != ( ch = body.read() ) )
+        {
+          output.write( ch );
+        }
+        bodies.add( output.toString( "UTF-8" ) );
+        exchange.sendResponseHeaders( 202, -1 );
+        exchange.close();
+      }
+    } );
+    server.start();
+    try
+    {
+      final GelfTargetConfig config = new GelfTargetConfig();
+      config.setHost( host );
+      config.setPort( 1987 );
+      config.setProtocol( GelfTargetConfig.PROTOCOL_HTTP );
+
+      final GelfConnection connection = ConnectionUtil.createConnection( config );
+      assertTrue( connection.send( connection.newMessage( SyslogLevel.INFO, "Single", 0 ) ) );
+      connection.close();
+      assertEquals( 1, bodies.size() );
+      assertTrue( bodies.get( 0 ).startsWith( "{" ) );
+      assertTrue( bodies.get( 0 ).contains( "Single" ) );
+      assertEquals( "null", encodings.get( 0 ) );
+
+      // Batches are split into newline delimited requests of up to the batch size
+      config.setHttpBatchSize( 3 );
+      config.setHttpCompression( true );
+      final GelfConnection batchConnection = ConnectionUtil.createConnection( config );
+      final List<GelfMessage> messages = new ArrayList<GelfMessage>();
+      for ( int i = 0; i < 5; i++ )
+      {
+        messages.add( batchConnection.newMessage( SyslogLevel.INFO, "Batch " + i + ";", 0 ) );
+      }
+      assertTrue( batchConnection.send( messages ) );
+      batchConnection.close();
+      assertEquals( 3, bodies.size() );
+      assertEquals( "gzip", encodings.get( 1 ) );
+      final String[] lines = bodies.get( 1 ).split( "\n" );
+      assertEquals( 3, lines.length );
+      assertTrue( lines[ 2 ].contains( "Batch 2;" ) );
+      assertEquals( 2, bodies.get( 2 ).split( "\n" ).length );
+
+      // Requests that the server permanently rejects are counted and discarded rather than failed and retried
+      config.setHttpPath( "/missing" );
+      final GelfConnection missingConnection = ConnectionUtil.createConnection( config );
+      assertTrue( missingConnection.send( missingConnection.newMessage( SyslogLevel.INFO, "Missing", 0 ) ) );
+      assertEquals( 1, missingConnection.getDiscardedSendCount() );
+      assertEquals( 0, missingConnection.getFailedSendCount() );
+      final List<GelfMessage> rejected = new ArrayList<GelfMessage>();
+      for ( int i = 0; i < 2; i++ )
+      {
+        rejected.add( missingConnection.newMessage( SyslogLevel.INFO, "Missing " + i, 0 ) );
+      }
+      assertTrue( missingConnection.send( rejected ) );
+      assertEquals( 3, missingConnection.getDiscardedSendCount() );
+      assertEquals( 0, missingConnection.getFailedSendCount() );
+      assertEquals( 0, missingConnection.getOpenCircuitCount() );
+      missingConnection.close();
+      assertTrue( GelfHttpTransport.isPermanentRejection( 400 ) );
+      assertTrue( GelfHttpTransport.isPermanentRejection( 413 ) );
+      assertFalse( GelfHttpTransport.isPermanentRejection( 408 ) );
+      assertFalse( GelfHttpTransport.isPermanentRejection( 429 ) );
+      assertFalse( GelfHttpTransport.isPermanentRejection( 503 ) );
+    }
+    finally
+    {
+      server.stop( 0 );
+    }
+  }
+
+  @Test( expected = Exception.class )
+  public void ensureUnknownLoadBalancingIsRejected()
+    throws Exception
+  {
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setLoadBalancing( "random" );
+    config.createConnection();
+  }
+
+  @Test( expected = Exception.class )
+  public void ensureUnknownProtocolIsRejected()
+    throws Exception
+  {
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setProtocol( "carrier-pigeon" );
+    config.createConnection();
+  }
+
+  /**
+   * Receive the chunks of a message sent with compressed chunk headers and return the json they reassemble into.
+   */
+  private String receiveChunkedJson( final DatagramSocket socket )
+    throws IOException
+  {
+    final int headerSize = GelfEncoder.COMPRESSED_HEADER_SIZE;
+    byte[] messageId = null;
+    byte[][] chunks = null;
+    for ( int i = 0; null == chunks || i < chunks.length; i++ )
+    {
+      final DatagramPacket packet = ConnectionUtil.receivePacket( socket );
+      final byte[] data =
+        Arrays.copyOfRange( packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength() );
+      assertTrue( data.length <= 1000 );
+      assertEquals( 0x1e, data[ 0 ] );
+      assertEquals( 0x0f, data[ 1 ] );
+      if ( null == chunks )
+      {
+        messageId = Arrays.copyOfRange( data, 2, 10 );
+        chunks = new byte[ data[ headerSize - 1 ] & 0xFF ][];
+        assertTrue( chunks.length > 1 );
+      }
+      assertArrayEquals( messageId, Arrays.copyOfRange( data, 2, 10 ) );
+      assertEquals( chunks.length, data[ headerSize - 1 ] & 0xFF );
+      chunks[ data[ headerSize - 2 ] & 0xFF ] = Arrays.copyOfRange( data, headerSize, data.length );
+    }
+    final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    for ( final byte[] chunk : chunks )
+    {
+      payload.write( chunk );
+    }
+    final InputStream input = new GZIPInputStream( new ByteArrayInputStream( payload.toByteArray() ) );
+    final ByteArrayOutputStream json = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[ 1024 ];
+    int count;
+    while ( -1 != ( count = input.read( buffer ) ) )
+    {
+      json.write( buffer, 0, count );
+    }
+    return new String( json.toByteArray(), "UTF-8" );
+  }
+
+  private int countPackets( final DatagramSocket socket )
+    throws IOException
+  {
+    int count = 0;
+    try
+    {
+      while ( true )
+      {
+        ConnectionUtil.receivePacket( socket );
+        count++;
+      }
+    }
+    catch ( final SocketTimeoutException ste )
+    {
+      return count;
+    }
+  }
+
   private String createString( final int byteCount )
   {
     final Random random = new Random( 723 );
@@ -0,0 +1,65 @@
+package gelf4j;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GelfDeduplicatorTest
+{
+  @Test
+  public void exceptionTypeIsTheClassName()
+    throws Exception
+  {
+    assertEquals( "java.io.IOException".length(),
+                  GelfDeduplicator.getExceptionTypeLength( "java.io.IOException: Broken pipe\n\tat Foo.bar()" ) );
+    assertEquals( "java.lang.NullPointerException".length(),
+                  GelfDeduplicator.getExceptionTypeLength( "java.lang.NullPointerException\n\tat Foo.bar()" ) );
+    assertEquals( 3, GelfDeduplicator.getExceptionTypeLength( "Foo" ) );
+  }
+
+  @Test
+  public void repeatsAreCollapsedIntoASummary()
+    throws Exception
+  {
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setHost( InetAddress.getLocalHost().getCanonicalHostName() );
+    config.setPort( 1986 );
+    config.setDedupWindow( 60000 );
+
+    final DatagramSocket socket =
+      ConnectionUtil.createServer( config.getHostAddress().getHostName(), config.getPort() );
+    try
+    {
+      final GelfConnection connection = ConnectionUtil.createConnection( config );
+      for ( int i = 0; i < 5; i++ )
+      {
+        final GelfMessage message = connection.newMessage( SyslogLevel.ERR, "Retry failed", 1000 + i );
+        message.getAdditionalFields().put( "loggerName", "com.example.Client" );
+        message.getAdditionalFields().put( "exception", "java.io.IOException: attempt " + i + "\n\tat Foo.bar()" );
+        assertTrue( connection.send( message ) );
+      }
+      // A different exception type is not a repeat
+      final GelfMessage other = connection.newMessage( SyslogLevel.ERR, "Retry failed", 2000 );
+      other.getAdditionalFields().put( "loggerName", "com.example.Client" );
+      other.getAdditionalFields().put( "exception", "java.net.ConnectException: refused" );
+      assertTrue( connection.send( other ) );
+
+      final String first = ConnectionUtil.receivePacketAsString( socket );
+      assertTrue( first.contains( "attempt 0" ) );
+      assertFalse( first.contains( "_repeat_count" ) );
+      assertTrue( ConnectionUtil.receivePacketAsString( socket ).contains( "ConnectException" ) );
+
+      // The summary is sent when the window ends or the connection is closed
+      connection.close();
+      final String summary = ConnectionUtil.receivePacketAsString( socket );
+      assertTrue( summary.contains( "\"_repeat_count\":4" ) );
+      assertTrue( summary.contains( "\"_first_timestamp\":1000" ) );
+      assertTrue( summary.contains( "\"_last_timestamp\":1004" ) );
+    }
+    finally
+    {
+      socket.close();
+    }
+  }
+}
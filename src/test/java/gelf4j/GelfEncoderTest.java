@@ -1,10 +1,20 @@
 package gelf4j;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Instant;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -88,6 +98,359 @@ public class GelfEncoderTest
     assertEquals( 10, object.size() );
   }
 
+  @Test
+  public void streamingJsonMatchesCodec()
+    throws Exception
+  {
+    final GelfMessage message = new GelfMessage();
+    message.setShortMessage( "Short \"quoted\" \\ message\n\ttabbed" );
+    message.setFullMessage( "Full message \u00e9\u4e2d\ud83d\ude00 with control \u0001 and slash /" );
+    message.setLevel( SyslogLevel.WARNING );
+    message.setFile( "File.java" );
+    message.setLine( 12345678901L );
+    message.setJavaTimestamp( 1234567 );
+    message.getAdditionalFields().put( "string", "value" );
+    message.getAdditionalFields().put( "int", 42 );
+    message.getAdditionalFields().put( "long", Long.MIN_VALUE );
+    message.getAdditionalFields().put( "negative", -17L );
+    message.getAdditionalFields().put( "double", 1.5D );
+    message.getAdditionalFields().put( "boolean", true );
+    message.getAdditionalFields().put( "null", null );
+    message.getAdditionalFields().put( "list", Arrays.asList( 1L, "two" ) );
+    final Map<String, Object> nested = new HashMap<String, Object>();
+    nested.put( "key", "value" );
+    message.getAdditionalFields().put( "map", nested );
+    message.getAdditionalFields().put( GelfEncoder.ID_NAME, "omitted" );
+
+    final String streamed = new GelfEncoder( "localhost", true, null ).toJson( message );
+    final String codec = new GelfEncoder( "localhost", true, new SimpleJsonCodec() ).toJson( message );
+    assertEquals( parseJsonObject( codec ), parseJsonObject( streamed ) );
+    assertEquals( "1234.567", parseJsonObject( streamed ).get( "timestamp" ) );
+    assertEquals( 18, parseJsonObject( streamed ).size() );
+  }
+
+  @Test
+  public void timestampWithMicrosecondPrecision()
+    throws Exception
+  {
+    final GelfMessage message = new GelfMessage();
+    message.setShortMessage( "Message" );
+    message.setTimestamp( Instant.ofEpochSecond( 1234, 567891234 ) );
+    assertEquals( 1234567L, (long) message.getJavaTimestamp() );
+    assertEquals( 891, message.getMicrosOfMilli() );
+    final String streamed = new GelfEncoder( "localhost", true, null ).toJson( message );
+    assertEquals( "1234.567891", parseJsonObject( streamed ).get( "timestamp" ) );
+    final String codec = new GelfEncoder( "localhost", true, new SimpleJsonCodec() ).toJson( message );
+    assertEquals( "1234.567891", parseJsonObject( codec ).get( "timestamp" ) );
+
+    message.setJavaTimestamp( 1234567 );
+    assertEquals( -1, message.getMicrosOfMilli() );
+    assertEquals( "1234.567", parseJsonObject( new GelfEncoder( "localhost", true, null ).toJson( message ) ).get( "timestamp" ) );
+  }
+
+  @Test
+  public void streamingJsonReplacesUnpairedSurrogates()
+    throws Exception
+  {
+    final GelfMessage message = new GelfMessage();
+    message.setShortMessage( "a\ud800b\udc00" );
+    final byte[] payload = new GelfEncoder( "localhost", true, null ).encodePayload( message, false );
+    assertEquals( "a?b?", parseJsonObject( new String( payload, "UTF-8" ) ).get( "short_message" ) );
+  }
+
+  @Test
+  public void streamingJsonPayloadIsCompressed()
+    throws Exception
+  {
+    final GelfMessage message = new GelfMessage();
+    message.setShortMessage( createString( 10000 ) );
+    message.setJavaTimestamp( 1000 );
+    final GelfEncoder encoder = new GelfEncoder( "localhost", true, null );
+    final byte[] payload = encoder.encodePayload( message, true );
+    final GZIPInputStream input = new GZIPInputStream( new ByteArrayInputStream( payload ) );
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[ 1024 ];
+    int count;
+    while ( -1 != ( count = input.read( buffer ) ) )
+    {
+      output.write( buffer, 0, count );
+    }
+    assertArrayEquals( encoder.encodePayload( message, false ), output.toByteArray() );
+    assertNull( encoder.encodePayload( new GelfMessage(), true ) );
+  }
+
+  @Test
+  public void oversizedMessageIsTruncatedToFit()
+    throws Exception
+  {
+    final GelfCompressor compressor = new GelfCompressor( GelfCompressor.GZIP, -1, 0 );
+    // Random text compresses poorly so the compressed payload is also too large
+    final String fullMessage = createRandomString( 20000 );
+    final String stackTrace = createRandomString( 5000 );
+    for ( final JsonCodec codec : new JsonCodec[]{ null, new SimpleJsonCodec() } )
+    {
+      for ( final boolean compress : new boolean[]{ true, false } )
+      {
+        final GelfEncoder encoder = new GelfEncoder( "localhost", true, codec, compressor, 1000, 4 );
+        final GelfMessage message = new GelfMessage();
+        message.setShortMessage( "Short" );
+        message.setFullMessage( fullMessage );
+        message.getAdditionalFields().put( "stack", stackTrace );
+        message.getAdditionalFields().put( "small", "x" );
+        final byte[] payload = encoder.encodePayload( message, compress, encoder.getMaxPayloadSize() );
+        assertNotNull( payload );
+        assertTrue( payload.length <= encoder.getMaxPayloadSize() );
+        assertTrue( encoder.getChunkCount( payload.length ) > 0 );
+
+        final Map<String, Object> object =
+          parseJsonObject( new String( compress ? decompress( payload ) : payload, "UTF-8" ) );
+        assertEquals( "Short", object.get( "short_message" ) );
+        assertEquals( Boolean.TRUE, object.get( "_truncated" ) );
+        assertEquals( "x", object.get( "_small" ) );
+        final String truncatedMessage = (String) object.get( "full_message" );
+        assertTrue( truncatedMessage.length() < fullMessage.length() );
+        assertTrue( fullMessage.startsWith( truncatedMessage ) );
+        assertTrue( stackTrace.startsWith( (String) object.get( "_stack" ) ) );
+
+        // A message that fits is not truncated
+        assertNull( parseJsonObject( encoder.toJson( message ) ).get( "_truncated" ) );
+      }
+    }
+  }
+
+  @Test
+  public void truncationUsesMostOfTheBudget()
+    throws Exception
+  {
+    final GelfCompressor compressor = new GelfCompressor( GelfCompressor.GZIP, -1, 0 );
+    // Characters that take several bytes as UTF-8 and compress poorly, so their length in characters differs
+    // greatly from their size in json
+    final Random random = new Random( 723 );
+    final StringBuilder fullMessage = new StringBuilder();
+    for ( int i = 0; i < 100000; i++ )
+    {
+      fullMessage.append( (char) ( 0x100 + random.nextInt( 0xD000 ) ) );
+    }
+    for ( final boolean compress : new boolean[]{ true, false } )
+    {
+      final GelfEncoder encoder = new GelfEncoder( "localhost", true, null, compressor, 2048, 32 );
+      final GelfMessage message = new GelfMessage();
+      message.setShortMessage( "Short" );
+      message.setFullMessage( fullMessage.toString() );
+      final byte[] payload = encoder.encodePayload( message, compress, encoder.getMaxPayloadSize() );
+      assertNotNull( payload );
+      assertTrue( payload.length <= encoder.getMaxPayloadSize() );
+      assertTrue( payload.length > encoder.getMaxPayloadSize() * 3 / 4 );
+      final Map<String, Object> object =
+        parseJsonObject( new String( compress ? decompress( payload ) : payload, "UTF-8" ) );
+      assertEquals( Boolean.TRUE, object.get( "_truncated" ) );
+    }
+  }
+
+  @Test
+  public void typedFieldsMatchCodec()
+    throws Exception
+  {
+    final GelfMessage message = new GelfMessage();
+    message.setShortMessage( "Short" );
+    message.setJavaTimestamp( 1000 );
+    message.setLine( 12 );
+    message.addField( "count", 42L );
+    message.addField( "ratio", 0.25D );
+    message.addField( "nan", Double.NaN );
+    message.addField( "text", new StringBuilder( "a\"b" ) );
+    final String streamed = new GelfEncoder( "localhost", true, null ).toJson( message );
+    final String codec = new GelfEncoder( "localhost", true, new SimpleJsonCodec() ).toJson( message );
+    assertTrue( streamed, streamed.contains( "\"_count\":42" ) );
+    assertTrue( streamed, streamed.contains( "\"_ratio\":0.25" ) );
+    assertTrue( streamed, streamed.contains( "\"_nan\":null" ) );
+    assertTrue( streamed, streamed.contains( "\"line\":12" ) );
+    final Map<String, Object> object = parseJsonObject( streamed );
+    assertEquals( "a\"b", object.get( "_text" ) );
+    assertEquals( parseJsonObject( codec ).get( "_count" ), object.get( "_count" ) );
+    assertEquals( parseJsonObject( codec ).get( "_ratio" ), object.get( "_ratio" ) );
+  }
+
+  @Test
+  public void encodeSplitsCompressedJsonIntoChunks()
+    throws Exception
+  {
+    for ( final boolean compressed : new boolean[]{ true, false } )
+    {
+      final GelfEncoder encoder = encoder( compressed );
+      final GelfMessage message = new GelfMessage();
+      message.setShortMessage( "Short" );
+      message.setFullMessage( createRandomString( 10000 ) );
+      message.setJavaTimestamp( 1000 );
+      final List<byte[]> packets = encoder.encode( message );
+      assertTrue( packets.size() > 1 );
+
+      final LinkedList<byte[]> messageIDs = new LinkedList<byte[]>();
+      final LinkedList<byte[]> payloadData = new LinkedList<byte[]>();
+      final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      for ( int i = 0; i < packets.size(); i++ )
+      {
+        assertTrue( packets.get( i ).length <= GelfEncoder.MAX_PACKET_SIZE );
+        expectChunk( compressed, packets.get( i ), i, packets.size(), messageIDs, payloadData );
+        assertArrayEquals( messageIDs.get( 0 ), messageIDs.get( i ) );
+        payload.write( payloadData.get( i ) );
+      }
+      assertEquals( encoder.toJson( message ), new String( decompress( payload.toByteArray() ), "UTF-8" ) );
+    }
+
+    // A message that fits in a single packet is not chunked
+    final GelfMessage message = new GelfMessage();
+    message.setShortMessage( "Short" );
+    final List<byte[]> packets = encoder( true ).encode( message );
+    assertEquals( 1, packets.size() );
+    assertEquals( 0x1f, packets.get( 0 )[ 0 ] & 0xFF );
+  }
+
+  @Test
+  public void encodeToStreamsCompressedJson()
+    throws Exception
+  {
+    final GelfEncoder encoder = encoder( true );
+    final GelfMessage message = new GelfMessage();
+    message.setShortMessage( "Short" );
+    message.setFullMessage( createRandomString( 10000 ) );
+    message.setJavaTimestamp( 1000 );
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final boolean completed = encoder.encodeTo( message, new GelfCompressor.Sink()
+    {
+      public boolean write( final byte[] data, final int offset, final int length )
+      {
+        output.write( data, offset, length );
+        return true;
+      }
+    } );
+    assertTrue( completed );
+    assertEquals( encoder.toJson( message ), new String( decompress( output.toByteArray() ), "UTF-8" ) );
+
+    // A message with no short message is not encoded
+    assertFalse( encoder.encodeTo( new GelfMessage(), new GelfCompressor.Sink()
+    {
+      public boolean write( final byte[] data, final int offset, final int length )
+      {
+        return true;
+      }
+    } ) );
+  }
+
+  @Test
+  public void messageThatCanNotBeTruncatedToFitFallsBackToShortMessage()
+    throws Exception
+  {
+    final GelfCompressor compressor = new GelfCompressor( GelfCompressor.GZIP, -1, 0 );
+    final GelfEncoder encoder = new GelfEncoder( "localhost", true, null, compressor, 1000, 4 );
+    final GelfMessage message = new GelfMessage();
+    final String shortMessage = createRandomString( 20000 );
+    message.setShortMessage( shortMessage );
+    message.setFullMessage( createRandomString( 20000 ) );
+    message.getAdditionalFields().put( "small", "x" );
+    final byte[] payload = encoder.encodePayload( message, true, encoder.getMaxPayloadSize() );
+    assertNotNull( payload );
+    assertTrue( payload.length <= encoder.getMaxPayloadSize() );
+    final Map<String, Object> object = parseJsonObject( new String( decompress( payload ), "UTF-8" ) );
+    assertEquals( shortMessage.substring( 0, GelfMessageUtil.MAX_SHORT_MESSAGE_LENGTH ), object.get( "short_message" ) );
+    assertEquals( Boolean.TRUE, object.get( "_truncated" ) );
+    assertNull( object.get( "full_message" ) );
+    assertNull( object.get( "_small" ) );
+    assertNotNull( encoder.encode( message ) );
+  }
+
+  @Test
+  public void oversizedMessagesAreTruncatedByTheRunningCompressionRatio()
+    throws Exception
+  {
+    final GelfCompressor compressor = new GelfCompressor( GelfCompressor.GZIP, -1, 0 );
+    final GelfEncoder encoder = new GelfEncoder( "localhost", true, null, compressor, 1000, 4 );
+    final GelfMessage small = new GelfMessage();
+    small.setShortMessage( "Short" );
+    assertNotNull( encoder.encodePayload( small, true, encoder.getMaxPayloadSize() ) );
+    // Messages that fit do not contribute to the ratio
+    assertEquals( 0, encoder.getCompressionRatio(), 0 );
+    for ( int i = 0; i < 5; i++ )
+    {
+      final GelfMessage message = new GelfMessage();
+      message.setShortMessage( "Short" );
+      final String fullMessage = createRandomString( 20000 );
+      message.setFullMessage( fullMessage );
+      final byte[] payload = encoder.encodePayload( message, true, encoder.getMaxPayloadSize() );
+      assertNotNull( payload );
+      assertTrue( payload.length <= encoder.getMaxPayloadSize() );
+      final Map<String, Object> object = parseJsonObject( new String( decompress( payload ), "UTF-8" ) );
+      assertTrue( fullMessage.startsWith( (String) object.get( "full_message" ) ) );
+      // Random text does not compress so the estimate is close to the size of the json
+      assertTrue( encoder.getCompressionRatio() > 0.5 );
+      assertTrue( encoder.getCompressionRatio() < 1.1 );
+    }
+  }
+
+  @Test
+  public void templateFieldsAreSplicedIntoJson()
+    throws Exception
+  {
+    final GelfVersionedMap<String, Object> defaultFields = new GelfVersionedMap<String, Object>();
+    defaultFields.put( "host", "DefaultHost" );
+    defaultFields.put( "facility", "DefaultFacility" );
+    defaultFields.put( "environment", "DEV" );
+    defaultFields.put( "shard", 3L );
+    final GelfEncoder encoder = new GelfEncoder( "localhost", true, null );
+    final GelfMessageTemplate template = encoder.compileTemplate( defaultFields, defaultFields.getVersion() );
+    assertTrue( template.isCompiledFrom( defaultFields.getVersion(), encoder.getDefaultHost() ) );
+    assertFalse( template.isCompiledFrom( defaultFields.getVersion(), "OtherDefaultHost" ) );
+
+    final GelfMessage message = new GelfMessage();
+    template.apply( message );
+    message.setShortMessage( "Message" );
+    message.setJavaTimestamp( 1000 );
+    message.getAdditionalFields().put( "thread", "main" );
+    assertEquals( "DefaultHost", message.getHost() );
+    assertEquals( "DefaultFacility", message.getFacility() );
+    // Default fields are visible through the message but are not copied onto it
+    assertEquals( "DEV", message.getAdditionalFields().get( "environment" ) );
+    assertEquals( 1, message.getFieldCount() );
+
+    Map<String, Object> object = parseJsonObject( encoder.toJson( message ) );
+    assertEquals( "DefaultHost", object.get( "host" ) );
+    assertEquals( "DefaultFacility", object.get( "facility" ) );
+    assertEquals( "DEV", object.get( "_environment" ) );
+    assertEquals( 3L, object.get( "_shard" ) );
+    assertEquals( "main", object.get( "_thread" ) );
+    assertEquals( 8, object.size() );
+
+    //Fields set on the message take precedence over the defaults
+    message.setHost( "OtherHost" );
+    message.getAdditionalFields().put( "environment", "PROD" );
+    object = parseJsonObject( encoder.toJson( message ) );
+    assertEquals( "OtherHost", object.get( "host" ) );
+    assertEquals( "DefaultFacility", object.get( "facility" ) );
+    assertEquals( "PROD", object.get( "_environment" ) );
+    assertEquals( 3L, object.get( "_shard" ) );
+    assertEquals( 8, object.size() );
+    assertEquals( object, parseJsonObject( new GelfEncoder( "localhost", true, new SimpleJsonCodec() ).toJson( message ) ) );
+
+    defaultFields.put( "environment", "TEST" );
+    assertFalse( template.isCompiledFrom( defaultFields.getVersion(), encoder.getDefaultHost() ) );
+  }
+
+  @Test
+  public void templateUsesDefaultHostWhenNoHostIsSpecified()
+    throws Exception
+  {
+    final GelfVersionedMap<String, Object> defaultFields = new GelfVersionedMap<String, Object>();
+    final GelfEncoder encoder = new GelfEncoder( "localhost", true, null );
+    final GelfMessage message = new GelfMessage();
+    encoder.compileTemplate( defaultFields, defaultFields.getVersion() ).apply( message );
+    message.setShortMessage( "Message" );
+    assertEquals( "localhost", message.getHost() );
+    assertEquals( "localhost", parseJsonObject( encoder.toJson( message ) ).get( "host" ) );
+
+    // Without a hostname the encoder uses the local host once it has been looked up
+    assertEquals( GelfMessageUtil.getLocalHost(), new GelfEncoder( null, true, null ).getDefaultHost() );
+  }
+
   @SuppressWarnings( "unchecked" )
   private Map<String, Object> parseJsonObject( final String json )
   {
@@ -98,8 +461,30 @@ public class GelfEncoderTest
   public void generateMessageID()
     throws Exception
   {
-    assertEquals( 8, encoder( true ).generateMessageID().length );
-    assertEquals( 32, encoder( false ).generateMessageID().length );
+    final Set<Long> ids = Collections.newSetFromMap( new ConcurrentHashMap<Long, Boolean>() );
+    final int threadCount = 4;
+    final int idCount = 10000;
+    final Thread[] threads = new Thread[ threadCount ];
+    for ( int i = 0; i < threadCount; i++ )
+    {
+      threads[ i ] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          for ( int j = 0; j < idCount; j++ )
+          {
+            ids.add( GelfEncoder.generateMessageID() );
+          }
+        }
+      };
+      threads[ i ].start();
+    }
+    for ( final Thread thread : threads )
+    {
+      thread.join();
+    }
+    assertEquals( threadCount * idCount, ids.size() );
   }
 
   @Test
@@ -112,6 +497,69 @@ public class GelfEncoderTest
     assertNull( packets );
   }
 
+  @Test
+  public void getChunkCount()
+    throws Exception
+  {
+    final GelfEncoder encoder = encoder( true );
+    assertEquals( 1, encoder.getChunkCount( 1 ) );
+    assertEquals( 1, encoder.getChunkCount( GelfEncoder.MAX_PACKET_SIZE ) );
+    assertEquals( 2, encoder.getChunkCount( GelfEncoder.MAX_PACKET_SIZE + 1 ) );
+    final int maxChunkCount = GelfTargetConfig.DEFAULT_MAX_CHUNK_COUNT;
+    assertEquals( maxChunkCount, encoder.getChunkCount( GelfEncoder.PAYLOAD_THRESHOLD * maxChunkCount ) );
+    assertEquals( 0, encoder.getChunkCount( GelfEncoder.PAYLOAD_THRESHOLD * maxChunkCount + 1 ) );
+  }
+
+  @Test
+  public void getChunkCountWithConfiguredLimits()
+    throws Exception
+  {
+    final GelfCompressor compressor = new GelfCompressor( GelfCompressor.GZIP, -1, 0 );
+    final GelfEncoder encoder = new GelfEncoder( "localhost", true, null, compressor, 1000, 128 );
+    final int chunkPayloadSize = 1000 - GelfEncoder.HEADER_SIZE;
+    assertEquals( 1000, encoder.getMaxPacketSize() );
+    assertEquals( 1, encoder.getChunkCount( 1000 ) );
+    assertEquals( 2, encoder.getChunkCount( 1001 ) );
+    assertEquals( 128, encoder.getChunkCount( chunkPayloadSize * 128 ) );
+    assertEquals( 0, encoder.getChunkCount( chunkPayloadSize * 128 + 1 ) );
+
+    final List<byte[]> packets = encoder.createPackets( createData( chunkPayloadSize * 3 ) );
+    assertEquals( 3, packets.size() );
+    for ( final byte[] packet : packets )
+    {
+      assertTrue( packet.length <= 1000 );
+    }
+  }
+
+  @Test
+  public void ensureInvalidChunkLimitsAreRejected()
+    throws Exception
+  {
+    final GelfCompressor compressor = new GelfCompressor( GelfCompressor.GZIP, -1, 0 );
+    final int[][] limits = { { GelfEncoder.HEADER_SIZE, 255 }, { 65508, 255 }, { 2048, 0 }, { 2048, 256 } };
+    for ( final int[] limit : limits )
+    {
+      try
+      {
+        new GelfEncoder( "localhost", true, null, compressor, limit[ 0 ], limit[ 1 ] );
+        fail( "Expected chunkSize " + limit[ 0 ] + " and maxChunkCount " + limit[ 1 ] + " to be rejected" );
+      }
+      catch ( final IllegalArgumentException iae )
+      {
+        //expected
+      }
+    }
+  }
+
+  @Test
+  public void discoverMaxPacketSizeOfLoopback()
+    throws Exception
+  {
+    final int size = GelfUdpTransport.discoverMaxPacketSize( new InetSocketAddress( "127.0.0.1", 1989 ) );
+    // The loopback MTU varies between platforms but always leaves room for a chunk
+    assertTrue( "size=" + size, 0 == size || ( size > GelfEncoder.HEADER_SIZE && size <= 65507 ) );
+  }
+
   @Test
   public void ensurePayloadUnderThresholdCreatesASinglePacket()
     throws Exception
@@ -172,6 +620,11 @@ public class GelfEncoderTest
     final int messageIDLength = compressed ? 8 : 32;
     messageIDs.add( Arrays.copyOfRange( packet, start, start + messageIDLength ) );
     start += messageIDLength;
+    if( !compressed )
+    {
+      // The legacy message id is the 8 byte message id padded with zeros
+      assertArrayEquals( new byte[ 24 ], Arrays.copyOfRange( packet, start - 24, start ) );
+    }
 
     if( !compressed )
     {
@@ -197,6 +650,31 @@ public class GelfEncoderTest
     return sb.toString();
   }
 
+  private String createRandomString( final int length )
+  {
+    final Random random = new Random( length );
+    final StringBuilder sb = new StringBuilder();
+    for( int i = 0; i < length; i++ )
+    {
+      sb.append( (char) ( '!' + random.nextInt( 90 ) ) );
+    }
+    return sb.toString();
+  }
+
+  private byte[] decompress( final byte[] payload )
+    throws IOException
+  {
+    final GZIPInputStream input = new GZIPInputStream( new ByteArrayInputStream( payload ) );
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[ 1024 ];
+    int count;
+    while( -1 != ( count = input.read( buffer ) ) )
+    {
+      output.write( buffer, 0, count );
+    }
+    return output.toByteArray();
+  }
+
   private byte[] createData( final int byteCount )
   {
     return createString( byteCount ).getBytes();
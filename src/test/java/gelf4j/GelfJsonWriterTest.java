@@ -0,0 +1,86 @@
+package gelf4j;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GelfJsonWriterTest
+{
+  @Test
+  public void timestampMatchesBigDecimal()
+    throws Exception
+  {
+    final GelfJsonWriter writer = new GelfJsonWriter( 16 );
+    final long now = System.currentTimeMillis();
+    final long[] values =
+      new long[]{ 0, 1, 10, 100, 999, 1000, 1001, 1010, 1100, 3000, -1, -500, -1000, -1500, now, now - now % 1000,
+                  now - now % 10, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE / 1000, -Long.MAX_VALUE / 1000 };
+    for ( final long value : values )
+    {
+      assertTimestamp( writer, value );
+    }
+    final Random random = new Random( 42 );
+    for ( int i = 0; i < 10000; i++ )
+    {
+      // Consecutive values mostly share a second so the cached digits are exercised
+      assertTimestamp( writer, now + random.nextInt( 5000 ) );
+      assertTimestamp( writer, random.nextLong() );
+    }
+  }
+
+  @Test
+  public void timestampWithMicros()
+    throws Exception
+  {
+    final GelfJsonWriter writer = new GelfJsonWriter( 16 );
+    assertEquals( "\"1234.567891\"", writeTimestamp( writer, 1234567, 891 ) );
+    assertEquals( "\"1234.5678\"", writeTimestamp( writer, 1234567, 800 ) );
+    assertEquals( "\"1234.567\"", writeTimestamp( writer, 1234567, 0 ) );
+    assertEquals( "\"1\"", writeTimestamp( writer, 1000, 0 ) );
+    assertEquals( "\"0.000001\"", writeTimestamp( writer, 0, 1 ) );
+    assertEquals( "\"-0.000999\"", writeTimestamp( writer, -1, 1 ) );
+  }
+
+  @Test
+  public void longStringsAreEscapedWithoutOverReserving()
+    throws Exception
+  {
+    // The repeated text does not divide the escape block evenly, so surrogate pairs straddle blocks
+    final StringBuilder value = new StringBuilder();
+    final StringBuilder expected = new StringBuilder( "\"" );
+    for ( int i = 0; i < 5000; i++ )
+    {
+      value.append( "a\u00e9\"\u0001\ud83d\ude00" );
+      expected.append( "a\u00e9\\\"\\u0001\ud83d\ude00" );
+    }
+    expected.append( '"' );
+    final GelfJsonWriter writer = new GelfJsonWriter( 16 );
+    writer.string( value.toString() );
+    assertEquals( expected.toString(), new String( writer.toByteArray(), "UTF-8" ) );
+
+    // Ascii text grows the buffer by doubling rather than to six times the length of the text
+    final char[] ascii = new char[ 1000000 ];
+    Arrays.fill( ascii, 'x' );
+    final GelfJsonWriter asciiWriter = new GelfJsonWriter( 16 );
+    asciiWriter.string( new String( ascii ) );
+    assertEquals( 1000002, asciiWriter.toByteArray().length );
+    assertTrue( asciiWriter.capacity() < 2 * 1000002 );
+  }
+
+  private void assertTimestamp( final GelfJsonWriter writer, final long millis )
+    throws Exception
+  {
+    final String expected = new BigDecimal( millis ).divide( new BigDecimal( 1000 ) ).toPlainString();
+    assertEquals( "\"" + expected + "\"", writeTimestamp( writer, millis, -1 ) );
+  }
+
+  private String writeTimestamp( final GelfJsonWriter writer, final long millis, final int microsOfMilli )
+    throws Exception
+  {
+    writer.reset();
+    writer.timestamp( millis, microsOfMilli );
+    return new String( writer.toByteArray(), "UTF-8" );
+  }
+}
@@ -0,0 +1,177 @@
+package gelf4j;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GelfMessageTest
+{
+  @Test
+  public void timestampAndLinePresence()
+    throws Exception
+  {
+    final GelfMessage message = new GelfMessage();
+    assertFalse( message.hasJavaTimestamp() );
+    assertNull( message.getJavaTimestamp() );
+    assertFalse( message.hasLine() );
+    assertNull( message.getLine() );
+
+    message.setJavaTimestamp( 0 );
+    message.setLine( 0 );
+    assertTrue( message.hasJavaTimestamp() );
+    assertEquals( (Long) 0L, message.getJavaTimestamp() );
+    assertEquals( 0, message.getJavaTimestampMillis() );
+    assertTrue( message.hasLine() );
+    assertEquals( (Long) 0L, message.getLine() );
+    assertEquals( 0, message.getLineNumber() );
+  }
+
+  @Test
+  public void typedFields()
+    throws Exception
+  {
+    final GelfMessage message = new GelfMessage();
+    message.addField( "count", 42L );
+    message.addField( "ratio", 0.5D );
+    final StringBuilder sb = new StringBuilder( "text" );
+    message.addField( "text", sb );
+    sb.append( "-changed" );
+
+    assertEquals( 3, message.getFieldCount() );
+    assertEquals( GelfMessage.LONG_FIELD, message.getFieldType( message.indexOfField( "count" ) ) );
+    assertEquals( 42L, message.getLongField( message.indexOfField( "count" ) ) );
+    assertEquals( GelfMessage.DOUBLE_FIELD, message.getFieldType( message.indexOfField( "ratio" ) ) );
+    assertEquals( 0.5D, message.getDoubleField( message.indexOfField( "ratio" ) ), 0 );
+
+    final Map<String, Object> fields = message.getAdditionalFields();
+    assertEquals( 42L, fields.get( "count" ) );
+    assertEquals( 0.5D, fields.get( "ratio" ) );
+    assertEquals( "text", fields.get( "text" ) );
+
+    // Adding an existing field replaces the value and type
+    message.addField( "count", "many" );
+    assertEquals( 3, message.getFieldCount() );
+    assertEquals( "many", fields.get( "count" ) );
+  }
+
+  @Test
+  public void additionalFieldsView()
+    throws Exception
+  {
+    final GelfMessage message = new GelfMessage();
+    final Map<String, Object> fields = message.getAdditionalFields();
+    final Map<String, Object> expected = new HashMap<String, Object>();
+    // Enough fields to grow the arrays
+    for ( int i = 0; i < 20; i++ )
+    {
+      assertNull( fields.put( "key" + i, i ) );
+      expected.put( "key" + i, i );
+    }
+    assertEquals( expected, fields );
+    assertEquals( expected.hashCode(), fields.hashCode() );
+    assertEquals( 3, fields.put( "key3", "three" ) );
+    assertEquals( "three", fields.get( "key3" ) );
+    assertTrue( fields.containsKey( "key19" ) );
+    assertFalse( fields.containsKey( "key20" ) );
+
+    assertEquals( 5, fields.remove( "key5" ) );
+    assertNull( fields.remove( "key5" ) );
+    assertEquals( 19, fields.size() );
+    assertEquals( 6, fields.get( "key6" ) );
+
+    final Iterator<Map.Entry<String, Object>> iterator = fields.entrySet().iterator();
+    while ( iterator.hasNext() )
+    {
+      final Map.Entry<String, Object> entry = iterator.next();
+      if ( entry.getValue() instanceof Integer && 0 == (Integer) entry.getValue() % 2 )
+      {
+        iterator.remove();
+      }
+      else
+      {
+        entry.setValue( entry.getKey() );
+      }
+    }
+    assertEquals( 9, fields.size() );
+    assertEquals( "key3", fields.get( "key3" ) );
+    assertEquals( "key7", fields.get( "key7" ) );
+    assertFalse( fields.containsKey( "key8" ) );
+
+    fields.clear();
+    assertTrue( fields.isEmpty() );
+    assertEquals( 0, message.getFieldCount() );
+  }
+
+  @Test
+  public void additionalFieldsViewIncludesDefaultFields()
+    throws Exception
+  {
+    final Map<String, Object> defaultFields = new HashMap<String, Object>();
+    defaultFields.put( "environment", "DEV" );
+    defaultFields.put( "application", "MyAPP" );
+    final GelfMessageTemplate template = new GelfMessageTemplate( defaultFields, 0, "Host", "Facility" );
+    final GelfMessage message = new GelfMessage();
+    template.apply( message );
+    final Map<String, Object> fields = message.getAdditionalFields();
+    fields.put( "loggerName", "Logger" );
+
+    final Map<String, Object> expected = new HashMap<String, Object>( defaultFields );
+    expected.put( "loggerName", "Logger" );
+    assertEquals( expected, fields );
+    assertEquals( 3, fields.size() );
+    assertEquals( 1, message.getFieldCount() );
+    assertTrue( fields.containsKey( "environment" ) );
+
+    // Setting a default field overrides it for the message
+    assertEquals( "DEV", fields.put( "environment", "PROD" ) );
+    assertEquals( "PROD", fields.get( "environment" ) );
+    assertEquals( 3, fields.size() );
+
+    // Removing the override restores the default
+    assertEquals( "PROD", fields.remove( "environment" ) );
+    assertEquals( "DEV", fields.get( "environment" ) );
+
+    final Iterator<Map.Entry<String, Object>> iterator = fields.entrySet().iterator();
+    int count = 0;
+    while ( iterator.hasNext() )
+    {
+      final Map.Entry<String, Object> entry = iterator.next();
+      entry.setValue( entry.getKey() );
+      count++;
+    }
+    assertEquals( 3, count );
+    assertEquals( "application", fields.get( "application" ) );
+    assertEquals( 3, message.getFieldCount() );
+
+    fields.clear();
+    assertEquals( defaultFields, fields );
+    final Iterator<Map.Entry<String, Object>> defaults = fields.entrySet().iterator();
+    defaults.next();
+    try
+    {
+      defaults.remove();
+      fail( "Expected to be unable to remove a default field" );
+    }
+    catch ( final UnsupportedOperationException uoe )
+    {
+      //expected
+    }
+  }
+
+  @Test
+  public void copyFieldsFrom()
+    throws Exception
+  {
+    final GelfMessage source = new GelfMessage();
+    source.addField( "count", 1L );
+    source.addField( "name", "source" );
+    final GelfMessage target = new GelfMessage();
+    target.addField( "name", "target" );
+    target.copyFieldsFrom( source );
+    assertEquals( 2, target.getFieldCount() );
+    assertEquals( GelfMessage.LONG_FIELD, target.getFieldType( target.indexOfField( "count" ) ) );
+    assertEquals( "source", target.getAdditionalFields().get( "name" ) );
+  }
+}
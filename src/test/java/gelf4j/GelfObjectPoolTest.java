@@ -0,0 +1,77 @@
+package gelf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GelfObjectPoolTest
+{
+  @Test
+  public void objectsAreReusedUpToThePoolSize()
+    throws Exception
+  {
+    final List<Object> disposed = new ArrayList<Object>();
+    final GelfObjectPool<Object> pool = new GelfObjectPool<Object>( 2 )
+    {
+      @Override
+      protected Object create()
+      {
+        return new Object();
+      }
+
+      @Override
+      protected void dispose( final Object object )
+      {
+        disposed.add( object );
+      }
+    };
+    final Object object1 = pool.acquire();
+    pool.release( object1 );
+    assertSame( object1, pool.acquire() );
+
+    // A full pool disposes of released objects
+    final Object object2 = pool.acquire();
+    final Object object3 = pool.acquire();
+    assertNotSame( object1, object2 );
+    assertNotSame( object2, object3 );
+    pool.release( object1 );
+    pool.release( object2 );
+    pool.release( object3 );
+    assertEquals( 1, disposed.size() );
+    assertSame( object3, disposed.get( 0 ) );
+
+    // Closing disposes of the retained objects and of objects released later
+    final Object inUse = pool.acquire();
+    pool.close();
+    assertEquals( 2, disposed.size() );
+    pool.release( inUse );
+    assertEquals( 3, disposed.size() );
+    assertTrue( disposed.contains( object1 ) );
+    assertTrue( disposed.contains( object2 ) );
+  }
+
+  @Test
+  public void objectsThatCanNotBeRecycledAreDiscarded()
+    throws Exception
+  {
+    final GelfObjectPool<StringBuilder> pool = new GelfObjectPool<StringBuilder>( 2 )
+    {
+      @Override
+      protected StringBuilder create()
+      {
+        return new StringBuilder();
+      }
+
+      @Override
+      protected boolean recycle( final StringBuilder builder )
+      {
+        return builder.length() < 4;
+      }
+    };
+    final StringBuilder builder = pool.acquire();
+    builder.append( "large" );
+    pool.release( builder );
+    assertNotSame( builder, pool.acquire() );
+  }
+}
@@ -0,0 +1,82 @@
+package gelf4j;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GelfRateLimiterTest
+{
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos( 1 );
+
+  @Test
+  public void bucketPermitsBurstThenRate()
+    throws Exception
+  {
+    final GelfRateLimiter limiter = new GelfRateLimiter( 10, 3, null );
+    final GelfRateLimiter.Bucket bucket = limiter.getBucket( "a.b.C" );
+    assertSame( bucket, limiter.getBucket( "a.b.C" ) );
+
+    final long now = 1000 * MILLIS;
+    assertTrue( bucket.tryAcquire( now ) );
+    assertTrue( bucket.tryAcquire( now ) );
+    assertTrue( bucket.tryAcquire( now ) );
+    assertFalse( bucket.tryAcquire( now ) );
+    assertFalse( bucket.tryAcquire( now + 50 * MILLIS ) );
+    assertEquals( 2, bucket.takeSuppressedCount() );
+    assertEquals( 0, bucket.takeSuppressedCount() );
+
+    // A token is added every 100ms
+    assertTrue( bucket.tryAcquire( now + 100 * MILLIS ) );
+    assertFalse( bucket.tryAcquire( now + 100 * MILLIS ) );
+
+    // Idle time refills the bucket up to the burst
+    final long later = now + 10000 * MILLIS;
+    assertTrue( bucket.tryAcquire( later ) );
+    assertTrue( bucket.tryAcquire( later ) );
+    assertTrue( bucket.tryAcquire( later ) );
+    assertFalse( bucket.tryAcquire( later ) );
+  }
+
+  @Test
+  public void idleBucketsAreEvicted()
+    throws Exception
+  {
+    final GelfRateLimiter limiter = new GelfRateLimiter( 10, 1, null );
+    final GelfRateLimiter.Bucket bucket = limiter.getBucket( "a.b.C" );
+    final long now = 1000 * MILLIS;
+    assertTrue( bucket.tryAcquire( now ) );
+    assertFalse( bucket.tryAcquire( now ) );
+
+    // A bucket that is waiting for a token or has suppressed messages to report is kept
+    assertFalse( limiter.evictIfIdle( bucket, now + 200 * MILLIS ) );
+    assertEquals( 1, bucket.takeSuppressedCount() );
+    assertFalse( limiter.evictIfIdle( bucket, now + 50 * MILLIS ) );
+    assertSame( bucket, limiter.getBucket( "a.b.C" ) );
+
+    // Once refilled it is removed and a new bucket is created for the logger
+    assertTrue( limiter.evictIfIdle( bucket, now + 200 * MILLIS ) );
+    assertTrue( limiter.getBuckets().isEmpty() );
+    assertNotSame( bucket, limiter.getBucket( "a.b.C" ) );
+  }
+
+  @Test
+  public void longestPrefixSelectsRate()
+    throws Exception
+  {
+    final GelfRateLimiter limiter = new GelfRateLimiter( 100, 0, "com.example=50, com.example.noisy=5 com.quiet=0" );
+    assertEquals( 5, limiter.getRate( "com.example.noisy.Component" ) );
+    assertEquals( 50, limiter.getRate( "com.example.Other" ) );
+    assertEquals( 100, limiter.getRate( "org.Other" ) );
+
+    // A rate of 0 means the logger is not limited
+    assertNull( limiter.getBucket( "com.quiet.Component" ) );
+    assertNotNull( limiter.getBucket( "org.Other" ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void invalidRatesAreRejected()
+    throws Exception
+  {
+    new GelfRateLimiter( 100, 0, "com.example" );
+  }
+}
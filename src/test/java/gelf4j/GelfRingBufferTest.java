@@ -0,0 +1,237 @@
+package gelf4j;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GelfRingBufferTest
+{
+  @Test
+  public void offerAndDrain()
+    throws Exception
+  {
+    final GelfRingBuffer buffer = new GelfRingBuffer( 3 );
+    final GelfMessage message1 = new GelfMessage();
+    final GelfMessage message2 = new GelfMessage();
+    final GelfMessage message3 = new GelfMessage();
+    final GelfMessage message4 = new GelfMessage();
+
+    assertTrue( buffer.offer( message1 ) );
+    assertTrue( buffer.offer( message2 ) );
+    assertTrue( buffer.offer( message3 ) );
+    //Buffer is full
+    assertFalse( buffer.offer( message4 ) );
+    assertEquals( 3, buffer.size() );
+
+    final GelfMessage[] batch = new GelfMessage[ 2 ];
+    assertEquals( 2, buffer.drainTo( batch ) );
+    assertSame( message1, batch[ 0 ] );
+    assertSame( message2, batch[ 1 ] );
+
+    //Wraps around the end of the slots
+    assertTrue( buffer.offer( message4 ) );
+    assertEquals( 2, buffer.drainTo( batch ) );
+    assertSame( message3, batch[ 0 ] );
+    assertSame( message4, batch[ 1 ] );
+    assertEquals( 0, buffer.size() );
+  }
+
+  @Test
+  public void closeStopsOffersButAllowsDrain()
+    throws Exception
+  {
+    final GelfRingBuffer buffer = new GelfRingBuffer( 2 );
+    final GelfMessage message = new GelfMessage();
+    assertTrue( buffer.offer( message ) );
+    buffer.close();
+    assertFalse( buffer.offer( new GelfMessage() ) );
+
+    final GelfMessage[] batch = new GelfMessage[ 2 ];
+    assertEquals( 1, buffer.drainTo( batch ) );
+    assertSame( message, batch[ 0 ] );
+    //Closed and empty so drain returns immediately
+    assertEquals( 0, buffer.drainTo( batch ) );
+  }
+
+  @Test
+  public void drainLingersForBatchToFill()
+    throws Exception
+  {
+    final GelfRingBuffer buffer = new GelfRingBuffer( 4 );
+    final GelfMessage[] batch = new GelfMessage[ 2 ];
+    assertTrue( buffer.offer( new GelfMessage() ) );
+    final Thread producer = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          Thread.sleep( 20 );
+        }
+        catch ( final InterruptedException ie )
+        {
+          return;
+        }
+        buffer.offer( new GelfMessage() );
+      }
+    };
+    producer.start();
+    // Waits for the second message rather than returning the first on its own
+    assertEquals( 2, buffer.drainTo( batch, TimeUnit.SECONDS.toNanos( 10 ) ) );
+    producer.join();
+
+    // Gives up waiting once the linger time has passed
+    assertTrue( buffer.offer( new GelfMessage() ) );
+    assertEquals( 1, buffer.drainTo( batch, TimeUnit.MILLISECONDS.toNanos( 5 ) ) );
+  }
+
+  @Test
+  public void dropOldestEvictsOldestMessage()
+    throws Exception
+  {
+    final GelfRingBuffer buffer = new GelfRingBuffer( 2, GelfRingBuffer.DROP_OLDEST, 0 );
+    final GelfMessage message1 = newMessage( SyslogLevel.INFO );
+    final GelfMessage message2 = newMessage( SyslogLevel.INFO );
+    final GelfMessage message3 = newMessage( SyslogLevel.INFO );
+    assertTrue( buffer.offer( message1 ) );
+    assertTrue( buffer.offer( message2 ) );
+    assertTrue( buffer.offer( message3 ) );
+    assertEquals( 1, buffer.getDroppedCount() );
+
+    final GelfMessage[] batch = new GelfMessage[ 2 ];
+    assertEquals( 2, buffer.drainTo( batch ) );
+    assertSame( message2, batch[ 0 ] );
+    assertSame( message3, batch[ 1 ] );
+  }
+
+  @Test
+  public void shedBySeverityEvictsLeastSevereMessage()
+    throws Exception
+  {
+    final GelfRingBuffer buffer = new GelfRingBuffer( 3, GelfRingBuffer.SHED_BY_SEVERITY, 0 );
+    final GelfMessage info = newMessage( SyslogLevel.INFO );
+    final GelfMessage debug1 = newMessage( SyslogLevel.DEBUG );
+    final GelfMessage debug2 = newMessage( SyslogLevel.DEBUG );
+    final GelfMessage error1 = newMessage( SyslogLevel.ERR );
+    final GelfMessage error2 = newMessage( SyslogLevel.ERR );
+    final GelfMessage error3 = newMessage( SyslogLevel.ERR );
+    assertTrue( buffer.offer( debug1 ) );
+    assertTrue( buffer.offer( info ) );
+    assertTrue( buffer.offer( debug2 ) );
+
+    //The oldest debug message is evicted first, then the remaining debug message and then the info message
+    assertTrue( buffer.offer( error1 ) );
+    assertTrue( buffer.offer( error2 ) );
+    assertTrue( buffer.offer( error3 ) );
+    assertEquals( 3, buffer.getDroppedCount() );
+
+    //Nothing is less severe than the message so it is rejected
+    assertFalse( buffer.offer( newMessage( SyslogLevel.ERR ) ) );
+    assertFalse( buffer.offer( newMessage( SyslogLevel.DEBUG ) ) );
+    assertEquals( 5, buffer.getDroppedCount() );
+
+    final GelfMessage[] batch = new GelfMessage[ 3 ];
+    assertEquals( 3, buffer.drainTo( batch ) );
+    assertSame( error1, batch[ 0 ] );
+    assertSame( error2, batch[ 1 ] );
+    assertSame( error3, batch[ 2 ] );
+
+    //A more severe message evicts the oldest of the least severe
+    assertTrue( buffer.offer( info ) );
+    assertTrue( buffer.offer( debug1 ) );
+    assertTrue( buffer.offer( debug2 ) );
+    assertTrue( buffer.offer( error1 ) );
+    assertEquals( 3, buffer.drainTo( batch ) );
+    assertSame( info, batch[ 0 ] );
+    assertSame( debug2, batch[ 1 ] );
+    assertSame( error1, batch[ 2 ] );
+  }
+
+  @Test
+  public void shedBySeverityPreservesOrderOfRemainingMessages()
+    throws Exception
+  {
+    final GelfRingBuffer buffer = new GelfRingBuffer( 5, GelfRingBuffer.SHED_BY_SEVERITY, 0 );
+    final GelfMessage[] batch = new GelfMessage[ 5 ];
+    // Move the head part way around the ring
+    assertTrue( buffer.offer( newMessage( SyslogLevel.INFO ) ) );
+    assertTrue( buffer.offer( newMessage( SyslogLevel.INFO ) ) );
+    assertTrue( buffer.offer( newMessage( SyslogLevel.INFO ) ) );
+    assertEquals( 3, buffer.poll( batch ) );
+
+    for ( int debugPosition = 0; debugPosition < 5; debugPosition++ )
+    {
+      final GelfMessage[] messages = new GelfMessage[ 5 ];
+      for ( int i = 0; i < messages.length; i++ )
+      {
+        messages[ i ] = newMessage( i == debugPosition ? SyslogLevel.DEBUG : SyslogLevel.INFO );
+        assertTrue( buffer.offer( messages[ i ] ) );
+      }
+      final GelfMessage error = newMessage( SyslogLevel.ERR );
+      assertTrue( buffer.offer( error ) );
+
+      assertEquals( 5, buffer.poll( batch ) );
+      int index = 0;
+      for ( int i = 0; i < messages.length; i++ )
+      {
+        if ( i != debugPosition )
+        {
+          assertSame( messages[ i ], batch[ index++ ] );
+        }
+      }
+      assertSame( error, batch[ 4 ] );
+    }
+    assertEquals( 5, buffer.getDroppedCount() );
+  }
+
+  @Test
+  public void blockWaitsForSpace()
+    throws Exception
+  {
+    final GelfRingBuffer buffer = new GelfRingBuffer( 1, GelfRingBuffer.BLOCK, TimeUnit.SECONDS.toNanos( 10 ) );
+    final GelfMessage message1 = new GelfMessage();
+    final GelfMessage message2 = new GelfMessage();
+    assertTrue( buffer.offer( message1 ) );
+    final Thread consumer = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          Thread.sleep( 20 );
+          buffer.drainTo( new GelfMessage[ 1 ] );
+        }
+        catch ( final InterruptedException ie )
+        {
+          //Ignored
+        }
+      }
+    };
+    consumer.start();
+    assertTrue( buffer.offer( message2 ) );
+    consumer.join();
+    assertEquals( 0, buffer.getDroppedCount() );
+
+    //Gives up once the timeout has passed
+    final GelfRingBuffer timed = new GelfRingBuffer( 1, GelfRingBuffer.BLOCK, TimeUnit.MILLISECONDS.toNanos( 5 ) );
+    assertTrue( timed.offer( message1 ) );
+    assertFalse( timed.offer( message2 ) );
+    assertEquals( 1, timed.getDroppedCount() );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void zeroCapacityIsRejected()
+    throws Exception
+  {
+    new GelfRingBuffer( 0 );
+  }
+
+  private GelfMessage newMessage( final SyslogLevel level )
+  {
+    final GelfMessage message = new GelfMessage();
+    message.setLevel( level );
+    return message;
+  }
+}
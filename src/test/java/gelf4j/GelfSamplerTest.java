@@ -0,0 +1,55 @@
+package gelf4j;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GelfSamplerTest
+{
+  @Test
+  public void samplesByLevel()
+    throws Exception
+  {
+    final GelfSampler sampler = new GelfSampler( "DEBUG=0, INFO=0.25,7=0" );
+    int kept = 0;
+    for ( int i = 0; i < 10000; i++ )
+    {
+      assertTrue( sampler.isSampled( SyslogLevel.ERR, "trace" + i ) );
+      assertTrue( sampler.isSampled( SyslogLevel.WARNING, null ) );
+      assertFalse( sampler.isSampled( SyslogLevel.DEBUG, "trace" + i ) );
+      if ( sampler.isSampled( SyslogLevel.INFO, "trace" + i ) )
+      {
+        kept++;
+      }
+    }
+    assertTrue( "Kept " + kept, kept > 2000 && kept < 3000 );
+  }
+
+  @Test
+  public void messagesWithTheSameKeyAreKeptTogether()
+    throws Exception
+  {
+    final GelfSampler sampler = new GelfSampler( "INFO=0.5" );
+    for ( int i = 0; i < 100; i++ )
+    {
+      final boolean sampled = sampler.isSampled( SyslogLevel.INFO, "trace" + i );
+      for ( int j = 0; j < 10; j++ )
+      {
+        assertEquals( sampled, sampler.isSampled( SyslogLevel.INFO, "trace" + i ) );
+      }
+    }
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void invalidRatesAreRejected()
+    throws Exception
+  {
+    new GelfSampler( "INFO=2" );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void unknownLevelsAreRejected()
+    throws Exception
+  {
+    new GelfSampler( "VERBOSE=0.5" );
+  }
+}
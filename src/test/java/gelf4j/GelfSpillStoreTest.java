@@ -0,0 +1,146 @@
+package gelf4j;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GelfSpillStoreTest
+{
+  private File _directory;
+
+  @Before
+  public void createDirectory()
+    throws IOException
+  {
+    _directory = File.createTempFile( "gelf4j", "spill" );
+    assertTrue( _directory.delete() );
+    assertTrue( _directory.mkdirs() );
+  }
+
+  @After
+  public void deleteDirectory()
+  {
+    final File[] files = _directory.listFiles();
+    if ( null != files )
+    {
+      for ( final File file : files )
+      {
+        assertTrue( file.delete() );
+      }
+    }
+    assertTrue( _directory.delete() );
+  }
+
+  @Test
+  public void appendAndReplayInOrder()
+    throws Exception
+  {
+    final GelfSpillStore store = new GelfSpillStore( _directory, 64, 1024 );
+    assertTrue( store.isEmpty() );
+    assertNull( store.peek() );
+
+    // Each record takes 24 bytes so the third rolls over into a second segment
+    for ( int i = 0; i < 5; i++ )
+    {
+      assertTrue( store.append( payload( i ) ) );
+    }
+    assertEquals( 5, store.getPendingCount() );
+    assertEquals( 3, segmentCount() );
+
+    for ( int i = 0; i < 5; i++ )
+    {
+      assertArrayEquals( payload( i ), store.peek() );
+      // Peek does not remove
+      assertArrayEquals( payload( i ), store.peek() );
+      store.remove();
+    }
+    assertTrue( store.isEmpty() );
+    assertNull( store.peek() );
+    // Consumed segments are deleted other than the one being written to
+    assertEquals( 1, segmentCount() );
+    store.close();
+  }
+
+  @Test
+  public void appendFailsWhenFull()
+    throws Exception
+  {
+    final GelfSpillStore store = new GelfSpillStore( _directory, 64, 128 );
+    // Too large for a segment
+    assertFalse( store.append( new byte[ 61 ] ) );
+    for ( int i = 0; i < 4; i++ )
+    {
+      assertTrue( store.append( payload( i ) ) );
+    }
+    assertFalse( store.append( payload( 4 ) ) );
+    assertEquals( 2, store.getDroppedCount() );
+    assertEquals( 4, store.getPendingCount() );
+
+    // Space is reclaimed once a segment has been replayed
+    store.remove();
+    store.remove();
+    assertTrue( store.append( payload( 4 ) ) );
+    assertArrayEquals( payload( 2 ), store.peek() );
+    store.close();
+  }
+
+  @Test
+  public void recoverAfterClose()
+    throws Exception
+  {
+    final GelfSpillStore store = new GelfSpillStore( _directory, 64, 1024 );
+    for ( int i = 0; i < 4; i++ )
+    {
+      assertTrue( store.append( payload( i ) ) );
+    }
+    store.remove();
+    store.close();
+
+    // The directory is locked while a store is open
+    final GelfSpillStore store2 = new GelfSpillStore( _directory, 64, 1024 );
+    try
+    {
+      new GelfSpillStore( _directory, 64, 1024 );
+      fail( "Expected the directory to be locked" );
+    }
+    catch ( final IOException ioe )
+    {
+      //Expected
+    }
+    assertEquals( 3, store2.getPendingCount() );
+    for ( int i = 1; i < 4; i++ )
+    {
+      assertArrayEquals( payload( i ), store2.peek() );
+      store2.remove();
+    }
+    assertTrue( store2.isEmpty() );
+    store2.close();
+  }
+
+  private int segmentCount()
+  {
+    final File[] files = _directory.listFiles();
+    int count = 0;
+    for ( final File file : files )
+    {
+      if ( file.getName().endsWith( GelfSpillStore.SEGMENT_SUFFIX ) )
+      {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private byte[] payload( final int index )
+  {
+    final byte[] payload = new byte[ 20 ];
+    for ( int i = 0; i < payload.length; i++ )
+    {
+      payload[ i ] = (byte) ( index + i + 1 );
+    }
+    return payload;
+  }
+}
@@ -2,6 +2,7 @@ package gelf4j;
 
 import java.net.InetAddress;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -17,8 +18,27 @@ public class GelfTargetConfigTest
     assertEquals( InetAddress.getLocalHost().getCanonicalHostName(), config.getHostAddress().getCanonicalHostName() );
     assertEquals( 12201, config.getPort() );
     assertEquals( true, config.isCompressedChunking() );
-    assertEquals( 1, config.getDefaultFields().size() );
-    assertEquals( InetAddress.getLocalHost().getCanonicalHostName(), config.getDefaultFields().get( "host" ) );
+    assertEquals( "gzip", config.getCompression() );
+    assertEquals( -1, config.getCompressionLevel() );
+    assertEquals( 0, config.getCompressionThreshold() );
+    assertEquals( 1024 * 1024, config.getParallelCompressionThreshold() );
+    assertEquals( 2048, config.getChunkSize() );
+    assertEquals( 128, config.getMaxChunkCount() );
+    assertEquals( "udp", config.getProtocol() );
+    assertEquals( Runtime.getRuntime().availableProcessors(), config.getChannelPoolSize() );
+    assertEquals( false, config.isAsync() );
+    assertNull( config.getSpillDirectory() );
+    assertEquals( 1024, config.getAsyncQueueCapacity() );
+    assertEquals( "drop_newest", config.getOverloadPolicy() );
+    assertEquals( false, config.isEncodeWithCodec() );
+    assertEquals( 1000, config.getOverloadBlockTimeout() );
+    assertNull( config.getTargets() );
+    assertEquals( "round_robin", config.getLoadBalancing() );
+    assertEquals( "facility", config.getLoadBalancingKey() );
+    assertEquals( 3, config.getCircuitBreakerFailureThreshold() );
+    assertEquals( 30000, config.getDnsRefreshInterval() );
+    // The host is supplied by the encoder rather than the default fields so the name lookup does not block
+    assertEquals( 0, config.getDefaultFields().size() );
 
     assertEquals( 4, config.getAdditionalFields().size() );
     assertEquals( "exception", config.getAdditionalFields().get( "exception" ) );
@@ -45,7 +65,7 @@ public class GelfTargetConfigTest
   {
     final GelfTargetConfig config = new GelfTargetConfig();
 
-    assertEquals( 1, config.getDefaultFields().size() );
+    assertEquals( 0, config.getDefaultFields().size() );
     config.setDefaultFields( "{\"foo\":1}" );
     assertEquals( 1, config.getDefaultFields().size() );
     config.setDefaultFields( "{\"foo2\":\"x\",\"baz\":7}" );
@@ -54,6 +74,67 @@ public class GelfTargetConfigTest
     assertEquals( "x", config.getDefaultFields().get( "foo2" ) );
   }
 
+  @Test
+  public void defaultFieldsVersionChangesOnModification()
+    throws Exception
+  {
+    final GelfTargetConfig config = new GelfTargetConfig();
+    long version = config.getDefaultFieldsVersion();
+    assertEquals( version, config.getDefaultFieldsVersion() );
+
+    config.getDefaultFields().put( "foo", "bar" );
+    assertNotEquals( version, version = config.getDefaultFieldsVersion() );
+
+    config.getDefaultFields().entrySet().iterator().next().setValue( "x" );
+    assertNotEquals( version, version = config.getDefaultFieldsVersion() );
+
+    final Iterator<Map.Entry<String, Object>> iterator = config.getDefaultFields().entrySet().iterator();
+    iterator.next();
+    iterator.remove();
+    assertNotEquals( version, version = config.getDefaultFieldsVersion() );
+
+    // Json set before a codec has been created is parsed when the fields are read
+    config.setDefaultFields( "{\"foo\":1}" );
+    assertEquals( 1L, config.getDefaultFields().get( "foo" ) );
+    assertNotEquals( version, version = config.getDefaultFieldsVersion() );
+
+    // Once a codec has been created the json is parsed as soon as it is set
+    config.setDefaultFields( "{\"foo\":2}" );
+    assertNotEquals( version, config.getDefaultFieldsVersion() );
+    assertEquals( 2L, config.getDefaultFields().get( "foo" ) );
+  }
+
+  @Test
+  public void connectionCopiesAdditionalFields()
+    throws Exception
+  {
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setHost( "127.0.0.1" );
+    config.setAdditionalFields( "{\"foo\":\"bar\"}" );
+    final GelfConnection connection = config.createConnection();
+    try
+    {
+      assertEquals( "bar", connection.getAdditionalFields().get( "foo" ) );
+      config.setAdditionalFields( "{\"baz\":\"qux\"}" );
+      assertEquals( "qux", config.getAdditionalFields().get( "baz" ) );
+      assertEquals( 1, connection.getAdditionalFields().size() );
+      assertEquals( "bar", connection.getAdditionalFields().get( "foo" ) );
+      try
+      {
+        connection.getAdditionalFields().put( "baz", "qux" );
+        fail( "Expected the additional fields of the connection to be unmodifiable" );
+      }
+      catch ( final UnsupportedOperationException uoe )
+      {
+        //expected
+      }
+    }
+    finally
+    {
+      connection.close();
+    }
+  }
+
   @Test
   public void setJsonCodecClass()
     throws Exception
@@ -0,0 +1,339 @@
+package gelf4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GelfTargetGroupTest
+{
+  @Test
+  public void parseTargets()
+    throws Exception
+  {
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setTargets( "a.example.com:1234, b.example.com [::1]:99 ::1" );
+    final List<GelfTarget> targets = GelfTarget.parseTargets( config );
+    assertEquals( 4, targets.size() );
+    assertEquals( "a.example.com", targets.get( 0 ).getHost() );
+    assertEquals( 1234, targets.get( 0 ).getPort() );
+    assertEquals( "b.example.com", targets.get( 1 ).getHost() );
+    assertEquals( 12201, targets.get( 1 ).getPort() );
+    assertEquals( "::1", targets.get( 2 ).getHost() );
+    assertEquals( 99, targets.get( 2 ).getPort() );
+    assertEquals( "::1", targets.get( 3 ).getHost() );
+    assertEquals( 12201, targets.get( 3 ).getPort() );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void parseTargetsRejectsBadPort()
+    throws Exception
+  {
+    final GelfTargetConfig config = new GelfTargetConfig();
+    config.setTargets( "a.example.com:x" );
+    GelfTarget.parseTargets( config );
+  }
+
+  @Test
+  public void resolveKeepsAddressUntilItChanges()
+    throws Exception
+  {
+    final GelfTarget target = new GelfTarget( "localhost", 12201, new GelfCircuitBreaker( 1, 1, 1 ) );
+    try
+    {
+      target.getAddress();
+      fail( "Expected the address to be unavailable before it is resolved" );
+    }
+    catch ( final UnknownHostException uhe )
+    {
+      //Expected
+    }
+    assertTrue( target.resolve() );
+    final InetSocketAddress address = target.getAddress();
+    assertEquals( 12201, address.getPort() );
+    assertFalse( target.resolve() );
+    assertSame( address, target.getAddress() );
+
+    // An unresolvable host keeps its last known address
+    final GelfTarget unknown = new GelfTarget( "unknown.invalid", 12201, new GelfCircuitBreaker( 1, 1, 1 ) );
+    assertFalse( unknown.resolve() );
+  }
+
+  @Test
+  public void refresherRetriesUnresolvedTargetsWhenRefreshIsDisabled()
+    throws Exception
+  {
+    // A target whose first lookup has not been made
+    final GelfTarget target = new GelfTarget( "localhost", 12201, new GelfCircuitBreaker( 1, 1, 1 ) );
+    final GelfTarget[] targets = new GelfTarget[]{ target };
+    assertTrue( GelfDnsRefresher.hasUnresolvedTargets( targets ) );
+
+    final GelfDnsRefresher refresher = new GelfDnsRefresher( targets, 0 );
+    refresher.start();
+    final long deadline = System.currentTimeMillis() + GelfDnsRefresher.INITIAL_RETRY_DELAY * 5;
+    while ( !target.isResolved() && System.currentTimeMillis() < deadline )
+    {
+      Thread.sleep( 10 );
+    }
+    assertTrue( target.isResolved() );
+    assertFalse( GelfDnsRefresher.hasUnresolvedTargets( targets ) );
+    refresher.close();
+  }
+
+  @Test
+  public void unresolvedTargetsAreSkippedWithoutFailing()
+    throws Exception
+  {
+    final RecordingTransport[] transports = newTransports( 2 );
+    final GelfTarget[] targets = newTargets( 2 );
+    final GelfTarget unresolved = new GelfTarget( "localhost", 12201, new GelfCircuitBreaker( 1, 1, 4 ) );
+    targets[ 0 ] = unresolved;
+    final GelfTargetGroup group = new GelfTargetGroup( targets, transports, false );
+
+    for ( int i = 0; i < 4; i++ )
+    {
+      assertTrue( group.send( new byte[]{ (byte) i } ) );
+    }
+    assertEquals( 0, transports[ 0 ].attempts );
+    assertEquals( 4, transports[ 1 ].payloads.size() );
+    assertEquals( GelfCircuitBreaker.CLOSED, unresolved.getCircuitBreaker().getState() );
+    assertEquals( 0, unresolved.getCircuitBreaker().getFailureCount() );
+
+    assertTrue( unresolved.resolve() );
+    for ( int i = 0; i < 4; i++ )
+    {
+      assertTrue( group.send( new byte[]{ (byte) i } ) );
+    }
+    assertEquals( 2, transports[ 0 ].payloads.size() );
+  }
+
+  @Test
+  public void roundRobinSkipsFailedTargets()
+    throws Exception
+  {
+    final RecordingTransport[] transports = newTransports( 3 );
+    final GelfTargetGroup group = new GelfTargetGroup( newTargets( 3 ), transports, false );
+
+    for ( int i = 0; i < 6; i++ )
+    {
+      assertTrue( group.send( new byte[]{ (byte) i } ) );
+    }
+    for ( final RecordingTransport transport : transports )
+    {
+      assertEquals( 2, transport.payloads.size() );
+    }
+
+    // The failed target opens its circuit breaker and the payload is sent to the next target
+    transports[ 1 ].fail = true;
+    for ( int i = 0; i < 6; i++ )
+    {
+      assertTrue( group.send( new byte[]{ (byte) i } ) );
+    }
+    assertEquals( 2, transports[ 1 ].payloads.size() );
+    assertEquals( 1, transports[ 1 ].attempts - transports[ 1 ].payloads.size() );
+    assertEquals( GelfCircuitBreaker.OPEN, group.getTargets()[ 1 ].getCircuitBreaker().getState() );
+    assertEquals( 10, transports[ 0 ].payloads.size() + transports[ 2 ].payloads.size() );
+
+    // Once every circuit breaker is open sends fail without reaching the transports
+    transports[ 0 ].fail = true;
+    transports[ 2 ].fail = true;
+    assertFalse( group.send( new byte[ 1 ] ) );
+    assertFalse( group.send( new byte[ 1 ] ) );
+    final int attempts = transports[ 0 ].attempts + transports[ 1 ].attempts + transports[ 2 ].attempts;
+    assertFalse( group.send( new byte[ 1 ] ) );
+    assertEquals( attempts, transports[ 0 ].attempts + transports[ 1 ].attempts + transports[ 2 ].attempts );
+
+    // After the backoff a probe is sent and closes the circuit breaker
+    transports[ 0 ].fail = false;
+    transports[ 1 ].fail = false;
+    transports[ 2 ].fail = false;
+    Thread.sleep( 5 );
+    assertTrue( group.send( new byte[ 1 ] ) );
+    assertTrue( group.send( new byte[ 1 ] ) );
+    assertTrue( group.send( new byte[ 1 ] ) );
+    for ( final GelfTarget target : group.getTargets() )
+    {
+      assertEquals( GelfCircuitBreaker.CLOSED, target.getCircuitBreaker().getState() );
+    }
+  }
+
+  @Test
+  public void batchFailsOverToNextTarget()
+    throws Exception
+  {
+    final RecordingTransport[] transports = newTransports( 2 );
+    final GelfTargetGroup group = new GelfTargetGroup( newTargets( 2 ), transports, false );
+    // The first target fails part way through the batch
+    transports[ 0 ].failAfter = 2;
+    final List<byte[]> payloads =
+      Arrays.asList( new byte[]{ 0 }, new byte[]{ 1 }, new byte[]{ 2 }, new byte[]{ 3 } );
+    assertEquals( 4, group.send( payloads ) );
+    assertEquals( 2, transports[ 0 ].payloads.size() );
+    assertEquals( 2, transports[ 1 ].payloads.size() );
+    assertSame( payloads.get( 2 ), transports[ 1 ].payloads.get( 0 ) );
+    assertEquals( 1, group.getTargets()[ 0 ].getCircuitBreaker().getFailureCount() );
+  }
+
+  @Test
+  public void hashingIsConsistent()
+    throws Exception
+  {
+    final GelfTarget[] targets = newTargets( 4 );
+    final GelfTargetGroup group = new GelfTargetGroup( targets, newTransports( 4 ), true );
+    assertTrue( group.isHashed() );
+
+    final int[] counts = new int[ 4 ];
+    for ( int i = 0; i < 1000; i++ )
+    {
+      final int index = group.select( "logger" + i );
+      assertEquals( index, group.select( "logger" + i ) );
+      counts[ index ]++;
+    }
+    for ( final int count : counts )
+    {
+      assertTrue( "Uneven distribution " + Arrays.toString( counts ), count > 100 );
+    }
+
+    // Removing a target only moves the keys that were mapped to that target
+    final GelfTargetGroup smaller =
+      new GelfTargetGroup( Arrays.copyOf( targets, 3 ), newTransports( 3 ), true );
+    for ( int i = 0; i < 1000; i++ )
+    {
+      final int index = group.select( "logger" + i );
+      if ( 3 != index )
+      {
+        assertEquals( index, smaller.select( "logger" + i ) );
+      }
+    }
+  }
+
+  @Test
+  public void hashedSendFailsOverWhenTargetFails()
+    throws Exception
+  {
+    final RecordingTransport[] transports = newTransports( 2 );
+    final GelfTargetGroup group = new GelfTargetGroup( newTargets( 2 ), transports, true );
+    final int index = group.select( "key" );
+    assertTrue( group.send( "key", new byte[ 1 ] ) );
+    assertEquals( 1, transports[ index ].payloads.size() );
+
+    transports[ index ].fail = true;
+    assertTrue( group.send( "key", new byte[ 1 ] ) );
+    assertEquals( 1, transports[ 1 - index ].payloads.size() );
+  }
+
+  private GelfTarget[] newTargets( final int count )
+  {
+    final GelfTarget[] targets = new GelfTarget[ count ];
+    for ( int i = 0; i < count; i++ )
+    {
+      // Open on the first failure and probe again almost immediately
+      targets[ i ] = new GelfTarget( "127.0.0." + ( i + 1 ), 12201, new GelfCircuitBreaker( 1, 1, 4 ) );
+      targets[ i ].resolve();
+    }
+    return targets;
+  }
+
+  @Test
+  public void probeThatThrowsReopensTheCircuitBreaker()
+    throws Exception
+  {
+    final GelfTarget[] targets = newTargets( 1 );
+    final RecordingTransport[] transports = newTransports( 1 );
+    final GelfTargetGroup group = new GelfTargetGroup( targets, transports, false );
+    final GelfCircuitBreaker circuitBreaker = targets[ 0 ].getCircuitBreaker();
+
+    transports[ 0 ].fault = true;
+    try
+    {
+      group.send( new byte[]{ 1 } );
+      fail( "Expected the fault to propagate" );
+    }
+    catch ( final IllegalStateException ise )
+    {
+      //Expected
+    }
+    assertEquals( GelfCircuitBreaker.OPEN, circuitBreaker.getState() );
+
+    // The probe made once the backoff expires also throws, which must not leave the breaker half open
+    Thread.sleep( 5 );
+    try
+    {
+      group.send( Arrays.asList( new byte[]{ 2 } ) );
+      fail( "Expected the fault to propagate" );
+    }
+    catch ( final IllegalStateException ise )
+    {
+      //Expected
+    }
+    assertEquals( GelfCircuitBreaker.OPEN, circuitBreaker.getState() );
+
+    transports[ 0 ].fault = false;
+    Thread.sleep( 10 );
+    assertTrue( group.send( new byte[]{ 3 } ) );
+    assertEquals( GelfCircuitBreaker.CLOSED, circuitBreaker.getState() );
+  }
+
+  private RecordingTransport[] newTransports( final int count )
+  {
+    final RecordingTransport[] transports = new RecordingTransport[ count ];
+    for ( int i = 0; i < count; i++ )
+    {
+      transports[ i ] = new RecordingTransport();
+    }
+    return transports;
+  }
+
+  static final class RecordingTransport
+    implements GelfTransport
+  {
+    final List<byte[]> payloads = new ArrayList<byte[]>();
+    boolean fail;
+    boolean fault;
+    int failAfter = -1;
+    int attempts;
+
+    public boolean accepts( final byte[] payload )
+    {
+      return true;
+    }
+
+    public boolean send( final byte[] payload )
+    {
+      attempts++;
+      if ( fault )
+      {
+        throw new IllegalStateException( "Fault" );
+      }
+      if ( fail || failAfter == payloads.size() )
+      {
+        return false;
+      }
+      payloads.add( payload );
+      return true;
+    }
+
+    public int send( final List<byte[]> payloads )
+    {
+      int sent = 0;
+      for ( final byte[] payload : payloads )
+      {
+        if ( !send( payload ) )
+        {
+          break;
+        }
+        sent++;
+      }
+      return sent;
+    }
+
+    public void close()
+      throws IOException
+    {
+    }
+  }
+}
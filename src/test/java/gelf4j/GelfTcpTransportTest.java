@@ -0,0 +1,49 @@
+package gelf4j;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GelfTcpTransportTest
+{
+  @Test
+  public void writeToServerThatStopsReadingTimesOut()
+    throws Exception
+  {
+    final String host = InetAddress.getLoopbackAddress().getHostAddress();
+    final ServerSocket serverSocket = ConnectionUtil.createTcpServer( host, 1994 );
+    try
+    {
+      final GelfTarget target = new GelfTarget( host, 1994, new GelfCircuitBreaker( 3, 1000, 1000 ) );
+      target.resolve();
+      final GelfTcpTransport transport = new GelfTcpTransport( target, 200 );
+      // Enough data to fill the socket buffers of both ends
+      final List<byte[]> payloads = new ArrayList<byte[]>();
+      for ( int i = 0; i < 64; i++ )
+      {
+        payloads.add( new byte[ 1024 * 1024 ] );
+      }
+      final long start = System.currentTimeMillis();
+      final int sent = transport.send( payloads );
+      final Socket socket = serverSocket.accept();
+      try
+      {
+        assertTrue( sent < payloads.size() );
+        assertTrue( System.currentTimeMillis() - start < 5000 );
+      }
+      finally
+      {
+        socket.close();
+        transport.close();
+      }
+    }
+    finally
+    {
+      serverSocket.close();
+    }
+  }
+}
@@ -86,7 +86,7 @@ public class GelfAppenderTest
     assertEquals( "userName", config.getAdditionalFields().get( "coolUserName" ) );
 
     // set up mock connection
-    final TestGelfConnection connection = new TestGelfConnection( config );
+    final TestGelfConnection connection = ConnectionUtil.awaitResolved( new TestGelfConnection( config ) );
     final Field field = GelfAppender.class.getDeclaredField( "_connection" );
     field.setAccessible( true );
     field.set( TestGelfAppender.c_appender, connection );
@@ -94,7 +94,8 @@ public class GelfAppenderTest
     final long then = System.currentTimeMillis();
     final String smallTextMessage = "HELO";
     logger.debug( smallTextMessage );
-    assertTrue( ConnectionUtil.receivePacketAsString( socket ).contains( smallTextMessage ) );
+    final String packet = ConnectionUtil.receivePacketAsString( socket );
+    assertTrue( packet.contains( smallTextMessage ) );
 
     GelfMessage message = connection.getLastMessage();
     assertEquals( smallTextMessage, message.getShortMessage() );
@@ -115,6 +116,8 @@ public class GelfAppenderTest
 
     assertEquals( "DEV", message.getAdditionalFields().get( "environment" ) );
     assertEquals( "MyAPP", message.getAdditionalFields().get( "application" ) );
+    assertTrue( packet.contains( "\"_environment\":\"DEV\"" ) );
+    assertTrue( packet.contains( "\"_application\":\"MyAPP\"" ) );
 
     // now we test the MDC
     MDC.put( "ip_address", "42.42.42.42" );
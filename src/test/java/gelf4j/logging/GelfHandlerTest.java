@@ -74,7 +74,7 @@ public class GelfHandlerTest
     assertEquals( "exception", config.getAdditionalFields().get( "exception" ) );
 
     // set up mock connection
-    final TestGelfConnection connection = new TestGelfConnection( config );
+    final TestGelfConnection connection = ConnectionUtil.awaitResolved( new TestGelfConnection( config ) );
     final Field field = gelfHandler.getClass().getDeclaredField( "_connection" );
     field.setAccessible( true );
     field.set( gelfHandler, connection );
@@ -82,7 +82,8 @@ public class GelfHandlerTest
     final long then = System.currentTimeMillis();
     final String smallTextMessage = "HELO";
     logger.fine( smallTextMessage );
-    assertTrue( ConnectionUtil.receivePacketAsString( socket ).contains( smallTextMessage ) );
+    final String packet = ConnectionUtil.receivePacketAsString( socket );
+    assertTrue( packet.contains( smallTextMessage ) );
 
     GelfMessage message = connection.getLastMessage();
     assertEquals( smallTextMessage, message.getShortMessage() );
@@ -106,6 +107,8 @@ public class GelfHandlerTest
 
     assertEquals( "DEV", message.getAdditionalFields().get( "environment" ) );
     assertEquals( "MyAPP", message.getAdditionalFields().get( "application" ) );
+    assertTrue( packet.contains( "\"_environment\":\"DEV\"" ) );
+    assertTrue( packet.contains( "\"_application\":\"MyAPP\"" ) );
 
     logger.log( Level.SEVERE, smallTextMessage, new Exception() );
     assertTrue( ConnectionUtil.receivePacketAsString( socket ).contains( smallTextMessage ) );